@@ -0,0 +1,114 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Privilege batching against the plain protocol under contention: every benchmark thread acquires from a random node and
+releases as soon as it is granted. The batch size is read at startup, so each variant runs in its own fork.
+Besides throughput and latency, the tokenMessages and entries secondary results count the Request and Privilege messages
+sent over links and the critical section entries, their ratio is the cost of an entry.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@State(Scope.Benchmark)
+public class BatchingBenchmark {
+
+  @Param({"BINARY", "STAR"})
+  public BenchmarkNetwork.Shape shape;
+
+  @Param({"127"})
+  public int size;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+  //Counters at the beginning of the iteration, reported once per iteration by the first thread tearing down
+  long messagesAtStart;
+  final AtomicBoolean reported = new AtomicBoolean();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, shape, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @Setup(Level.Iteration)
+  public void snapshot() {
+    messagesAtStart = Node.tokenMessagesSent.sum();
+    reported.set(false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Messages {
+    //JMH sums events over threads and iterations, so both are totals and their ratio is the messages per entry
+    public long entries;
+    public long tokenMessages;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      entries = 0;
+      tokenMessages = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(BatchingBenchmark benchmark) {
+      //Messages are counted for the whole JVM, only one thread reports them
+      if(benchmark.reported.compareAndSet(false, true)) {
+        tokenMessages = Node.tokenMessagesSent.sum() - benchmark.messagesAtStart;
+      }
+    }
+  }
+
+  private void acquireRelease(Messages messages) throws Exception {
+    mutex.acquire(ThreadLocalRandom.current().nextInt(size)).toCompletableFuture().get().release();
+    messages.entries++;
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.privilege_batch=0")
+  public void unbatched(Messages messages) throws Exception {
+    acquireRelease(messages);
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.privilege_batch=4")
+  public void batched(Messages messages) throws Exception {
+    acquireRelease(messages);
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+
+/*
+Builds the networks used by the benchmarks. Node 0 is always the root of the tree and receives the token
+ */
+public class BenchmarkNetwork {
+
+  public enum Shape {
+    LINE,
+    STAR,
+    BINARY
+  }
+
+  public static int parentOf(Shape shape, int nodeId) {
+    switch(shape) {
+      case LINE:
+        return nodeId - 1;
+      case STAR:
+        return 0;
+      case BINARY:
+        return (nodeId - 1) / 2;
+      default:
+        throw new Error("Unknown shape " + shape);
+    }
+  }
+
+  //Creates, connects and initializes the network. Requests sent before initialization completes are parked by the broker
+  public static ActorRef[] create(ActorSystem system, Shape shape, int size, ActorRef observer) {
+    int[] parents = new int[size];
+    parents[0] = -1;
+    for(int i = 1; i < size; i++) {
+      parents[i] = parentOf(shape, i);
+    }
+
+    return NetworkBuilder.build(system, parents, observer);
+  }
+
+  //Same network built as by the command line, with NeighborInit messages for each edge and the Init flood
+  public static ActorRef[] createByMessages(ActorSystem system, int[] parents, ActorRef observer) {
+    ActorRef[] nodes = new ActorRef[parents.length];
+
+    for(int i = 0; i < parents.length; i++) {
+      nodes[i] = system.actorOf(Node.props(i, observer));
+    }
+
+    for(int i = 1; i < parents.length; i++) {
+      int parent = parents[i];
+      nodes[i].tell(new Node.NeighborInit(parent, nodes[parent]), ActorRef.noSender());
+      nodes[parent].tell(new Node.NeighborInit(i, nodes[i]), ActorRef.noSender());
+    }
+
+    nodes[0].tell(new Node.TokenInject(), ActorRef.noSender());
+
+    return nodes;
+  }
+
+  //Neighbor that swallows everything it receives
+  public static class Sink extends AbstractActor {
+
+    public static Props props() {
+      return Props.create(Sink.class, Sink::new);
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+              .matchAny(message -> {})
+              .build();
+    }
+  }
+}
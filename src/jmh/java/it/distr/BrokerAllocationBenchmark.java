@@ -0,0 +1,97 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.TestActorRef;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Allocations on the message path of the broker. Meant to be run with the GC profiler:
+
+  gradle jmh -Pjmh.include=BrokerAllocationBenchmark -Pjmh.gc
+
+and read from the gc.alloc.rate.norm secondary results. Node IDs are above the Integer cache range,
+so boxing of IDs shows up in the numbers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BrokerAllocationBenchmark {
+
+  private static final int FIRST_NEIGHBOR_ID = 1000;
+  private static final int DEGREE = 4;
+
+  private ActorSystem system;
+  private TestActorRef<Node> nodeRef;
+  private ActorRef[] neighbors = new ActorRef[DEGREE];
+  private Node.RecoveryInfoResponse[] recoveryInfo = new Node.RecoveryInfoResponse[DEGREE];
+  private final Node.CrashBegin crashBegin = new Node.CrashBegin();
+  private final Node.CrashEnd crashEnd = new Node.CrashEnd();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    system = ActorSystem.create("bench");
+    nodeRef = TestActorRef.create(system, Node.props(FIRST_NEIGHBOR_ID - 1));
+
+    for(int i = 0; i < DEGREE; i++) {
+      neighbors[i] = system.actorOf(BenchmarkNetwork.Sink.props());
+      nodeRef.receive(new Node.NeighborInit(FIRST_NEIGHBOR_ID + i, neighbors[i]), ActorRef.noSender());
+    }
+    nodeRef.receive(new Node.Init(FIRST_NEIGHBOR_ID), neighbors[0]);
+
+    //After a crash the first neighbor is the holder and all the others point to the recovering node
+    for(int i = 0; i < DEGREE; i++) {
+      int holderId = (i == 0) ? FIRST_NEIGHBOR_ID - 2 : FIRST_NEIGHBOR_ID - 1;
+      recoveryInfo[i] = new Node.RecoveryInfoResponse(holderId);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(10, TimeUnit.SECONDS));
+  }
+
+  //Request/privilege hand-offs in normal mode, nothing is parked
+  @Benchmark
+  @OperationsPerInvocation(4)
+  public void normalMode() {
+    nodeRef.receive(Node.Request.INSTANCE, neighbors[DEGREE - 1]);
+    nodeRef.receive(Node.Privilege.of(false), neighbors[0]);
+    nodeRef.receive(Node.Request.INSTANCE, neighbors[0]);
+    nodeRef.receive(Node.Privilege.of(false), neighbors[DEGREE - 1]);
+  }
+
+  //Crash and recovery with a request parked by the broker until normal mode is restored
+  @Benchmark
+  public void recoveryWithParkedRequest() {
+    nodeRef.receive(crashBegin, ActorRef.noSender());
+    nodeRef.receive(crashEnd, ActorRef.noSender());
+    for(int i = 0; i < DEGREE - 1; i++) {
+      nodeRef.receive(recoveryInfo[i], neighbors[i]);
+    }
+    nodeRef.receive(Node.Request.INSTANCE, neighbors[1]);
+    nodeRef.receive(recoveryInfo[DEGREE - 1], neighbors[DEGREE - 1]);
+  }
+}
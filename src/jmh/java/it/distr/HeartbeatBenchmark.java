@@ -0,0 +1,122 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Cost of failure detection in a large network under load. heartbeats is the number of heartbeats sent per second by all
+the nodes, suspicions the number of neighbors wrongly suspected per second, since no node crashes here.
+The grant throughput shows what the heartbeats take away from the protocol.
+ */
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+@State(Scope.Benchmark)
+public class HeartbeatBenchmark {
+
+  @Param({"10000"})
+  public int size;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+  long heartbeatsAtStart;
+  long suspicionsAtStart;
+  final AtomicBoolean reported = new AtomicBoolean();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, BenchmarkNetwork.Shape.BINARY, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @Setup(Level.Iteration)
+  public void snapshot() {
+    heartbeatsAtStart = Node.heartbeatsSent.sum();
+    suspicionsAtStart = Node.suspicions.sum();
+    reported.set(false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Overhead {
+    public long heartbeats;
+    public long suspicions;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      heartbeats = 0;
+      suspicions = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(HeartbeatBenchmark benchmark) {
+      //Counted for the whole JVM, only one thread reports them
+      if(benchmark.reported.compareAndSet(false, true)) {
+        heartbeats = Node.heartbeatsSent.sum() - benchmark.heartbeatsAtStart;
+        suspicions = Node.suspicions.sum() - benchmark.suspicionsAtStart;
+      }
+    }
+  }
+
+  private void acquireRelease() throws Exception {
+    mutex.acquire(ThreadLocalRandom.current().nextInt(size)).toCompletableFuture().get().release();
+  }
+
+  @Benchmark
+  @Fork(1)
+  public void noDetection(Overhead overhead) throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.heartbeat_interval=1000")
+  public void heartbeat1000ms(Overhead overhead) throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.heartbeat_interval=200")
+  public void heartbeat200ms(Overhead overhead) throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.heartbeat_interval=50")
+  public void heartbeat50ms(Overhead overhead) throws Exception {
+    acquireRelease();
+  }
+}
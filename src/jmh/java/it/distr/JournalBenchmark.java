@@ -0,0 +1,125 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import it.distr.utils.Journal;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Cost of the journal on the critical section entries of random nodes. records and forces are the journal records written
+and the forces to disk per second by all the nodes, records divided by the score gives the records per entry.
+Journals are written under build/jmh-journal, forces cost what the file system there makes them cost.
+ */
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(8)
+@State(Scope.Benchmark)
+public class JournalBenchmark {
+
+  @Param({"1023"})
+  public int size;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+  long recordsAtStart;
+  long forcesAtStart;
+  final AtomicBoolean reported = new AtomicBoolean();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, BenchmarkNetwork.Shape.BINARY, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @Setup(Level.Iteration)
+  public void snapshot() {
+    recordsAtStart = Journal.recordsWritten();
+    forcesAtStart = Journal.forces();
+    reported.set(false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Writes {
+    public long records;
+    public long forces;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      records = 0;
+      forces = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(JournalBenchmark benchmark) {
+      //Counted for the whole JVM, only one thread reports them
+      if(benchmark.reported.compareAndSet(false, true)) {
+        records = Journal.recordsWritten() - benchmark.recordsAtStart;
+        forces = Journal.forces() - benchmark.forcesAtStart;
+      }
+    }
+  }
+
+  private void acquireRelease() throws Exception {
+    mutex.acquire(ThreadLocalRandom.current().nextInt(size)).toCompletableFuture().get().release();
+  }
+
+  @Benchmark
+  @Fork(1)
+  public void noJournal(Writes writes) throws Exception {
+    acquireRelease();
+  }
+
+  //Forces once every 10 ms all the journals written in the meantime
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.journal_dir=build/jmh-journal")
+  public void groupCommit(Writes writes) throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = {"-Ddmx.journal_dir=build/jmh-journal", "-Ddmx.journal_sync=1"})
+  public void groupCommit1ms(Writes writes) throws Exception {
+    acquireRelease();
+  }
+
+  //Forces every record as it is written
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = {"-Ddmx.journal_dir=build/jmh-journal", "-Ddmx.journal_sync=0"})
+  public void forceEveryRecord(Writes writes) throws Exception {
+    acquireRelease();
+  }
+}
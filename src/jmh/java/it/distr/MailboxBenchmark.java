@@ -0,0 +1,104 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+Grant latency with the dispatchers and mailboxes of application.conf: every benchmark thread acquires from a random node
+and releases as soon as it is granted. The configuration is read when nodes are created, so each one runs in its own fork.
+In the star every request goes through the center, where the priority mailbox matters most.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@State(Scope.Benchmark)
+public class MailboxBenchmark {
+
+  @Param({"BINARY", "STAR"})
+  public BenchmarkNetwork.Shape shape;
+
+  @Param({"127"})
+  public int size;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, shape, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  private void acquireRelease() throws Exception {
+    mutex.acquire(ThreadLocalRandom.current().nextInt(size)).toCompletableFuture().get().release();
+  }
+
+  @Benchmark
+  @Fork(1)
+  public void defaults() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.dispatcher=dmx-node-dispatcher")
+  public void nodeDispatcher() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = {"-Ddmx.dispatcher=dmx-node-dispatcher", "-Ddmx-node-dispatcher.throughput=100"})
+  public void nodeDispatcherThroughput100() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.dispatcher=dmx-affinity-dispatcher")
+  public void affinityDispatcher() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.mailbox=dmx-single-consumer-mailbox")
+  public void singleConsumerMailbox() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.mailbox=dmx-priority-mailbox")
+  public void priorityMailbox() throws Exception {
+    acquireRelease();
+  }
+}
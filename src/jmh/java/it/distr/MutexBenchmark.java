@@ -0,0 +1,99 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+Acquisitions through the DistributedMutex facade, the way an application embedding the protocol would issue them.
+Leases are released as soon as they are granted.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MutexBenchmark {
+
+  @Param({"BINARY"})
+  public BenchmarkNetwork.Shape shape;
+
+  @Param({"127", "1023"})
+  public int size;
+
+  //Acquisitions pending at the same time in concurrentAcquisitions
+  @Param({"1000"})
+  public int pending;
+
+  //Resources the concurrent acquisitions are spread over
+  @Param({"1", "100"})
+  public int resources;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+  String[] names;
+  final Random generator = new Random(42);
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, shape, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    names = new String[resources];
+    for(int i = 0; i < resources; i++) {
+      names[i] = "r" + i;
+    }
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  //Time from acquire() on a random node to the grant, with no other acquisitions around
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public DistributedMutex.Lease acquireRelease() throws Exception {
+    DistributedMutex.Lease lease = mutex.acquire(generator.nextInt(size)).toCompletableFuture().get();
+    lease.release();
+    return lease;
+  }
+
+  //Time to serve a burst of acquisitions from random nodes on random resources
+  @Benchmark
+  @BenchmarkMode(Mode.AverageTime)
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void concurrentAcquisitions() {
+    CompletableFuture<?>[] leases = new CompletableFuture<?>[pending];
+    for(int i = 0; i < pending; i++) {
+      leases[i] = mutex.acquire(generator.nextInt(size), names[generator.nextInt(resources)]).toCompletableFuture().thenAccept(DistributedMutex.Lease::release);
+    }
+    CompletableFuture.allOf(leases).join();
+  }
+}
@@ -0,0 +1,175 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.TestActorRef;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Cost of the protocol handlers of a single node, invoked on the calling thread through a TestActorRef.
+The node has a holder neighbor and a requester neighbor among degree neighbors (all sinks) and goes through the cycle
+
+  request from requester -> privilege from holder -> request from holder -> privilege from requester
+
+which leaves it in its initial state. Each benchmark measures one step, the others run as invocation fixtures.
+The broker benchmarks run the whole cycle through the actor receive to include MessageBroker dispatching.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NodeHandlersBenchmark {
+
+  @State(Scope.Thread)
+  public static class Hub {
+
+    //Number of neighbors of the node under test
+    @Param({"2", "16", "1024"})
+    public int degree;
+
+    ActorSystem system;
+    TestActorRef<Node> nodeRef;
+    Node node;
+    //Holder of the node under test and the neighbor issuing requests, the last one to be scanned in sender lookups
+    ActorRef holder;
+    ActorRef requester;
+
+    final Node.Request request = Node.Request.INSTANCE;
+    final Node.Privilege privilege = Node.Privilege.of(false);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+      system = ActorSystem.create("bench");
+      nodeRef = TestActorRef.create(system, Node.props(0));
+      node = nodeRef.underlyingActor();
+
+      for(int i = 1; i <= degree; i++) {
+        ActorRef neighbor = system.actorOf(BenchmarkNetwork.Sink.props());
+        node.onNeighborInit(new Node.NeighborInit(i, neighbor), ActorRef.noSender());
+        if(i == 1) {
+          holder = neighbor;
+        }
+        if(i == degree) {
+          requester = neighbor;
+        }
+      }
+
+      node.onInit(new Node.Init(1), holder);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+      Await.result(system.terminate(), Duration.create(10, TimeUnit.SECONDS));
+    }
+
+    void requestFromRequester() {
+      node.onRequest(request, requester);
+    }
+
+    void privilegeFromHolder() {
+      node.onPrivilege(privilege, holder);
+    }
+
+    void requestFromHolder() {
+      node.onRequest(request, holder);
+    }
+
+    void privilegeFromRequester() {
+      node.onPrivilege(privilege, requester);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class BeforeRequest extends Hub {
+
+    @TearDown(Level.Invocation)
+    public void completeCycle() {
+      privilegeFromHolder();
+      requestFromHolder();
+      privilegeFromRequester();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class BeforePrivilege extends Hub {
+
+    @Setup(Level.Invocation)
+    public void beginCycle() {
+      requestFromRequester();
+    }
+
+    @TearDown(Level.Invocation)
+    public void completeCycle() {
+      requestFromHolder();
+      privilegeFromRequester();
+    }
+  }
+
+  //Request forwarded to the holder
+  @Benchmark
+  public void onRequest(BeforeRequest hub) {
+    hub.requestFromRequester();
+  }
+
+  //Privilege received and immediately passed to the waiting requester
+  @Benchmark
+  public void onPrivilege(BeforePrivilege hub) {
+    hub.privilegeFromHolder();
+  }
+
+  //Privilege handed to the first waiting requester
+  @Benchmark
+  public void giveAccessToFirst(BeforePrivilege hub) {
+    hub.node.giveAccessToFirst(Node.DEFAULT_RESOURCE);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(4)
+  public void handlerCycle(Hub hub) {
+    hub.requestFromRequester();
+    hub.privilegeFromHolder();
+    hub.requestFromHolder();
+    hub.privilegeFromRequester();
+  }
+
+  //Same cycle as handlerCycle through MessageBroker.messageArrived and dispatchMessage
+  @Benchmark
+  @OperationsPerInvocation(4)
+  public void brokerCycle(Hub hub) {
+    hub.nodeRef.receive(hub.request, hub.requester);
+    hub.nodeRef.receive(hub.privilege, hub.holder);
+    hub.nodeRef.receive(hub.request, hub.holder);
+    hub.nodeRef.receive(hub.privilege, hub.requester);
+  }
+
+  //Same as brokerCycle with metrics enabled, their cost is the difference
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.metrics=true")
+  @OperationsPerInvocation(4)
+  public void brokerCycleWithMetrics(Hub hub) {
+    hub.nodeRef.receive(hub.request, hub.requester);
+    hub.nodeRef.receive(hub.privilege, hub.holder);
+    hub.nodeRef.receive(hub.request, hub.holder);
+    hub.nodeRef.receive(hub.privilege, hub.requester);
+  }
+}
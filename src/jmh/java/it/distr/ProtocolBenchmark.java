@@ -0,0 +1,234 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+End to end benchmarks of whole networks. Must run with a zero critical section duration (see build.gradle)
+so that measurements are not bounded by the time spent inside the critical section.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProtocolBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class Network {
+
+    @Param({"LINE", "STAR", "BINARY"})
+    public BenchmarkNetwork.Shape shape;
+
+    @Param({"7", "127", "1023", "10000"})
+    public int size;
+
+    ActorSystem system;
+    ActorRef[] nodes;
+    //Released once for every critical section entry
+    final Semaphore entries = new Semaphore(0);
+    //When set, every node re-requests the critical section as soon as it enters it
+    volatile boolean continuousLoad = false;
+    final Random generator = new Random(42);
+
+    @Setup(Level.Trial)
+    public void setUp() throws InterruptedException {
+      system = ActorSystem.create("bench");
+      ActorRef observer = system.actorOf(Props.create(Observer.class, () -> new Observer(this)));
+      nodes = BenchmarkNetwork.create(system, shape, size, observer);
+
+      //Wait for the initialization to reach the farthest node
+      request(size - 1);
+      entries.acquire();
+
+      startLoad();
+    }
+
+    //Fixture order across subclasses is not defined, so subclasses extend the setup here
+    void startLoad() {}
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+      continuousLoad = false;
+      Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+    }
+
+    void request(int nodeId) {
+      nodes[nodeId].tell(Node.Request.INSTANCE, nodes[nodeId]);
+    }
+
+    //Request issued by the load after each critical section entry
+    void nextRequest(int nodeId) {
+      request(nodeId);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class LoadedNetwork extends Network {
+
+    //Nodes competing for the critical section
+    @Param({"8"})
+    public int requesters;
+
+    @Override
+    void startLoad() {
+      continuousLoad = true;
+      //Spread the requesters over the network, a node cannot have more than one pending request
+      int count = Math.min(requesters, size);
+      for(int i = 0; i < count; i++) {
+        nextRequest((int) ((long) i * size / count));
+      }
+    }
+
+    @Setup(Level.Iteration)
+    public void discardPastEntries() {
+      entries.drainPermits();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class MultiResourceNetwork extends LoadedNetwork {
+
+    //Locks sharing the tree, each request picks one at random
+    @Param({"1", "1000"})
+    public int resources;
+
+    String[] names;
+
+    @Override
+    void startLoad() {
+      names = new String[resources];
+      for(int i = 0; i < resources; i++) {
+        names[i] = "r" + i;
+      }
+      super.startLoad();
+    }
+
+    @Override
+    void nextRequest(int nodeId) {
+      nodes[nodeId].tell(Node.Request.of(names[generator.nextInt(resources)]), nodes[nodeId]);
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class ClientNetwork extends Network {
+
+    //Clients acquiring and immediately releasing the default resource, each one on its own node
+    @Param({"8"})
+    public int clients;
+
+    @Override
+    void startLoad() {
+      int count = Math.min(clients, size);
+      for(int i = 0; i < count; i++) {
+        ActorRef node = nodes[(int) ((long) i * size / count)];
+        system.actorOf(Props.create(Client.class, () -> new Client(node)));
+      }
+    }
+
+    @Setup(Level.Iteration)
+    public void discardPastEntries() {
+      entries.drainPermits();
+    }
+  }
+
+  //Entries are counted by the observer
+  public static class Client extends AbstractActor {
+    private final ActorRef node;
+    private final Node.Acquire acquire = new Node.Acquire(Node.DEFAULT_RESOURCE, 0);
+
+    public Client(ActorRef node) {
+      this.node = node;
+    }
+
+    @Override
+    public void preStart() {
+      node.tell(acquire, getSelf());
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+              .match(Node.Granted.class, message -> {
+                node.tell(new Node.Release(message.resource, message.leaseId), getSelf());
+                node.tell(acquire, getSelf());
+              })
+              .build();
+    }
+  }
+
+  public static class Observer extends AbstractActor {
+    private final Network network;
+
+    public Observer(Network network) {
+      this.network = network;
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+              .match(Node.CSEntered.class, message -> {
+                if(network.continuousLoad) {
+                  network.nextRequest(message.nodeId);
+                }
+                network.entries.release();
+              })
+              .build();
+    }
+  }
+
+  //Critical section entries per second with a fixed number of competing requesters
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void csEntries(LoadedNetwork network) throws InterruptedException {
+    network.entries.acquire();
+  }
+
+  //Critical section entries per second of clients releasing as soon as they are granted, not bound by the fixed duration
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void clientCsEntries(ClientNetwork network) throws InterruptedException {
+    network.entries.acquire();
+  }
+
+  //Critical section entries per second when the requesters compete for one of many resources
+  @Benchmark
+  @BenchmarkMode(Mode.Throughput)
+  @OutputTimeUnit(TimeUnit.SECONDS)
+  public void multiResourceCsEntries(MultiResourceNetwork network) throws InterruptedException {
+    network.entries.acquire();
+  }
+
+  //Time from a request of a random node to its entry in the critical section, with no other requests around
+  @Benchmark
+  @BenchmarkMode(Mode.SampleTime)
+  @OutputTimeUnit(TimeUnit.MICROSECONDS)
+  public void requestToGrant(Network network) throws InterruptedException {
+    network.request(network.generator.nextInt(network.size));
+    network.entries.acquire();
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+import it.distr.utils.DelayDistribution;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+Time for the center of a star to get the token back after a crash, while the token is held by one of its leaves.
+Links have exponentially distributed delays, so a full recovery waits for the slowest of the degree leaves to answer,
+while an incremental one serves the request as soon as the leaf holding the token has answered. Recovering from the
+journal only asks the leaves whose messages were dropped during the crash, usually none.
+ */
+@Warmup(iterations = 5)
+@Measurement(iterations = 30)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class RecoveryBenchmark {
+
+  @Param({"16", "256", "1024"})
+  public int degree;
+
+  //Mean delay in ms of every link
+  @Param({"10"})
+  public int linkDelay;
+
+  ActorSystem system;
+  ActorRef center;
+  DistributedMutex mutex;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, BenchmarkNetwork.Shape.STAR, degree + 1, null);
+    for(ActorRef node : nodes) {
+      node.tell(new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.exponential(linkDelay)), ActorRef.noSender());
+    }
+    center = nodes[0];
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+  }
+
+  //Waits for the previous recovery to end and moves the token to a leaf
+  @Setup(Level.Iteration)
+  public void moveToken() throws Exception {
+    PatternsCS.ask(center, Node.IsReady.INSTANCE, 60000).toCompletableFuture().get();
+    mutex.acquire(1).toCompletableFuture().get().release();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  private void crashAndAcquire() throws Exception {
+    center.tell(new Node.CrashBegin(), ActorRef.noSender());
+    center.tell(new Node.CrashEnd(), ActorRef.noSender());
+    mutex.acquire(0).toCompletableFuture().get().release();
+  }
+
+  @Benchmark
+  @Fork(1)
+  public void fullRecovery() throws Exception {
+    crashAndAcquire();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.incremental_recovery=true")
+  public void incrementalRecovery() throws Exception {
+    crashAndAcquire();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.journal_dir=build/jmh-journal")
+  public void journalRecovery() throws Exception {
+    crashAndAcquire();
+  }
+}
@@ -0,0 +1,130 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+Request to grant latency under skewed contention for each request queue discipline. In a binary tree with the token in
+the root, three quarters of the threads acquire back to back from the top HOT_NODES nodes while the others acquire from
+the leaves, six hops from the root, with farPriority. The discipline is read at startup, so each variant runs in its own
+fork, and the percentiles (p0.99 and p0.999) of the hot and far threads are reported separately. Strict priority is
+left out: the far threads always have a more urgent request waiting in the root and the hot ones starve until their
+acquisitions time out
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Group)
+public class RequestQueueBenchmark {
+
+  private static final int HOT_NODES = 7;
+
+  @Param({"127"})
+  public int size;
+
+  @Param({"1"})
+  public int farPriority;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, BenchmarkNetwork.Shape.BINARY, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  private DistributedMutex.Lease hot() throws Exception {
+    DistributedMutex.Lease lease = mutex.acquire(ThreadLocalRandom.current().nextInt(HOT_NODES)).toCompletableFuture().get();
+    lease.release();
+    return lease;
+  }
+
+  //The leaves are the second half of the nodes
+  private DistributedMutex.Lease far() throws Exception {
+    int leaf = size / 2 + ThreadLocalRandom.current().nextInt(size - size / 2);
+    DistributedMutex.Lease lease = mutex.acquire(leaf, Node.DEFAULT_RESOURCE, 0, farPriority).toCompletableFuture().get();
+    lease.release();
+    return lease;
+  }
+
+  @Benchmark
+  @Group("fifo")
+  @GroupThreads(12)
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.request_queue=fifo")
+  public DistributedMutex.Lease fifoHot() throws Exception {
+    return hot();
+  }
+
+  @Benchmark
+  @Group("fifo")
+  @GroupThreads(4)
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.request_queue=fifo")
+  public DistributedMutex.Lease fifoFar() throws Exception {
+    return far();
+  }
+
+  @Benchmark
+  @Group("aging")
+  @GroupThreads(12)
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.request_queue=aging:1")
+  public DistributedMutex.Lease agingHot() throws Exception {
+    return hot();
+  }
+
+  @Benchmark
+  @Group("aging")
+  @GroupThreads(4)
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.request_queue=aging:1")
+  public DistributedMutex.Lease agingFar() throws Exception {
+    return far();
+  }
+
+  @Benchmark
+  @Group("bypass")
+  @GroupThreads(12)
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.request_queue=bypass:2")
+  public DistributedMutex.Lease bypassHot() throws Exception {
+    return hot();
+  }
+
+  @Benchmark
+  @Group("bypass")
+  @GroupThreads(4)
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.request_queue=bypass:2")
+  public DistributedMutex.Lease bypassFar() throws Exception {
+    return far();
+  }
+}
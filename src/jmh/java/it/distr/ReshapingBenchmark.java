@@ -0,0 +1,122 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Adaptive reshaping on a skewed workload: most acquisitions come from a few hot nodes, the deepest ones of the tree,
+the rest from random nodes. The fixed tree is compared with leaves moving after every critical section entry.
+tokenMessages / entries is the number of Request and Privilege messages crossing a link for each entry.
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+@State(Scope.Benchmark)
+public class ReshapingBenchmark {
+
+  @Param({"LINE", "BINARY"})
+  public BenchmarkNetwork.Shape shape;
+
+  @Param({"127"})
+  public int size;
+
+  //Nodes with the highest IDs, which are the deepest ones in both shapes
+  @Param({"4"})
+  public int hotNodes;
+
+  //Percentage of acquisitions issued by the hot nodes
+  @Param({"90"})
+  public int hotPercent;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+  long messagesAtStart;
+  final AtomicBoolean reported = new AtomicBoolean();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, shape, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @Setup(Level.Iteration)
+  public void snapshot() {
+    messagesAtStart = Node.tokenMessagesSent.sum();
+    reported.set(false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Hops {
+    //JMH sums events over threads and iterations, so both are totals and their ratio is the messages per entry
+    public long entries;
+    public long tokenMessages;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      entries = 0;
+      tokenMessages = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(ReshapingBenchmark benchmark) {
+      //Messages are counted for the whole JVM, only one thread reports them
+      if(benchmark.reported.compareAndSet(false, true)) {
+        tokenMessages = Node.tokenMessagesSent.sum() - benchmark.messagesAtStart;
+      }
+    }
+  }
+
+  private void acquireRelease(Hops hops) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int nodeId = (random.nextInt(100) < hotPercent) ? size - 1 - random.nextInt(hotNodes) : random.nextInt(size);
+    mutex.acquire(nodeId).toCompletableFuture().get().release();
+    hops.entries++;
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.reparent_after=0")
+  public void fixedTree(Hops hops) throws Exception {
+    acquireRelease(hops);
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.reparent_after=1")
+  public void reshaping(Hops hops) throws Exception {
+    acquireRelease(hops);
+  }
+}
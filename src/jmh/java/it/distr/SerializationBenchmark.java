@@ -0,0 +1,99 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.JavaSerializer;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Round trip of the messages exchanged between nodes through NodeSerializer and through Java serialization,
+the default of remote actor systems. The size of the serialized message in both formats is printed at the end of each trial
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+  public enum MessageKind {
+    REQUEST,
+    NAMED_REQUEST,
+    BATCH_PRIVILEGE,
+    GRANTED,
+    RECOVERY_INFO
+  }
+
+  @Param({"REQUEST", "NAMED_REQUEST", "BATCH_PRIVILEGE", "GRANTED", "RECOVERY_INFO"})
+  public MessageKind kind;
+
+  ActorSystem system;
+  NodeSerializer dmx;
+  JavaSerializer java;
+  Object message;
+  String manifest;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    system = ActorSystem.create("bench");
+    dmx = new NodeSerializer((ExtendedActorSystem) system);
+    java = new JavaSerializer((ExtendedActorSystem) system);
+
+    switch(kind) {
+      case REQUEST:
+        message = Node.Request.INSTANCE;
+        break;
+      case NAMED_REQUEST:
+        message = Node.Request.of("printer");
+        break;
+      case BATCH_PRIVILEGE:
+        message = Node.Privilege.of("printer", true, 4);
+        break;
+      case GRANTED:
+        message = new Node.Granted(42, Node.DEFAULT_RESOURCE, 1234);
+        break;
+      case RECOVERY_INFO:
+        message = new Node.RecoveryInfoResponse(3, new String[] {Node.DEFAULT_RESOURCE, "printer", "scanner"}, new int[] {3, 7, 9}, new boolean[] {false, true, false});
+        break;
+    }
+    manifest = dmx.manifest(message);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    System.out.println(kind + ": " + dmx.toBinary(message).length + " bytes with NodeSerializer, " + java.toBinary(message).length + " with Java serialization");
+    Await.result(system.terminate(), Duration.create(10, TimeUnit.SECONDS));
+  }
+
+  @Benchmark
+  public Object nodeSerializer() throws Exception {
+    byte[] bytes = dmx.toBinary(message);
+    return dmx.fromBinary(bytes, manifest);
+  }
+
+  @Benchmark
+  public Object javaSerialization() throws Exception {
+    byte[] bytes = java.toBinary(message);
+    return java.fromBinary(bytes, message.getClass());
+  }
+}
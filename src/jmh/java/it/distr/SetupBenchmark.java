@@ -0,0 +1,74 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import it.distr.utils.TopologyGenerator;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+Time to build a network until every node is initialized, with bulk wiring and with the per-edge messages
+of the command line. Each measurement uses a fresh actor system, torn down outside of the timing.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SetupBenchmark {
+
+  @Param({"1000", "10000", "100000"})
+  public int size;
+
+  @Param({"RANDOM", "STAR"})
+  public TopologyGenerator.Shape shape;
+
+  int[] parents;
+  ActorSystem system;
+
+  @Setup(Level.Trial)
+  public void generate() {
+    parents = TopologyGenerator.parents(shape, size, 2, 42);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() {
+    system = ActorSystem.create("bench");
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(60, TimeUnit.SECONDS));
+  }
+
+  @Benchmark
+  public Object bulk() throws Exception {
+    ActorRef[] nodes = NetworkBuilder.build(system, parents, null);
+    return NetworkBuilder.whenReady(nodes, 120000).toCompletableFuture().get();
+  }
+
+  @Benchmark
+  public Object perEdgeMessages() throws Exception {
+    ActorRef[] nodes = BenchmarkNetwork.createByMessages(system, parents, null);
+    return NetworkBuilder.whenReady(nodes, 120000).toCompletableFuture().get();
+  }
+}
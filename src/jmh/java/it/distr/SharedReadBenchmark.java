@@ -0,0 +1,115 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+Shared access against the plain exclusive protocol on read-mostly workloads: every benchmark thread acquires from a
+random node, reading readPercent times out of a hundred and writing otherwise, and releases as soon as it is granted.
+The shared variant takes the reads with acquireShared, the exclusive one with acquire, as if there was no read mode.
+The entries and tokenMessages secondary results count the critical section entries and the Request, Privilege and read
+copy messages sent over links, as in BatchingBenchmark
+ */
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@State(Scope.Benchmark)
+public class SharedReadBenchmark {
+
+  @Param({"15", "127"})
+  public int size;
+
+  @Param({"90", "99"})
+  public int readPercent;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+  long messagesAtStart;
+  final AtomicBoolean reported = new AtomicBoolean();
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, BenchmarkNetwork.Shape.BINARY, size, null);
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @Setup(Level.Iteration)
+  public void snapshot() {
+    messagesAtStart = Node.tokenMessagesSent.sum();
+    reported.set(false);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.EVENTS)
+  public static class Messages {
+    public long entries;
+    public long tokenMessages;
+
+    @Setup(Level.Iteration)
+    public void clear() {
+      entries = 0;
+      tokenMessages = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void report(SharedReadBenchmark benchmark) {
+      if(benchmark.reported.compareAndSet(false, true)) {
+        tokenMessages = Node.tokenMessagesSent.sum() - benchmark.messagesAtStart;
+      }
+    }
+  }
+
+  private DistributedMutex.Lease acquireRelease(boolean shared, Messages messages) throws Exception {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int nodeId = random.nextInt(size);
+    boolean read = random.nextInt(100) < readPercent;
+    DistributedMutex.Lease lease = (read && shared ? mutex.acquireShared(nodeId, Node.DEFAULT_RESOURCE) : mutex.acquire(nodeId)).toCompletableFuture().get();
+    lease.release();
+    messages.entries++;
+    return lease;
+  }
+
+  @Benchmark
+  public DistributedMutex.Lease shared(Messages messages) throws Exception {
+    return acquireRelease(true, messages);
+  }
+
+  @Benchmark
+  public DistributedMutex.Lease exclusive(Messages messages) throws Exception {
+    return acquireRelease(false, messages);
+  }
+}
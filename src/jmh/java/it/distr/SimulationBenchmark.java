@@ -0,0 +1,94 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import it.distr.utils.DelayDistribution;
+import it.distr.utils.TopologyGenerator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/*
+Speed of the deterministic simulation on a random tree. Each operation is a request of a random node, or the crash and
+recovery of one, followed by a millisecond of virtual time. messages is the protocol messages delivered per second of
+real time, the steps the simulation takes. With link delays every message in transit is a timer of the simulation
+ */
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulationBenchmark {
+
+  private static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Param({"1023"})
+  public int size;
+
+  @Param({"none", "uniform:5"})
+  public String delay;
+
+  Simulation simulation;
+  ActorRef[] nodes;
+  final Random random = new Random(42);
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    simulation = new Simulation(42);
+    nodes = NetworkBuilder.build(simulation, TopologyGenerator.parents(TopologyGenerator.Shape.RANDOM, size, 0, 42));
+    Node.SetLinkDelay setLinkDelay = new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.parse(delay));
+    for(ActorRef node : nodes) {
+      node.tell(setLinkDelay, ActorRef.noSender());
+    }
+    simulation.run(STEP_NANOS);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    simulation.system().terminate();
+  }
+
+  @State(Scope.Thread)
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  public static class Steps {
+    public long messages;
+  }
+
+  @Benchmark
+  public void requests(Steps steps) {
+    long deliveredBefore = simulation.delivered();
+    ActorRef node = nodes[random.nextInt(size)];
+    node.tell(Node.Request.INSTANCE, node);
+    simulation.run(STEP_NANOS);
+    steps.messages += simulation.delivered() - deliveredBefore;
+  }
+
+  //One node down at a time, recovered within the next operation
+  @Benchmark
+  public void crashRecovery(Steps steps) {
+    long deliveredBefore = simulation.delivered();
+    ActorRef node = nodes[random.nextInt(size)];
+    node.tell(new Node.CrashBegin(), ActorRef.noSender());
+    node.tell(new Node.CrashEnd(), ActorRef.noSender());
+    simulation.run(STEP_NANOS);
+    node.tell(Node.Request.INSTANCE, node);
+    simulation.run(STEP_NANOS * 20);
+    steps.messages += simulation.delivered() - deliveredBefore;
+  }
+}
@@ -0,0 +1,99 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import it.distr.utils.DelayDistribution;
+import org.openjdk.jmh.annotations.*;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+Grant latency of large networks with a constant delay on every link, on the default fork join dispatcher and on virtual
+threads, with link delays timed by the Akka scheduler or by virtual threads. The variants using virtual threads need
+Java 21. The peak number of platform threads is printed at the end of each trial.
+ */
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(16)
+@State(Scope.Benchmark)
+public class VirtualThreadBenchmark {
+
+  @Param({"1000", "10000"})
+  public int size;
+
+  //Delay in ms of every link
+  @Param({"2"})
+  public int linkDelay;
+
+  ActorSystem system;
+  DistributedMutex mutex;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Exception {
+    system = ActorSystem.create("bench");
+    ActorRef[] nodes = BenchmarkNetwork.create(system, BenchmarkNetwork.Shape.BINARY, size, null);
+    for(ActorRef node : nodes) {
+      node.tell(new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.constant(linkDelay)), ActorRef.noSender());
+    }
+    mutex = new DistributedMutex(Arrays.asList(nodes));
+
+    //Wait for the initialization to reach the farthest node
+    mutex.acquire(size - 1).toCompletableFuture().get().release();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Exception {
+    System.out.println("Peak platform threads: " + ManagementFactory.getThreadMXBean().getPeakThreadCount());
+    Await.result(system.terminate(), Duration.create(30, TimeUnit.SECONDS));
+  }
+
+  private void acquireRelease() throws Exception {
+    mutex.acquire(ThreadLocalRandom.current().nextInt(size)).toCompletableFuture().get().release();
+  }
+
+  @Benchmark
+  @Fork(1)
+  public void forkJoin() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.dispatcher=dmx-virtual-dispatcher")
+  public void virtualDispatcher() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = "-Ddmx.virtual_link_timer=true")
+  public void virtualLinkTimer() throws Exception {
+    acquireRelease();
+  }
+
+  @Benchmark
+  @Fork(value = 1, jvmArgsAppend = {"-Ddmx.dispatcher=dmx-virtual-dispatcher", "-Ddmx.virtual_link_timer=true"})
+  public void virtualDispatcherAndLinkTimer() throws Exception {
+    acquireRelease();
+  }
+}
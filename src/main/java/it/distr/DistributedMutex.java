@@ -0,0 +1,153 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.pattern.PatternsCS;
+import it.distr.utils.Configuration;
+import it.distr.utils.RequestQueue;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Entry point for applications embedding the protocol. Each acquisition is asked to the node the caller runs on and completes
+once that node is inside the critical section on its behalf, so any number of acquisitions may be pending at the same time.
+Acquisitions that are not granted within the timeout fail and are withdrawn from the node. The grant is answered to a
+temporary actor that stops with it, so a lease with a timeout asks the node to report its expiry to one of its own.
+ */
+public class DistributedMutex {
+
+  //Unique among all the facades of the JVM, so that cancellations never match the acquisition of another client
+  private static final AtomicLong nextRequestId = new AtomicLong(0);
+
+  //Node ID is the index in the list
+  private final List<ActorRef> nodes;
+  private final long timeoutMillis;
+
+  public DistributedMutex(List<ActorRef> nodes) {
+    this(nodes, Configuration.ACQUIRE_TIMEOUT);
+  }
+
+  public DistributedMutex(List<ActorRef> nodes, long timeoutMillis) {
+    this.nodes = nodes;
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  public CompletionStage<Lease> acquire(int nodeId) {
+    return acquire(nodeId, Node.DEFAULT_RESOURCE);
+  }
+
+  public CompletionStage<Lease> acquire(int nodeId, String resource) {
+    return acquire(nodeId, resource, Configuration.LEASE_TIMEOUT);
+  }
+
+  //leaseMillis is the time after which the node takes the critical section back, 0 for no limit
+  public CompletionStage<Lease> acquire(int nodeId, String resource, long leaseMillis) {
+    return acquire(nodeId, resource, leaseMillis, RequestQueue.NORMAL);
+  }
+
+  //priority goes from RequestQueue.NORMAL to RequestQueue.HIGHEST, see Node.Acquire
+  public CompletionStage<Lease> acquire(int nodeId, String resource, long leaseMillis, int priority) {
+    return acquire(nodeId, resource, leaseMillis, priority, false);
+  }
+
+  //Shared access, held together with the other readers of the resource and never during an exclusive acquisition
+  public CompletionStage<Lease> acquireShared(int nodeId, String resource) {
+    return acquireShared(nodeId, resource, Configuration.LEASE_TIMEOUT);
+  }
+
+  public CompletionStage<Lease> acquireShared(int nodeId, String resource, long leaseMillis) {
+    return acquire(nodeId, resource, leaseMillis, RequestQueue.NORMAL, true);
+  }
+
+  private CompletionStage<Lease> acquire(int nodeId, String resource, long leaseMillis, int priority, boolean shared) {
+    ActorRef node = nodes.get(nodeId);
+    long requestId = nextRequestId.getAndIncrement();
+    long requestedAt = System.nanoTime();
+
+    CompletableFuture<Lease> lease = new CompletableFuture<>();
+    PatternsCS.ask(node, new Node.Acquire(resource, leaseMillis, requestId, priority, shared), timeoutMillis).whenComplete((message, error) -> {
+      if(error != null) {
+        //The node may still grant it, make sure it does not keep the critical section for nobody
+        node.tell(new Node.Cancel(resource, requestId), ActorRef.noSender());
+        lease.completeExceptionally(error);
+      } else {
+        Lease granted = new Lease(node, (Node.Granted) message, requestedAt, System.nanoTime());
+        if(leaseMillis > 0) {
+          watch(granted, leaseMillis);
+        }
+        lease.complete(granted);
+      }
+    });
+    return lease;
+  }
+
+  //The node answers within leaseMillis of the watch unless the lease is released first, then the ask just times out
+  private void watch(Lease lease, long leaseMillis) {
+    PatternsCS.ask(lease.node, new Node.WatchLease(lease.resource, lease.leaseId), leaseMillis + timeoutMillis).whenComplete((message, error) -> {
+      if(message instanceof Node.LeaseExpired && !lease.released.get()) {
+        lease.expired.complete(lease);
+      }
+    });
+  }
+
+  public static class Lease {
+    public final int nodeId;
+    public final String resource;
+    public final long leaseId;
+    //System.nanoTime() when the acquisition was issued and when the grant was received
+    public final long requestedAt;
+    public final long grantedAt;
+
+    private final ActorRef node;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+    private final CompletableFuture<Lease> expired = new CompletableFuture<>();
+
+    private Lease(ActorRef node, Node.Granted granted, long requestedAt, long grantedAt) {
+      this.node = node;
+      this.nodeId = granted.nodeId;
+      this.resource = granted.resource;
+      this.leaseId = granted.leaseId;
+      this.requestedAt = requestedAt;
+      this.grantedAt = grantedAt;
+    }
+
+    public long latencyNanos() {
+      return grantedAt - requestedAt;
+    }
+
+    //Completes if the lease timed out and the node took the critical section back before it was released
+    public CompletionStage<Lease> expired() {
+      return expired;
+    }
+
+    //Leaves the critical section, further calls have no effect
+    public void release() {
+      if(released.compareAndSet(false, true)) {
+        node.tell(new Node.Release(resource, leaseId), ActorRef.noSender());
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "lease " + leaseId + " of " + resource + " on node " + nodeId;
+    }
+  }
+}
@@ -0,0 +1,76 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+import it.distr.utils.TopologyGenerator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/*
+Builds networks of any size in time linear in the number of nodes. Instead of two NeighborInit messages per edge
+and the Init flood started by TokenInject, each node is created knowing its neighbors and its holder and receives
+one Wire message, the same instance for all nodes, with the references of the others. Tokens start in the root.
+ */
+public class NetworkBuilder {
+
+  //parents as returned by TopologyGenerator, node IDs are the indexes of the returned array
+  public static ActorRef[] build(ActorSystem system, int[] parents, ActorRef observer) {
+    int[][] neighbors = TopologyGenerator.neighbors(parents);
+    ActorRef[] nodes = new ActorRef[parents.length];
+
+    for(int i = 0; i < parents.length; i++) {
+      nodes[i] = system.actorOf(Node.props(i, holderOf(parents, i), neighbors[i], observer));
+    }
+    wire(nodes);
+    return nodes;
+  }
+
+  //Same network with the nodes running in the simulation, which the caller must run for them to initialize
+  public static ActorRef[] build(Simulation simulation, int[] parents) {
+    int[][] neighbors = TopologyGenerator.neighbors(parents);
+    ActorRef[] nodes = new ActorRef[parents.length];
+
+    for(int i = 0; i < parents.length; i++) {
+      nodes[i] = simulation.actorOf(Node.props(i, holderOf(parents, i), neighbors[i], simulation));
+    }
+    wire(nodes);
+    return nodes;
+  }
+
+  private static int holderOf(int[] parents, int nodeId) {
+    return (parents[nodeId] == -1) ? nodeId : parents[nodeId];
+  }
+
+  private static void wire(ActorRef[] nodes) {
+    Node.Wire wire = new Node.Wire(nodes);
+    for(ActorRef node : nodes) {
+      node.tell(wire, ActorRef.noSender());
+    }
+  }
+
+  //Completes once every node is initialized, whichever way the network was built
+  public static CompletionStage<Void> whenReady(ActorRef[] nodes, long timeoutMillis) {
+    CompletableFuture<?>[] replies = new CompletableFuture<?>[nodes.length];
+    for(int i = 0; i < nodes.length; i++) {
+      replies[i] = PatternsCS.ask(nodes[i], Node.IsReady.INSTANCE, timeoutMillis).toCompletableFuture();
+    }
+    return CompletableFuture.allOf(replies);
+  }
+}
@@ -16,51 +16,356 @@
 package it.distr;
 import akka.actor.ActorRef;
 import akka.actor.AbstractActor;
+import akka.actor.Cancellable;
 import akka.actor.Props;
+import akka.actor.Status;
 import it.distr.utils.Configuration;
+import it.distr.utils.DelayDistribution;
+import it.distr.utils.IntMap;
+import it.distr.utils.Journal;
 import it.distr.utils.Logger;
+import it.distr.utils.Metrics;
+import it.distr.utils.NodeMetrics;
+import it.distr.utils.PhiAccrualDetector;
+import it.distr.utils.RequestQueue;
 import it.distr.utils.Tuple;
+import it.distr.utils.VirtualThreads;
 import scala.concurrent.duration.Duration;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
 
 
 @SuppressWarnings("WeakerAccess")
 public class Node extends AbstractActor {
+  //Resource used by requests that do not name one
+  public static final String DEFAULT_RESOURCE = "default";
+
+  //Request and Privilege messages, read copies included, sent to neighbors by all the nodes of the JVM, read by the benchmarks
+  static final LongAdder tokenMessagesSent = new LongAdder();
+  //Critical section entries of all the nodes of the JVM
+  static final LongAdder csEntries = new LongAdder();
+  //Heartbeats sent and neighbors suspected by all the nodes of the JVM
+  static final LongAdder heartbeatsSent = new LongAdder();
+  static final LongAdder suspicions = new LongAdder();
+
   //Node ID
   private int myId;
-  //ID of holder node. Equals self in case we hold the token
-  private int holder;
+  //Holder of every resource without a stored token state. Points towards the node in which the tokens were injected
+  private int initialHolder;
   //IDs and references of neighboring nodes
-  private Map<Integer, ActorRef> neighbors = new HashMap<>();   // list of peer banks
-  //Request queue. Each inserted ID means that node ID requested the token
-  private Queue<Integer> request_list = new ArrayDeque<>();
-  //Indicates whether node is inside critical section
-  private boolean inside_cs;
-  //Collects neighbors state (holder id, non empty request queue) during crash restart
-  private Map<Integer, Tuple<Integer, Boolean>> recovery_info = new HashMap<>();
-
-  Random generator = new Random();
+  private IntMap<ActorRef> neighbors = new IntMap<>();   // list of peer banks
+  //Inverse of neighbors, resolves the ID of the sender of each message in constant time
+  private Map<ActorRef, Integer> neighborIds = new HashMap<>();
+  //Token state of each resource that is not in its initial state, by resource name
+  private Map<String, TokenState> tokens = new HashMap<>();
+  //Collects neighbors state during crash restart
+  private IntMap<RecoveryInfoResponse> recovery_info = new IntMap<>();
+  //Resources whose state was rebuilt during the current recovery
+  private Set<String> recoveredResources = new TreeSet<>();
+  //Set by CrashEnd or by the suspicion of every neighbor until the recovery is over, a second CrashEnd would ask
+  //neighbors that already answered
+  private boolean recovering = false;
+  //Failure detector of each neighbor, created at the first heartbeat tick after it became a neighbor
+  private IntMap<PhiAccrualDetector> detectors = new IntMap<>();
+  //Neighbors that suspected the node since it crashed, it restarts once all of them did
+  private Set<Integer> suspectedBy = new HashSet<>();
+  //Periodic HeartbeatTick, null if failure detection is disabled
+  private Cancellable heartbeatTimer;
+  //Write-ahead journal of the token states, null if persistence is disabled and while crashed
+  private Journal journal;
+  //Neighbors whose messages were dropped while crashed, asked for recovery information when restarted from the journal
+  private Set<Integer> missedNeighbors = new TreeSet<>();
+  //Neighbors whose RecoveryInfoRequest was dropped while crashed, answered when restarted from the journal
+  private Set<Integer> unansweredNeighbors = new TreeSet<>();
+  //Outgoing links, each one holding the messages that are waiting for their simulated transmission delay
+  private IntMap<DelayedLink> links = new IntMap<>();
+  //Delay applied to links with no explicitly configured distribution
+  private DelayDistribution defaultDelay = DelayDistribution.defaultDistribution();
+
+  Random generator;
+  //Virtual clock and timers of the deterministic simulation running the node, null when it runs in real time
+  private final Simulation simulation;
 
 
   private MessageBroker broker;
   private Logger logger;
+  //Null if metrics are disabled
+  private final NodeMetrics metrics;
+  //Time the last recovery started, for metrics
+  private long recoveryStartedAt;
+  //Optionally notified whenever the node enters the critical section, may be null
+  private ActorRef observer;
+  private CSEntered csEnteredNotification;
+  //Identifies the leases granted by this node, so that late releases and timeouts of past leases are recognized
+  private long nextLeaseId = 0;
+  //Arrival order of the local clients, among those of the same priority
+  private long nextWaiterSequence = 0;
+  //Critical section entries of the node itself since it last moved in the tree
+  private int ownEntries = 0;
+  //Children to adopt as soon as the node is back in normal mode
+  private List<AdoptChild> deferredAdoptions = new ArrayList<>();
+  //IDs of the neighbors given at construction, resolved to references by Wire. Null for nodes built by messages
+  private int[] wiredNeighborIds;
 
   public Node(int id) {
+    this(id, null);
+  }
+
+  public static long tokenMessagesSent() {
+    return tokenMessagesSent.sum();
+  }
+
+  public static long csEntries() {
+    return csEntries.sum();
+  }
+
+  /*
+  Node of a network built in bulk: neighbors and the direction of the token are known at construction,
+  so the node only waits for the Wire message carrying the references of all nodes instead of NeighborInit and Init
+   */
+  public Node(int id, int holderId, int[] neighborIds, ActorRef observer) {
+    this(id, holderId, neighborIds, observer, null);
+  }
+
+  Node(int id, int holderId, int[] neighborIds, ActorRef observer, Simulation simulation) {
+    this(id, observer, simulation);
+    this.initialHolder = holderId;
+    this.wiredNeighborIds = neighborIds;
+    journalInitialHolder();
+  }
+
+  public Node(int id, ActorRef observer) {
+    this(id, observer, null);
+  }
+
+  Node(int id, ActorRef observer, Simulation simulation) {
     this.myId = id;
+    this.observer = observer;
+    this.simulation = simulation;
+    //Link delays are drawn from the seed of the simulation, so that its runs can be repeated
+    this.generator = (simulation == null) ? new Random() : simulation.randomFor(id);
+    this.csEnteredNotification = new CSEntered(id, DEFAULT_RESOURCE);
     logger = new Logger(myId);
+    metrics = Metrics.register(myId);
+
+    initialHolder = -1;
 
-    holder = -1;
-    inside_cs = false;
+    if(Configuration.JOURNAL_DIR != null) {
+      try {
+        journal = Journal.create(new File(Configuration.JOURNAL_DIR), myId);
+      } catch (IOException e) {
+        throw new Error("Cannot create the journal of node " + myId, e);
+      }
+    }
 
     //Create a message broker in initialization mode
     broker = new MessageBroker();
+
+    broker.register(NeighborInit.class, this::onNeighborInit);
+    broker.register(TokenInject.class, this::onTokenInject);
+    broker.register(Init.class, this::onInit);
+    broker.register(Request.class, this::onRequest);
+    broker.register(Privilege.class, this::onPrivilege);
+    broker.register(ExitCS.class, this::onExitCS);
+    broker.register(CrashBegin.class, this::onCrashBegin);
+    broker.register(CrashEnd.class, this::onCrashEnd);
+    broker.register(RecoveryInfoRequest.class, this::onRecoveryInfoRequest);
+    broker.register(RecoveryInfoResponse.class, this::onRecoveryInfoResponse);
+    broker.register(Acquire.class, this::onAcquire);
+    broker.register(Release.class, this::onRelease);
+    broker.register(Cancel.class, this::onCancel);
+    broker.register(WatchLease.class, this::onWatchLease);
+    broker.register(LeaseTimeout.class, this::onLeaseTimeout);
+    broker.register(Wire.class, this::onWire);
+    broker.register(IsReady.class, this::onIsReady);
+    broker.register(ReadRequest.class, this::onReadRequest);
+    broker.register(ReadPrivilege.class, this::onReadPrivilege);
+    broker.register(ReadRecall.class, this::onReadRecall);
+    broker.register(ReadReturn.class, this::onReadReturn);
+
+    broker.handleDuringInit(NeighborInit.class, TokenInject.class, Init.class, Wire.class);
+    broker.handleDuringRecovery(CrashEnd.class);
+    broker.handleFromBlacklisted(RecoveryInfoResponse.class);
+    broker.handleDuringReshaping(CrashBegin.class, CrashEnd.class);
   }
 
   static public Props props(int id) {
-    return Props.create(Node.class, () -> new Node(id));
+    return configure(Props.create(Node.class, () -> new Node(id)));
+  }
+
+  static public Props props(int id, ActorRef observer) {
+    return configure(Props.create(Node.class, () -> new Node(id, observer)));
+  }
+
+  //The node holds the tokens if holderId is its own ID, otherwise holderId must be the neighbor towards them
+  static public Props props(int id, int holderId, int[] neighborIds, ActorRef observer) {
+    return configure(Props.create(Node.class, () -> new Node(id, holderId, neighborIds, observer)));
+  }
+
+  //Nodes of a simulation stay on the default dispatcher and mailbox, the ones the simulation drives
+  static Props props(int id, Simulation simulation) {
+    return Props.create(Node.class, () -> new Node(id, null, simulation));
+  }
+
+  static Props props(int id, int holderId, int[] neighborIds, Simulation simulation) {
+    return Props.create(Node.class, () -> new Node(id, holderId, neighborIds, null, simulation));
+  }
+
+  //Applies the dispatcher and the mailbox chosen for the nodes
+  private static Props configure(Props props) {
+    if(!Configuration.NODE_DISPATCHER.isEmpty()) {
+      props = props.withDispatcher(Configuration.NODE_DISPATCHER);
+    }
+    if(!Configuration.NODE_MAILBOX.isEmpty()) {
+      props = props.withMailbox(Configuration.NODE_MAILBOX);
+    }
+    return props;
+  }
+
+  /*
+  State of the token of a single resource. All resources share the spanning tree and start with their token in the node
+  where tokens were injected, so a resource whose holder is initialHolder and that has no pending requests is not stored at all.
+   */
+  private static class TokenState {
+    final String resource;
+    //ID of holder node. Equals self in case we hold the token
+    int holder;
+    //Request queue. Each inserted ID means that node ID requested the token
+    final RequestQueue request_list = Configuration.REQUEST_QUEUE.create();
+    //Indicates whether node is inside critical section
+    boolean inside_cs = false;
+    //Local clients waiting for the critical section, created on first use
+    Queue<Waiter> waiters;
+    //Client inside the critical section, null if the node entered it on a request of its own
+    Waiter lease;
+    //Set when the node itself requested the critical section, it exits after CS_DURATION
+    boolean timedRequest = false;
+    int timedPriority = RequestQueue.NORMAL;
+    //Time of the request of the node itself and of the entry in the critical section, for metrics
+    long requestedAt;
+    long enteredAt;
+    //Neighbor that lent us the token as part of a batch and wants it back, -1 if none. It is kept out of request_list
+    //so that requests arriving in the meantime can still be served before it
+    int returnTo = -1;
+    //Requests that can still be served before returning the token to returnTo
+    int batch = 0;
+    //Priority returnTo asked the token back with
+    int returnPriority = RequestQueue.NORMAL;
+    //Priority the holder was last asked the token with, by a Request or by a Privilege requiring it back. Meaningful
+    //while the token is elsewhere and requested, a more urgent request is forwarded again
+    int askedPriority = RequestQueue.NORMAL;
+    //Local clients waiting for shared access and the ones inside it by lease ID, created on first use
+    Queue<Waiter> readWaiters;
+    Map<Long, Waiter> readLeases;
+    //Set while we hold a read copy of the token, lent by holder
+    boolean copy = false;
+    //Neighbors holding a copy we lent them, and neighbors waiting for one. Created on first use like the waiters, most
+    //resources are never read: read them through copies() and copyRequests()
+    private Set<Integer> copyHolders;
+    private Set<Integer> copyRequesters;
+    //Set when a copy was asked to holder and has not arrived yet
+    boolean copyAsked = false;
+    //Set while the copies must come back: the holder has an exclusive request to serve, or our copy was recalled.
+    //No reader enters and no copy is lent until the recall is over
+    boolean recalling = false;
+
+    TokenState(String resource, int holder) {
+      this.resource = resource;
+      this.holder = holder;
+    }
+
+    boolean hasWaiters() {
+      return waiters != null && !waiters.isEmpty();
+    }
+
+    Set<Integer> copies() {
+      return (copyHolders != null) ? copyHolders : Collections.emptySet();
+    }
+
+    Set<Integer> copyRequests() {
+      return (copyRequesters != null) ? copyRequesters : Collections.emptySet();
+    }
+
+    void addCopy(int neighborId) {
+      if(copyHolders == null) {
+        copyHolders = new TreeSet<>();
+      }
+      copyHolders.add(neighborId);
+    }
+
+    boolean removeCopy(int neighborId) {
+      return copyHolders != null && copyHolders.remove(neighborId);
+    }
+
+    void addCopyRequest(int neighborId) {
+      if(copyRequesters == null) {
+        copyRequesters = new TreeSet<>();
+      }
+      copyRequesters.add(neighborId);
+    }
+
+    void removeCopyRequest(int neighborId) {
+      if(copyRequesters != null) {
+        copyRequesters.remove(neighborId);
+      }
+    }
+
+    void clearCopyRequests() {
+      if(copyRequesters != null) {
+        copyRequesters.clear();
+      }
+    }
+
+    boolean hasPendingRequests() {
+      return !request_list.isEmpty() || returnTo != -1;
+    }
+
+    //Readers inside here or behind a copy we lent
+    boolean isShared() {
+      return !copies().isEmpty() || (readLeases != null && !readLeases.isEmpty());
+    }
+
+    //Local clients or neighbors waiting for shared access
+    boolean hasReaders() {
+      return !copyRequests().isEmpty() || (readWaiters != null && !readWaiters.isEmpty());
+    }
+
+    boolean isReading() {
+      return copy || copyAsked || isShared() || hasReaders();
+    }
+  }
+
+  //Client that asked the critical section to this node
+  private static class Waiter {
+    //Clients of a node are served by priority, then in arrival order
+    static final Comparator<Waiter> ORDER = Comparator.comparingInt((Waiter waiter) -> -waiter.priority).thenComparingLong(waiter -> waiter.sequence);
+
+    //Replaced by the sender of WatchLease once the lease is granted
+    ActorRef client;
+    final long leaseMillis;
+    final long requestId;
+    final int priority;
+    final long sequence;
+    long leaseId;
+    Cancellable timeout;
+    //Time of the acquisition, for metrics
+    final long arrivedAt;
+
+    Waiter(ActorRef client, long leaseMillis, long requestId, int priority, long sequence) {
+      this.client = client;
+      this.leaseMillis = leaseMillis;
+      this.requestId = requestId;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.arrivedAt = Metrics.ENABLED ? System.nanoTime() : 0;
+    }
   }
 
   public static class NeighborInit implements Serializable {
@@ -81,383 +386,2362 @@ public class Node extends AbstractActor {
 
   public static class TokenInject implements Serializable {}
 
-  public static class Request implements Serializable {}
+  //References of all the nodes of a network built in bulk, indexed by node ID. A single instance is sent to every node
+  public static class Wire implements Serializable {
+    public final ActorRef[] nodes;
+
+    public Wire(ActorRef[] nodes) {
+      this.nodes = nodes;
+    }
+  }
+
+  //Answered with Ready once the node is initialized and in normal mode, parked by the broker until then
+  public static class IsReady implements Serializable {
+    public static final IsReady INSTANCE = new IsReady();
+
+    private Object readResolve() {
+      return INSTANCE;
+    }
+  }
+
+  public static class Ready implements Serializable {
+    public final int nodeId;
+
+    public Ready(int nodeId) {
+      this.nodeId = nodeId;
+    }
+  }
+
+  /*
+  Messages about a single resource. The broker and the traces find it here rather than testing every message type in
+  turn, and the ones moving the token or a read copy between nodes count as token messages for the benchmarks
+   */
+  interface ResourceMessage {
+    String resource();
+
+    default boolean isTokenMessage() {
+      return false;
+    }
+  }
+
+  //Messages of the default resource are shared instances so that sending them does not allocate
+  public static class Request implements Serializable, ResourceMessage {
+    public static final Request INSTANCE = new Request(DEFAULT_RESOURCE);
+
+    public final String resource;
+    //Priority of the most urgent requester the sender asks the token for. A sender already waiting asks again when a
+    //more urgent request reaches it, raising the priority of its place in the request list of the receiver
+    public final int priority;
+
+    public Request(String resource) {
+      this(resource, RequestQueue.NORMAL);
+    }
+
+    public Request(String resource, int priority) {
+      RequestQueue.checkPriority(priority);
+      this.resource = resource;
+      this.priority = priority;
+    }
+
+    public static Request of(String resource) {
+      return DEFAULT_RESOURCE.equals(resource) ? INSTANCE : new Request(resource);
+    }
+
+    public static Request of(String resource, int priority) {
+      return (priority == RequestQueue.NORMAL) ? of(resource) : new Request(resource, priority);
+    }
+
+    private Object readResolve() {
+      return of(resource, priority);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+
+    @Override
+    public boolean isTokenMessage() {
+      return true;
+    }
+  }
+
+  public static class Privilege implements Serializable, ResourceMessage {
+    private static final Privilege TOKEN_BACK = new Privilege(DEFAULT_RESOURCE, true);
+    private static final Privilege NO_TOKEN_BACK = new Privilege(DEFAULT_RESOURCE, false);
 
-  public static class Privilege implements Serializable {
+    public final String resource;
     public final boolean requiresTokenBack;
+    //Requests arriving at the receiver that it may serve before giving the token back, only if requiresTokenBack
+    public final int batch;
+    //Priority the sender asks the token back with, only if requiresTokenBack
+    public final int priority;
+
+    public Privilege(String resource, boolean requiresTokenBack) {
+      this(resource, requiresTokenBack, 0);
+    }
+
+    public Privilege(String resource, boolean requiresTokenBack, int batch) {
+      this(resource, requiresTokenBack, batch, RequestQueue.NORMAL);
+    }
 
-    public Privilege(boolean requiresTokenBack) {
+    public Privilege(String resource, boolean requiresTokenBack, int batch, int priority) {
+      RequestQueue.checkPriority(priority);
+      this.resource = resource;
       this.requiresTokenBack = requiresTokenBack;
+      this.batch = batch;
+      this.priority = priority;
+    }
+
+    public static Privilege of(boolean requiresTokenBack) {
+      return requiresTokenBack ? TOKEN_BACK : NO_TOKEN_BACK;
+    }
+
+    public static Privilege of(String resource, boolean requiresTokenBack) {
+      return DEFAULT_RESOURCE.equals(resource) ? of(requiresTokenBack) : new Privilege(resource, requiresTokenBack);
+    }
+
+    public static Privilege of(String resource, boolean requiresTokenBack, int batch) {
+      return of(resource, requiresTokenBack, batch, RequestQueue.NORMAL);
+    }
+
+    public static Privilege of(String resource, boolean requiresTokenBack, int batch, int priority) {
+      boolean plain = !requiresTokenBack || (batch == 0 && priority == RequestQueue.NORMAL);
+      return plain ? of(resource, requiresTokenBack) : new Privilege(resource, true, batch, priority);
+    }
+
+    private Object readResolve() {
+      return of(resource, requiresTokenBack, batch, priority);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+
+    @Override
+    public boolean isTokenMessage() {
+      return true;
     }
   }
 
-  public static class RecoveryInfoRequest implements Serializable {}
+  //Asks the state of all the resources, the crashed node does not know which ones exist
+  public static class RecoveryInfoRequest implements Serializable {
+    public static final RecoveryInfoRequest INSTANCE = new RecoveryInfoRequest();
+
+    private Object readResolve() {
+      return INSTANCE;
+    }
+  }
 
+  //Holder and whether the request list is not empty for each resource of the sender that is not in its initial state.
+  //Resources that are not listed have defaultHolderId as holder and no requests
   public static class RecoveryInfoResponse implements Serializable {
-    public final int holderId;
-    public final boolean requestListNotEmpty;
+    //Read copies the sender shares with the receiver, in copyStates: it holds one the receiver lent it, it lent one
+    //to the receiver, it waits for one from the receiver
+    public static final byte COPY_HELD = 1;
+    public static final byte COPY_LENT = 2;
+    public static final byte COPY_WANTED = 4;
+
+    public final int defaultHolderId;
+    public final String[] resources;
+    public final int[] holderIds;
+    public final boolean[] requestListNotEmpty;
+    public final byte[] copyStates;
+
+    //Position of each resource in the arrays, built on first lookup
+    private transient Map<String, Integer> positions;
+
+    public RecoveryInfoResponse(int defaultHolderId) {
+      this(defaultHolderId, new String[0], new int[0], new boolean[0]);
+    }
 
-    public RecoveryInfoResponse(int holderId, boolean requestListNotEmpty) {
-      this.holderId = holderId;
+    public RecoveryInfoResponse(int defaultHolderId, String[] resources, int[] holderIds, boolean[] requestListNotEmpty) {
+      this(defaultHolderId, resources, holderIds, requestListNotEmpty, new byte[resources.length]);
+    }
+
+    public RecoveryInfoResponse(int defaultHolderId, String[] resources, int[] holderIds, boolean[] requestListNotEmpty, byte[] copyStates) {
+      this.defaultHolderId = defaultHolderId;
+      this.resources = resources;
+      this.holderIds = holderIds;
       this.requestListNotEmpty = requestListNotEmpty;
+      this.copyStates = copyStates;
+    }
+
+    private Integer positionOf(String resource) {
+      if(positions == null) {
+        positions = new HashMap<>();
+        for(int i = 0; i < resources.length; i++) {
+          positions.put(resources[i], i);
+        }
+      }
+      return positions.get(resource);
+    }
+
+    public int holderOf(String resource) {
+      Integer position = positionOf(resource);
+      return (position == null) ? defaultHolderId : holderIds[position];
+    }
+
+    public boolean requestListNotEmpty(String resource) {
+      Integer position = positionOf(resource);
+      return (position != null) && requestListNotEmpty[position];
+    }
+
+    public int copyState(String resource) {
+      Integer position = positionOf(resource);
+      return (position == null) ? 0 : copyStates[position];
     }
   }
-  public static class ExitCS implements Serializable {}
 
-  public static class CrashBegin implements Serializable {}
+  public static class ExitCS implements Serializable, ResourceMessage {
+    public static final ExitCS INSTANCE = new ExitCS(DEFAULT_RESOURCE);
 
-  public static class CrashEnd implements Serializable {}
+    public final String resource;
 
-  private int getIdBySender(ActorRef sender) {
+    public ExitCS(String resource) {
+      this.resource = resource;
+    }
 
-    if(sender.equals(getSelf())) return myId; // my id is not in the neighbor list, handled here
+    public static ExitCS of(String resource) {
+      return DEFAULT_RESOURCE.equals(resource) ? INSTANCE : new ExitCS(resource);
+    }
+
+    private Object readResolve() {
+      return of(resource);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+  }
+
+  //Asks a read copy of the token to the holder, on behalf of the local readers and of the neighbors behind the sender
+  public static class ReadRequest implements Serializable, ResourceMessage {
+    public static final ReadRequest INSTANCE = new ReadRequest(DEFAULT_RESOURCE);
+
+    public final String resource;
+
+    public ReadRequest(String resource) {
+      this.resource = resource;
+    }
+
+    public static ReadRequest of(String resource) {
+      return DEFAULT_RESOURCE.equals(resource) ? INSTANCE : new ReadRequest(resource);
+    }
+
+    private Object readResolve() {
+      return of(resource);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+
+    @Override
+    public boolean isTokenMessage() {
+      return true;
+    }
+  }
+
+  //Read copy of the token, lent by the holder or by a node holding one
+  public static class ReadPrivilege implements Serializable, ResourceMessage {
+    public static final ReadPrivilege INSTANCE = new ReadPrivilege(DEFAULT_RESOURCE);
+
+    public final String resource;
+
+    public ReadPrivilege(String resource) {
+      this.resource = resource;
+    }
+
+    public static ReadPrivilege of(String resource) {
+      return DEFAULT_RESOURCE.equals(resource) ? INSTANCE : new ReadPrivilege(resource);
+    }
+
+    private Object readResolve() {
+      return of(resource);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+
+    @Override
+    public boolean isTokenMessage() {
+      return true;
+    }
+  }
+
+  //Asks a copy back, the receiver returns it once its readers left and the copies it lent are back
+  public static class ReadRecall implements Serializable, ResourceMessage {
+    public static final ReadRecall INSTANCE = new ReadRecall(DEFAULT_RESOURCE);
+
+    public final String resource;
+
+    public ReadRecall(String resource) {
+      this.resource = resource;
+    }
+
+    public static ReadRecall of(String resource) {
+      return DEFAULT_RESOURCE.equals(resource) ? INSTANCE : new ReadRecall(resource);
+    }
+
+    private Object readResolve() {
+      return of(resource);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+
+    @Override
+    public boolean isTokenMessage() {
+      return true;
+    }
+  }
+
+  //Gives a copy back to the node that lent it
+  public static class ReadReturn implements Serializable, ResourceMessage {
+    public static final ReadReturn INSTANCE = new ReadReturn(DEFAULT_RESOURCE);
+
+    public final String resource;
+
+    public ReadReturn(String resource) {
+      this.resource = resource;
+    }
+
+    public static ReadReturn of(String resource) {
+      return DEFAULT_RESOURCE.equals(resource) ? INSTANCE : new ReadReturn(resource);
+    }
+
+    private Object readResolve() {
+      return of(resource);
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+
+    @Override
+    public boolean isTokenMessage() {
+      return true;
+    }
+  }
+
+  public static class CSEntered implements Serializable {
+    public final int nodeId;
+    public final String resource;
+
+    public CSEntered(int nodeId, String resource) {
+      this.nodeId = nodeId;
+      this.resource = resource;
+    }
+  }
+
+  //Sent by a client to the node it runs on. The client is answered with Granted once inside the critical section
+  //and must send Release when done
+  public static class Acquire implements Serializable, ResourceMessage {
+    //Acquisitions that cannot be cancelled
+    public static final long NO_REQUEST_ID = -1;
+
+    public final String resource;
+    //Time after which the client is forced out of the critical section, 0 for no limit
+    public final long leaseMillis;
+    //Chosen by the client to cancel the acquisition
+    public final long requestId;
+    //Clients of the same node are served by priority. Between nodes priorities only count if the request queue
+    //discipline (dmx.request_queue) is not fifo
+    public final int priority;
+    //Asks shared access, granted together with the other readers and never during an exclusive one. Readers ignore
+    //priority
+    public final boolean shared;
+
+    public Acquire(String resource) {
+      this(resource, Configuration.LEASE_TIMEOUT);
+    }
+
+    public Acquire(String resource, long leaseMillis) {
+      this(resource, leaseMillis, NO_REQUEST_ID);
+    }
+
+    public Acquire(String resource, long leaseMillis, long requestId) {
+      this(resource, leaseMillis, requestId, RequestQueue.NORMAL);
+    }
+
+    public Acquire(String resource, long leaseMillis, long requestId, int priority) {
+      this(resource, leaseMillis, requestId, priority, false);
+    }
+
+    public Acquire(String resource, long leaseMillis, long requestId, int priority, boolean shared) {
+      RequestQueue.checkPriority(priority);
+      this.resource = resource;
+      this.leaseMillis = leaseMillis;
+      this.requestId = requestId;
+      this.priority = priority;
+      this.shared = shared;
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+  }
+
+  //Withdraws an acquisition whose client stopped waiting. If it was already granted the critical section is released
+  public static class Cancel implements Serializable, ResourceMessage {
+    public final String resource;
+    public final long requestId;
+
+    public Cancel(String resource, long requestId) {
+      this.resource = resource;
+      this.requestId = requestId;
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+  }
+
+  public static class Granted implements Serializable {
+    public final int nodeId;
+    public final String resource;
+    public final long leaseId;
 
-    for(Map.Entry<Integer, ActorRef> entry : neighbors.entrySet()) {
-      if(entry.getValue().equals(sender)) {
-        return entry.getKey();
+    public Granted(int nodeId, String resource, long leaseId) {
+      this.nodeId = nodeId;
+      this.resource = resource;
+      this.leaseId = leaseId;
+    }
+  }
+
+  public static class Release implements Serializable, ResourceMessage {
+    public final String resource;
+    public final long leaseId;
+
+    public Release(String resource, long leaseId) {
+      this.resource = resource;
+      this.leaseId = leaseId;
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+  }
+
+  //Sent to the client when its lease timed out and the critical section was taken away from it
+  public static class LeaseExpired implements Serializable {
+    public final int nodeId;
+    public final String resource;
+    public final long leaseId;
+
+    public LeaseExpired(int nodeId, String resource, long leaseId) {
+      this.nodeId = nodeId;
+      this.resource = resource;
+      this.leaseId = leaseId;
+    }
+  }
+
+  //Sent by the holder of a lease to get LeaseExpired from now on, as the client that asked it may be gone. A lease that is
+  //no longer held is reported right away
+  public static class WatchLease implements Serializable, ResourceMessage {
+    public final String resource;
+    public final long leaseId;
+
+    public WatchLease(String resource, long leaseId) {
+      this.resource = resource;
+      this.leaseId = leaseId;
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+  }
+
+  //Sent to self when a lease may have timed out
+  private static class LeaseTimeout implements Serializable, ResourceMessage {
+    public final String resource;
+    public final long leaseId;
+
+    public LeaseTimeout(String resource, long leaseId) {
+      this.resource = resource;
+      this.leaseId = leaseId;
+    }
+
+    @Override
+    public String resource() {
+      return resource;
+    }
+  }
+
+  //Sent by a leaf to its neighbor to be attached to the next node on the path to the token of resource instead
+  public static class ReparentRequest implements Serializable {
+    public final String resource;
+
+    public ReparentRequest(String resource) {
+      this.resource = resource;
+    }
+  }
+
+  public static class ReparentRefused implements Serializable {
+    public static final ReparentRefused INSTANCE = new ReparentRefused();
+
+    private Object readResolve() {
+      return INSTANCE;
+    }
+  }
+
+  //Sent by the old neighbor of the leaf to its new one
+  public static class AdoptChild implements Serializable {
+    public final int childId;
+    public final ActorRef childRef;
+
+    public AdoptChild(int childId, ActorRef childRef) {
+      this.childId = childId;
+      this.childRef = childRef;
+    }
+  }
+
+  //Sent by the new neighbor to the leaf, which is not yet able to resolve its ID
+  public static class Adopted implements Serializable {
+    public final int parentId;
+
+    public Adopted(int parentId) {
+      this.parentId = parentId;
+    }
+  }
+
+  //Ignored inside a critical section, while moving in the tree and next to any of the nodes given as down: recovery needs
+  //the state of every neighbor, two neighbors down would each wait for the other. The node checks the neighbors it has
+  //now, which reshaping may have changed since the network was built
+  public static class CrashBegin implements Serializable {
+    public final int[] downNodeIds;
+
+    public CrashBegin() {
+      this(new int[0]);
+    }
+
+    public CrashBegin(int[] downNodeIds) {
+      this.downNodeIds = downNodeIds;
+    }
+  }
+
+  //Answer to the sender of CrashBegin, whether the node crashed or ignored it
+  public static class CrashOutcome implements Serializable {
+    public final int nodeId;
+    public final boolean crashed;
+
+    public CrashOutcome(int nodeId, boolean crashed) {
+      this.nodeId = nodeId;
+      this.crashed = crashed;
+    }
+  }
+
+  public static class CrashEnd implements Serializable {}
+
+  public static class SetLinkDelay implements Serializable {
+    //Applies to every link if equal to ALL_LINKS
+    public static final int ALL_LINKS = -1;
+
+    public final int neighborId;
+    public final DelayDistribution distribution;
+
+    public SetLinkDelay(int neighborId, DelayDistribution distribution) {
+      this.neighborId = neighborId;
+      this.distribution = distribution;
+    }
+  }
+
+  //Sent to each neighbor every heartbeat interval, tells it that the node did not crash
+  public static class Heartbeat implements Serializable {
+    public static final Heartbeat INSTANCE = new Heartbeat();
+
+    private Object readResolve() {
+      return INSTANCE;
+    }
+  }
+
+  //Sent to a neighbor that exceeded the suspicion threshold, a live node answers with a heartbeat
+  public static class Suspected implements Serializable {
+    public static final Suspected INSTANCE = new Suspected();
+
+    private Object readResolve() {
+      return INSTANCE;
+    }
+  }
+
+  //Sent to self every heartbeat interval
+  private static class HeartbeatTick implements Serializable {
+    public static final HeartbeatTick INSTANCE = new HeartbeatTick();
+  }
+
+  //Sent to self when messages waiting on a link may have reached their delivery time
+  private static class LinkFlush implements Serializable {
+    public final int destId;
+
+    public LinkFlush(int destId) {
+      this.destId = destId;
+    }
+  }
+
+  private int getIdBySender(ActorRef sender) {
+
+    Integer senderId = neighborIds.get(sender);
+    if(senderId != null) return senderId;
+
+    if(sender.equals(getSelf())) return myId; // my id is not in the neighbor list, handled here
+
+    logger.logError("getIdBySender() cannot find ID!");
+    throw new Error("Cannot find id for neighbor " + sender.toString());
+  }
+
+  private ActorRef getNeighborRef(int neighborId) {
+    return neighbors.get(neighborId);
+  }
+
+  private DelayedLink getLink(int destId) {
+    DelayedLink link = links.get(destId);
+    if(link == null) {
+      link = new DelayedLink(destId, defaultDelay);
+      links.put(destId, link);
+    }
+    return link;
+  }
+
+  //Link to a node that is no longer a neighbor: the messages still in transit on it are delivered, then it is dropped
+  private void retireLink(int formerNeighborId, ActorRef formerNeighborRef) {
+    DelayedLink link = links.get(formerNeighborId);
+    if(link == null) {
+      return;
+    }
+    if(link.isIdle()) {
+      links.remove(formerNeighborId);
+    } else {
+      link.retiredRef = formerNeighborRef;
+    }
+  }
+
+  private void tellWrapper(int destId, Object message) {
+    tellWrapper(destId, message, false);
+  }
+
+  //Sends a message to a neighbor (or to self) through the simulated link, never blocking the dispatcher
+  private void tellWrapper(int destId, Object message, boolean bypass_delay) {
+    if(destId != myId && message instanceof ResourceMessage && ((ResourceMessage) message).isTokenMessage()) {
+      tokenMessagesSent.increment();
+    } else if(message == Heartbeat.INSTANCE) {
+      heartbeatsSent.increment();
+    }
+    if(Metrics.ENABLED) {
+      metrics.sent(message);
+    }
+    getLink(destId).send(message, bypass_delay);
+  }
+
+  public void onSetLinkDelay(SetLinkDelay message) {
+    if(message.neighborId == SetLinkDelay.ALL_LINKS) {
+      defaultDelay = message.distribution;
+      for(DelayedLink link : links.values()) {
+        link.distribution = message.distribution;
+      }
+    } else {
+      getLink(message.neighborId).distribution = message.distribution;
+    }
+
+    logger.logDebug(() -> "onSetLinkDelay() - delay of link " + (message.neighborId == SetLinkDelay.ALL_LINKS ? "*" : message.neighborId) + " set to " + message.distribution);
+  }
+
+  public void onLinkFlush(LinkFlush message) {
+    getLink(message.destId).flush();
+  }
+
+  public void onTokenInject(TokenInject message, ActorRef sender) {
+    initialHolder = myId;
+    journalInitialHolder();
+
+    for(int neighborId : neighbors.keys()) {
+      tellWrapper(neighborId, new Init(myId), true);
+    }
+
+    broker.changeMode(BrokerMode.NORMAL_MODE);
+
+    logger.logDebug(() -> "Token injected!" + "   " + "holder: " + initialHolder + "   " + "neighbors: " + neighbors.toString());
+
+  }
+
+  public void onNeighborInit(NeighborInit message, ActorRef sender) {
+    ActorRef oldRef = neighbors.put(message.nodeId, message.nodeRef);
+    if(oldRef != null) {
+      neighborIds.remove(oldRef);
+    }
+    neighborIds.put(message.nodeRef, message.nodeId);
+  }
+
+  public void onInit(Init message, ActorRef sender) {
+    initialHolder = getIdBySender(sender);
+    journalInitialHolder();
+
+    for(int neighborId : neighbors.keys()) {
+      if(neighborId != initialHolder) {
+        tellWrapper(neighborId, new Init(myId), true);
+      }
+    }
+
+    broker.changeMode(BrokerMode.NORMAL_MODE);
+
+    logger.logDebug(() -> "Init received!" + "   " + "holder: " + initialHolder + "   " + "neighbors: " + neighbors.toString());
+  }
+
+  public void onWire(Wire message, ActorRef sender) {
+    if(!(wiredNeighborIds != null)) logger.logError("assertion - onWire() node was not built in bulk");
+    assert(wiredNeighborIds != null);
+
+    for(int neighborId : wiredNeighborIds) {
+      onNeighborInit(new NeighborInit(neighborId, message.nodes[neighborId]), sender);
+    }
+    wiredNeighborIds = null;
+
+    broker.changeMode(BrokerMode.NORMAL_MODE);
+
+    logger.logDebug(() -> "Wired!" + "   " + "holder: " + initialHolder + "   " + "neighbors: " + neighbors.toString());
+  }
+
+  public void onIsReady(IsReady message, ActorRef sender) {
+    sender.tell(new Ready(myId), getSelf());
+  }
+
+  private TokenState getToken(String resource) {
+    TokenState token = tokens.get(resource);
+    if(token == null) {
+      token = new TokenState(resource, initialHolder);
+      tokens.put(resource, token);
+    }
+    return token;
+  }
+
+  //Forgets the state of a resource that went back to its initial state. The default resource is kept so that
+  //single lock use does not allocate
+  private void releaseIfIdle(TokenState token) {
+    if(token.holder == initialHolder && !token.hasPendingRequests() && !token.inside_cs && !token.hasWaiters() && !token.timedRequest && !token.isReading() && !DEFAULT_RESOURCE.equals(token.resource)) {
+      tokens.remove(token.resource, token);
+    }
+  }
+
+  private boolean isInsideAnyCS() {
+    for(TokenState token : tokens.values()) {
+      if(token.inside_cs || (token.readLeases != null && !token.readLeases.isEmpty())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  //Called after every change of the state of a resource, which is also written to the journal
+  private void logNodeState(TokenState token) {
+    logger.logNodeState(token.resource, token.holder, token.request_list, token.inside_cs);
+    if(journal != null && !journal.appendToken(token.resource, token.holder, token.request_list, token.returnTo, token.batch, token.timedRequest,
+            token.copy, token.copyAsked, token.copies(), token.copyRequests())) {
+      snapshotJournal();
+    }
+  }
+
+  private void journalInitialHolder() {
+    if(journal != null && !journal.appendInitialHolder(initialHolder)) {
+      snapshotJournal();
+    }
+  }
+
+  //Replaces the journal, which is full, with the current state. The record that did not fit is part of it
+  private void snapshotJournal() {
+    List<Journal.Entry> entries = new ArrayList<>(tokens.size());
+    for(TokenState token : tokens.values()) {
+      entries.add(new Journal.Entry(token.resource, token.holder, token.request_list.toArray(), token.returnTo, token.batch, token.timedRequest,
+              token.copy, token.copyAsked, toArray(token.copies()), toArray(token.copyRequests())));
+    }
+    try {
+      journal.snapshot(initialHolder, entries);
+    } catch (IOException e) {
+      throw new Error("Cannot write the snapshot of node " + myId, e);
+    }
+    logger.logDebug(() -> "snapshotJournal() - journal replaced by a snapshot of " + entries.size() + " resources");
+  }
+
+  private static int[] toArray(Set<Integer> ids) {
+    return ids.stream().mapToInt(Integer::intValue).toArray();
+  }
+
+  private void logAllNodeStates() {
+    for(TokenState token : tokens.values()) {
+      logNodeState(token);
+    }
+  }
+
+  public void onRequest(Request message, ActorRef sender) {
+    int requesterId = getIdBySender(sender);
+    TokenState token = getToken(message.resource);
+
+    if(requesterId == myId) {
+      if(token.timedRequest) {
+        logger.logWarning("onRequest() - duplicated request for " + token.resource + " received from " + requesterId + " request was dropped");
+        return;
+      }
+      token.timedRequest = true;
+      token.timedPriority = message.priority;
+      if(Metrics.ENABLED) {
+        token.requestedAt = System.nanoTime();
+      }
+
+      //Already queued on behalf of local clients, the request is served after them
+      if(token.inside_cs || token.request_list.contains(myId)) {
+        raise(token, myId, ownPriority(token));
+        logNodeState(token);
+        return;
+      }
+    }
+
+    handleRequest(token, requesterId, (requesterId == myId) ? ownPriority(token) : message.priority);
+    if(Metrics.ENABLED) {
+      Metrics.requestListDepth.record(token.request_list.size());
+    }
+
+    logNodeState(token);
+    releaseIfIdle(token);
+    maybeReparent(token.resource);
+  }
+
+  private void handleRequest(TokenState token, int requesterId, int priority) {
+
+    logger.logDebug(() -> "onRequest() - request for " + token.resource + " received from: " + requesterId);
+
+    //A requester already waiting only asks again with a higher priority, otherwise it means we had duplicate request which is bad
+    if(token.request_list.contains(requesterId)) {
+      if(!raise(token, requesterId, priority)) {
+        logger.logWarning("onRequest() - duplicated request for " + token.resource + " received from " + requesterId + " (did he crash?) request was dropped");
+      }
+      return;
+    }
+
+    //If request comes from my holder he probably crashed (it sent the request during onCrashExit). A higher priority
+    //may also cross the token we sent it
+    if(requesterId == token.holder && token.holder != myId) {
+      logger.logWarning("onRequest() - request for " + token.resource + " received from holder " + requesterId + " (did he crash?) request was dropped");
+      return;
+    }
+
+    //The lender of the token wants it back more urgently, the batch is over
+    if(requesterId == token.returnTo) {
+      if(priority > token.returnPriority) {
+        token.request_list.add(token.returnTo, priority, nanoTime());
+        token.returnTo = -1;
+        token.batch = 0;
+        requestAgain(token);
+      }
+      return;
+    }
+
+    //if(!(!request_list.contains(requesterId))) logger.logError("assertion - duplicated request");
+    assert(!token.request_list.contains(requesterId));
+
+    //Must forward the request to the holder or satisfy it if I am the holder and not in cs
+    if(!token.hasPendingRequests()) {
+      if(token.inside_cs) {
+        token.request_list.add(requesterId, priority, nanoTime()); //Put in the list, as soon as I exit I will grant it
+
+      } else if(token.holder == myId && token.isShared()) {
+        //Readers are inside, I grant it once they left and the copies came back
+        token.request_list.add(requesterId, priority, nanoTime());
+        recall(token);
+
+      } else if(token.holder == myId) {
+
+        //If the request message is sent by myself, add me to the request_list
+        //so that giveAccessToFirst() will be called (after Privilege message received) and i will enter the CS
+        if(requesterId == myId) {
+          token.request_list.add(requesterId, priority, nanoTime());
+        }
+        //Grant the privilege and say I don't require token back because I have no other pending requests
+        tellWrapper(requesterId, Privilege.of(token.resource, false));
+
+        logger.logDebug(() -> "onRequest() - privilege for " + token.resource + " sent to: " + requesterId);
+
+        token.holder = requesterId;
+      } else {
+        //Request token on behalf of requester to my holder
+        token.request_list.add(requesterId, priority, nanoTime());
+
+        ActorRef holderRef = getNeighborRef(token.holder);
+        if(!(holderRef != null)) logger.logError("assertion - no ActorRef found for my holderId");
+        assert(holderRef != null);
+
+        tellWrapper(token.holder, Request.of(token.resource, priority));
+        token.askedPriority = priority;
+
+        logger.logDebug(() -> "onRequest() - request for " + token.resource + " forwarded to: " + token.holder);
+      }
+    } else {
+      //Put in the list, but I already requested privilege before, so don't send a duplicate request unless this one is more urgent
+      enqueue(token, requesterId, priority);
+      requestAgain(token);
+    }
+  }
+
+  //Adds a requester behind the ones already waiting. While the token is lent to us as part of a batch, requesters go
+  //ahead of the lender until the batch is used up
+  private void enqueue(TokenState token, int requesterId, int priority) {
+    if(token.returnTo != -1) {
+      if(token.batch > 0) {
+        token.batch--;
+      } else {
+        token.request_list.add(token.returnTo, token.returnPriority, nanoTime());
+        token.returnTo = -1;
+      }
+    }
+    token.request_list.add(requesterId, priority, nanoTime());
+  }
+
+  //Raises the priority of a queued requester, returns false if the discipline did not change its place
+  private boolean raise(TokenState token, int requesterId, int priority) {
+    if(!token.request_list.raise(requesterId, priority)) {
+      return false;
+    }
+    logger.logDebug(() -> "raise() - request of " + requesterId + " for " + token.resource + " raised to priority " + priority);
+    requestAgain(token);
+    return true;
+  }
+
+  //Asks the token again if it is elsewhere and a request more urgent than the one the holder knows of is waiting here.
+  //The holder raises our place in its request list
+  private void requestAgain(TokenState token) {
+    int priority = token.request_list.highestPriority();
+    if(token.holder != myId && priority > token.askedPriority) {
+      tellWrapper(token.holder, Request.of(token.resource, priority));
+      token.askedPriority = priority;
+
+      logger.logDebug(() -> "requestAgain() - request for " + token.resource + " forwarded again to " + token.holder + " with priority " + priority);
+    }
+  }
+
+  //Priority of the request of the node for itself: the most urgent among its clients and its own timed request
+  private int ownPriority(TokenState token) {
+    int priority = token.timedRequest ? token.timedPriority : RequestQueue.NORMAL;
+    if(token.hasWaiters()) {
+      priority = Math.max(priority, token.waiters.peek().priority);
+    }
+    return priority;
+  }
+
+  void giveAccessToFirst(String resource) {
+    giveAccessToFirst(getToken(resource));
+  }
+
+  private void giveAccessToFirst(TokenState token) {
+    //Only the lender is left, the batch is over
+    if(token.request_list.isEmpty() && token.returnTo != -1) {
+      token.request_list.add(token.returnTo, token.returnPriority, nanoTime());
+      token.returnTo = -1;
+    }
+
+    //Fetches the first element
+    if(!(!token.request_list.isEmpty())) logger.logError("assertion - giveAccessToFirst() but request_list is empty");
+    assert(!token.request_list.isEmpty());
+    int oldLength = token.request_list.size();
+    int first_requester = token.request_list.poll(nanoTime());
+    if(!(token.request_list.size() == oldLength - 1)) logger.logError("assertion - giveAccessToFirst() but not updated request_list");
+    assert(token.request_list.size() == oldLength - 1);
+
+    if(first_requester == myId) {
+      //The most urgent between the clients and the request of the node itself goes first
+      boolean timedFirst = token.timedRequest && (!token.hasWaiters() || token.timedPriority > token.waiters.peek().priority);
+      if(token.hasWaiters() && !timedFirst) {
+        //The client decides how long to stay inside
+        ownEntries++;
+        csEntries.increment();
+        grantLease(token, token.waiters.poll());
+      } else if(!token.timedRequest) {
+        //Every local client cancelled its acquisition, serve the next requester if any
+        logger.logDebug(() -> "giveAccessToFirst() - no one is waiting for " + token.resource + " anymore");
+        if(token.hasPendingRequests()) {
+          giveAccessToFirst(token);
+        }
+        return;
+      } else {
+        //Request of the node itself, exits after a fixed time
+        ownEntries++;
+        csEntries.increment();
+        token.timedRequest = false;
+        if(Metrics.ENABLED) {
+          Metrics.grantLatency.record(Metrics.micros(System.nanoTime() - token.requestedAt));
+        }
+        ExitCS exitCS = ExitCS.of(token.resource);
+        if(Configuration.CS_DURATION == 0) {
+          //Avoid the scheduler, its resolution is much coarser than an immediate exit
+          getSelf().tell(exitCS, getSelf());
+        } else {
+          scheduleOnce(TimeUnit.MILLISECONDS.toNanos(Configuration.CS_DURATION), exitCS);
+        }
+      }
+      token.inside_cs = true;
+      if(simulation != null) {
+        simulation.csEntered(myId, token.resource, false);
+      }
+      if(Metrics.ENABLED) {
+        token.enteredAt = System.nanoTime();
+        metrics.csEntries.incrementAndGet();
+      }
+      if(observer != null) {
+        observer.tell(DEFAULT_RESOURCE.equals(token.resource) ? csEnteredNotification : new CSEntered(myId, token.resource), getSelf());
+      }
+      logger.logInfo(DEFAULT_RESOURCE.equals(token.resource) ? "ENTER CS" : "ENTER CS " + token.resource);
+    } else {
+      boolean need_privilege_back = token.hasPendingRequests();
+      int priority = token.request_list.highestPriority();
+      if(token.returnTo != -1) {
+        priority = Math.max(priority, token.returnPriority);
+      }
+      //Send a privilege to the node to serve and ask it back if I have other requests.
+      tellWrapper(first_requester, Privilege.of(token.resource, need_privilege_back, Configuration.PRIVILEGE_BATCH, priority));
+      token.askedPriority = priority;
+      //It serves its readers itself, ours ask it a copy
+      token.removeCopyRequest(first_requester);
+
+      logger.logDebug(() -> "giveAccessToFirst() - privilege for " + token.resource + " sent to: " + first_requester);
+
+      token.holder = first_requester;
+    }
+  }
+
+  public void onPrivilege(Privilege message, ActorRef sender) {
+
+    int senderId = getIdBySender(sender);
+    TokenState token = getToken(message.resource);
+    //After a crash it is not meaningful to recover the fact whether we wanted or not to access the critical section before the crash, because that decision
+    //must be taken by the logic of the restarted application and not by the old one.
+    //For this reason we may receive a privilege and have an empty request list (Eg scenario_4.txt)
+    if(!token.hasPendingRequests()) {
+      logger.logWarning("onPrivilege - privilege for " + token.resource + " received from " + senderId + " but request list is empty. Did we crash?");
+    }
+
+    logger.logDebug(() -> "onPrivilege() - privilege for " + token.resource + " received from: " + senderId);
+
+    token.holder = myId;
+    token.copyAsked = false;
+
+    //If the token is required by the previous owner (to compete other requests) add the sender to the request_list
+    boolean requiresTokenBack = message.requiresTokenBack;
+    if(requiresTokenBack) {
+      //A batch lets our subtree use the token for new requests too before it goes back. Not if the token is coming back
+      //from a node we lent it to ourselves, the batch we received still applies and the sender uses it up like any
+      //other requester: two neighbors each owing the token to a lender of their own would otherwise keep passing it
+      //to each other
+      if(message.batch > 0 && token.returnTo == -1 && !token.request_list.isEmpty()) {
+        token.returnTo = senderId;
+        token.returnPriority = message.priority;
+        token.batch = message.batch;
+      } else {
+        enqueue(token, senderId, message.priority);
+      }
+    }
+
+    //Check whether we have requests to serve. Due to crash dynamics it may not happen if our request was the only one at the moment of crash.
+    if(token.hasPendingRequests()) {
+      giveAccessToFirst(token);
+    }
+    share(token);
+
+    logNodeState(token);
+    releaseIfIdle(token);
+  }
+
+  private void grantLease(TokenState token, Waiter waiter) {
+    waiter.leaseId = nextLeaseId++;
+    token.lease = waiter;
+
+    if(waiter.leaseMillis > 0) {
+      waiter.timeout = scheduleOnce(TimeUnit.MILLISECONDS.toNanos(waiter.leaseMillis), new LeaseTimeout(token.resource, waiter.leaseId));
+    }
+    waiter.client.tell(new Granted(myId, token.resource, waiter.leaseId), getSelf());
+    if(Metrics.ENABLED) {
+      Metrics.grantLatency.record(Metrics.micros(System.nanoTime() - waiter.arrivedAt));
+    }
+
+    logger.logDebug(() -> "grantLease() - lease " + waiter.leaseId + " of " + token.resource + " granted to " + waiter.client);
+  }
+
+  private void exitCS(TokenState token) {
+    token.inside_cs = false;
+    if(simulation != null) {
+      simulation.csExited(myId, token.resource, false);
+    }
+    if(Metrics.ENABLED) {
+      Metrics.holdTime.record(Metrics.micros(System.nanoTime() - token.enteredAt));
+    }
+    token.lease = null;
+    logger.logInfo(DEFAULT_RESOURCE.equals(token.resource) ? "EXIT CS" : "EXIT CS " + token.resource);
+
+    //Other local clients compete again for the token, behind the requests that arrived in the meantime.
+    //We are the holder, so there is no need to send a request
+    if((token.hasWaiters() || token.timedRequest) && !token.request_list.contains(myId)) {
+      enqueue(token, myId, ownPriority(token));
+    }
+
+    //Readers that waited for the critical section go before the next exclusive access, so that neither starves
+    admitReaders(token);
+
+    //If someone needs the token give it to them, otherwise sit idle
+    if(token.hasPendingRequests()) {
+      serveExclusive(token);
+    }
+  }
+
+  //Tail of the handlers ending a critical section, a read or a wait for either: the node may now be idle and a quiet leaf
+  private void afterExit(TokenState token) {
+    logNodeState(token);
+    releaseIfIdle(token);
+    maybeReparent(token.resource);
+  }
+
+  public void onExitCS(ExitCS message, ActorRef sender) {
+
+    TokenState token = getToken(message.resource);
+    exitCS(token);
+    afterExit(token);
+  }
+
+  public void onAcquire(Acquire message, ActorRef sender) {
+
+    TokenState token = getToken(message.resource);
+    if(message.shared) {
+      addReader(token, new Waiter(sender, message.leaseMillis, message.requestId, message.priority, nextWaiterSequence++));
+      logger.logDebug(() -> "onAcquire() - " + sender + " waits to read " + token.resource);
+      logNodeState(token);
+      return;
+    }
+    if(token.waiters == null) {
+      token.waiters = new PriorityQueue<>(Waiter.ORDER);
+    }
+    token.waiters.add(new Waiter(sender, message.leaseMillis, message.requestId, message.priority, nextWaiterSequence++));
+
+    logger.logDebug(() -> "onAcquire() - " + sender + " waits for " + token.resource);
+
+    //A single request in the tree serves all the local clients one after the other, with the priority of the most
+    //urgent. If we are inside the critical section the request is issued on exit
+    if(!token.inside_cs && !token.request_list.contains(myId)) {
+      handleRequest(token, myId, ownPriority(token));
+      if(Metrics.ENABLED) {
+        Metrics.requestListDepth.record(token.request_list.size());
+      }
+    } else if(!token.inside_cs) {
+      raise(token, myId, ownPriority(token));
+    }
+    logNodeState(token);
+  }
+
+  //Returns the token of the resource if the lease is the one inside the critical section, null otherwise
+  private TokenState findLease(String resource, long leaseId) {
+    TokenState token = tokens.get(resource);
+    if(token == null || token.lease == null || token.lease.leaseId != leaseId) {
+      return null;
+    }
+    return token;
+  }
+
+  //Returns the token of the resource if the lease is one of its readers, null otherwise
+  private TokenState findReader(String resource, long leaseId) {
+    TokenState token = tokens.get(resource);
+    if(token == null || token.readLeases == null || !token.readLeases.containsKey(leaseId)) {
+      return null;
+    }
+    return token;
+  }
+
+  public void onRelease(Release message, ActorRef sender) {
+
+    TokenState reading = findReader(message.resource, message.leaseId);
+    if(reading != null) {
+      exitRead(reading, message.leaseId);
+      afterExit(reading);
+      return;
+    }
+
+    TokenState token = findLease(message.resource, message.leaseId);
+    if(token == null) {
+      //Usually a release arriving after the lease expired
+      logger.logWarning("onRelease() - release of unknown lease " + message.leaseId + " of " + message.resource + " ignored");
+      return;
+    }
+
+    if(token.lease.timeout != null) {
+      token.lease.timeout.cancel();
+    }
+    exitCS(token);
+    afterExit(token);
+  }
+
+  public void onCancel(Cancel message, ActorRef sender) {
+
+    TokenState token = tokens.get(message.resource);
+    if(token == null || message.requestId == Acquire.NO_REQUEST_ID) {
+      return;
+    }
+
+    if(token.lease != null && token.lease.requestId == message.requestId) {
+      //Granted while the cancellation was on its way
+      logger.logWarning("onCancel() - lease " + token.lease.leaseId + " of " + token.resource + " cancelled by its client");
+      if(token.lease.timeout != null) {
+        token.lease.timeout.cancel();
+      }
+      exitCS(token);
+    } else if(readerOf(token, message.requestId) != null) {
+      Waiter reader = readerOf(token, message.requestId);
+      logger.logWarning("onCancel() - read lease " + reader.leaseId + " of " + token.resource + " cancelled by its client");
+      exitRead(token, reader.leaseId);
+    } else {
+      //The request in the tree stays, giveAccessToFirst() passes the token on if no one else is waiting. In the same
+      //way a copy asked for readers is kept for the next ones
+      if(token.waiters != null) {
+        token.waiters.removeIf(waiter -> waiter.requestId == message.requestId);
+      }
+      if(token.readWaiters != null) {
+        token.readWaiters.removeIf(waiter -> waiter.requestId == message.requestId);
+      }
+    }
+    afterExit(token);
+  }
+
+  //Reader inside with the given acquisition, null if none
+  private Waiter readerOf(TokenState token, long requestId) {
+    if(token.readLeases != null) {
+      for(Waiter reader : token.readLeases.values()) {
+        if(reader.requestId == requestId) {
+          return reader;
+        }
+      }
+    }
+    return null;
+  }
+
+  public void onWatchLease(WatchLease message, ActorRef sender) {
+
+    TokenState reading = findReader(message.resource, message.leaseId);
+    if(reading != null) {
+      reading.readLeases.get(message.leaseId).client = sender;
+      return;
+    }
+
+    TokenState token = findLease(message.resource, message.leaseId);
+    if(token == null) {
+      //Expired or released before the watch arrived
+      sender.tell(new LeaseExpired(myId, message.resource, message.leaseId), getSelf());
+      return;
+    }
+    token.lease.client = sender;
+  }
+
+  public void onLeaseTimeout(LeaseTimeout message, ActorRef sender) {
+
+    TokenState reading = findReader(message.resource, message.leaseId);
+    if(reading != null) {
+      //Reads of the node itself end here
+      Waiter reader = reading.readLeases.get(message.leaseId);
+      if(reader.client != null) {
+        logger.logWarning("onLeaseTimeout() - read lease " + message.leaseId + " of " + message.resource + " expired, client forced out");
+        reader.client.tell(new LeaseExpired(myId, reading.resource, message.leaseId), getSelf());
+      }
+      exitRead(reading, message.leaseId);
+      afterExit(reading);
+      return;
+    }
+
+    TokenState token = findLease(message.resource, message.leaseId);
+    if(token == null) {
+      //Released in the meantime
+      return;
+    }
+
+    logger.logWarning("onLeaseTimeout() - lease " + message.leaseId + " of " + message.resource + " expired, client forced out of CS");
+    token.lease.client.tell(new LeaseExpired(myId, token.resource, message.leaseId), getSelf());
+    exitCS(token);
+    afterExit(token);
+  }
+
+  /*
+  Shared access. Readers enter together wherever a read copy of the token is: the holder lends copies to the neighbors
+  asking for one, which lend them on in turn, so the nodes holding a copy form a subtree around the holder and their
+  readers enter without sending anything. A node asks a copy once, for its readers and the neighbors behind it.
+  An exclusive request reaching the holder while copies are out recalls them: from then on no reader enters and no copy
+  is lent along the subtree, and every node gives its copy back once its readers left and the copies it lent are back.
+  The holder then grants the token as usual. Readers waiting when an exclusive access ends go before the next one, so
+  neither kind starves
+   */
+
+  //Readers enter here without asking anything
+  private boolean canShare(TokenState token) {
+    return !token.recalling && (token.holder == myId ? !token.inside_cs && !token.hasPendingRequests() : token.copy);
+  }
+
+  //Lets the waiting readers in if we can, otherwise asks a copy to the holder if nobody did
+  private void share(TokenState token) {
+    if(!token.hasReaders()) {
+      return;
+    }
+    if(canShare(token)) {
+      admitReaders(token);
+    } else if(token.holder != myId && !token.copy && !token.copyAsked) {
+      tellWrapper(token.holder, ReadRequest.of(token.resource));
+      token.copyAsked = true;
+
+      logger.logDebug(() -> "share() - read copy of " + token.resource + " asked to: " + token.holder);
+    }
+  }
+
+  //Lends a copy to the neighbors waiting for one and lets the local readers in
+  private void admitReaders(TokenState token) {
+    for(int neighborId : token.copyRequests()) {
+      tellWrapper(neighborId, ReadPrivilege.of(token.resource));
+      token.addCopy(neighborId);
+
+      logger.logDebug(() -> "admitReaders() - read copy of " + token.resource + " lent to: " + neighborId);
+    }
+    token.clearCopyRequests();
+    if(token.readWaiters != null) {
+      while(!token.readWaiters.isEmpty()) {
+        enterRead(token, token.readWaiters.poll());
+      }
+    }
+  }
+
+  private void addReader(TokenState token, Waiter reader) {
+    if(token.readWaiters == null) {
+      token.readWaiters = new ArrayDeque<>();
+    }
+    token.readWaiters.add(reader);
+    share(token);
+  }
+
+  private void enterRead(TokenState token, Waiter reader) {
+    reader.leaseId = nextLeaseId++;
+    if(token.readLeases == null) {
+      token.readLeases = new HashMap<>();
+    }
+    token.readLeases.put(reader.leaseId, reader);
+
+    //Reads of the node itself last CS_DURATION like its exclusive ones
+    if(reader.client == null || reader.leaseMillis > 0) {
+      reader.timeout = scheduleOnce(TimeUnit.MILLISECONDS.toNanos(reader.leaseMillis), new LeaseTimeout(token.resource, reader.leaseId));
+    }
+    if(reader.client != null) {
+      reader.client.tell(new Granted(myId, token.resource, reader.leaseId), getSelf());
+    }
+    ownEntries++;
+    csEntries.increment();
+    if(Metrics.ENABLED) {
+      Metrics.grantLatency.record(Metrics.micros(System.nanoTime() - reader.arrivedAt));
+      metrics.csEntries.incrementAndGet();
+    }
+    if(simulation != null) {
+      simulation.csEntered(myId, token.resource, true);
+    }
+    if(observer != null) {
+      observer.tell(DEFAULT_RESOURCE.equals(token.resource) ? csEnteredNotification : new CSEntered(myId, token.resource), getSelf());
+    }
+    logger.logInfo(DEFAULT_RESOURCE.equals(token.resource) ? "ENTER READ" : "ENTER READ " + token.resource);
+  }
+
+  private void exitRead(TokenState token, long leaseId) {
+    Waiter reader = token.readLeases.remove(leaseId);
+    if(reader.timeout != null) {
+      reader.timeout.cancel();
+    }
+    if(simulation != null) {
+      simulation.csExited(myId, token.resource, true);
+    }
+    logger.logInfo(DEFAULT_RESOURCE.equals(token.resource) ? "EXIT READ" : "EXIT READ " + token.resource);
+    afterRead(token);
+  }
+
+  //Serves the next exclusive request, recalling the copies first if readers are around
+  private void serveExclusive(TokenState token) {
+    if(token.isShared()) {
+      recall(token);
+    } else {
+      giveAccessToFirst(token);
+    }
+  }
+
+  private void recall(TokenState token) {
+    if(!token.recalling) {
+      token.recalling = true;
+      sendRecalls(token);
+    }
+  }
+
+  private void sendRecalls(TokenState token) {
+    for(int neighborId : token.copies()) {
+      tellWrapper(neighborId, ReadRecall.of(token.resource));
+
+      logger.logDebug(() -> "sendRecalls() - read copy of " + token.resource + " recalled from: " + neighborId);
+    }
+  }
+
+  //Ends a recall once the readers left and the copies are back. While recovering the copies lent to the neighbors that
+  //did not answer yet are unknown
+  private void afterRead(TokenState token) {
+    if(!token.recalling || token.isShared() || recovering) {
+      return;
+    }
+    token.recalling = false;
+    if(token.holder == myId) {
+      if(token.hasPendingRequests()) {
+        giveAccessToFirst(token);
+      }
+    } else {
+      tellWrapper(token.holder, ReadReturn.of(token.resource));
+      token.copy = false;
+
+      logger.logDebug(() -> "afterRead() - read copy of " + token.resource + " returned to: " + token.holder);
+    }
+    //Readers that arrived during the recall
+    share(token);
+  }
+
+  public void onReadRequest(ReadRequest message, ActorRef sender) {
+
+    int senderId = getIdBySender(sender);
+    TokenState token = getToken(message.resource);
+
+    if(senderId == myId) {
+      //Read of the node itself, lasts CS_DURATION
+      addReader(token, new Waiter(null, Configuration.CS_DURATION, Acquire.NO_REQUEST_ID, RequestQueue.NORMAL, nextWaiterSequence++));
+    } else if(senderId == token.holder && token.holder != myId) {
+      //Crossed the token we sent to it, it serves its readers itself
+      logger.logDebug(() -> "onReadRequest() - read request for " + token.resource + " from holder " + senderId + " dropped");
+    } else if(token.copies().contains(senderId)) {
+      logger.logWarning("onReadRequest() - read request for " + token.resource + " from " + senderId + " that holds a copy (did he crash?) request was dropped");
+    } else {
+      logger.logDebug(() -> "onReadRequest() - read request for " + token.resource + " received from: " + senderId);
+      token.addCopyRequest(senderId);
+      share(token);
+    }
+
+    logNodeState(token);
+    releaseIfIdle(token);
+  }
+
+  public void onReadPrivilege(ReadPrivilege message, ActorRef sender) {
+
+    int senderId = getIdBySender(sender);
+    TokenState token = getToken(message.resource);
+
+    if(senderId != token.holder) {
+      logger.logWarning("onReadPrivilege() - read copy of " + token.resource + " received from " + senderId + " that is not our holder, given back");
+      tellWrapper(senderId, ReadReturn.of(token.resource));
+      return;
+    }
+
+    logger.logDebug(() -> "onReadPrivilege() - read copy of " + token.resource + " received from: " + senderId);
+    token.copy = true;
+    token.copyAsked = false;
+    share(token);
+
+    logNodeState(token);
+  }
+
+  public void onReadRecall(ReadRecall message, ActorRef sender) {
+
+    int senderId = getIdBySender(sender);
+    TokenState token = getToken(message.resource);
+
+    //Already given back, or a second recall of one being returned
+    if(!token.copy || senderId != token.holder || token.recalling) {
+      releaseIfIdle(token);
+      return;
+    }
+
+    logger.logDebug(() -> "onReadRecall() - read copy of " + token.resource + " recalled by: " + senderId);
+    token.recalling = true;
+    sendRecalls(token);
+    afterRead(token);
+
+    logNodeState(token);
+    releaseIfIdle(token);
+  }
+
+  public void onReadReturn(ReadReturn message, ActorRef sender) {
+
+    int senderId = getIdBySender(sender);
+    TokenState token = getToken(message.resource);
+
+    if(!token.removeCopy(senderId)) {
+      logger.logWarning("onReadReturn() - read copy of " + token.resource + " returned by " + senderId + " that did not hold one");
+    }
+    logger.logDebug(() -> "onReadReturn() - read copy of " + token.resource + " returned by: " + senderId);
+    afterRead(token);
+
+    logNodeState(token);
+    releaseIfIdle(token);
+    maybeReparent(token.resource);
+  }
+
+  //Repairs the copies of a resource shared with a neighbor with its recovery information. A copy we hold is given back
+  //as if it was recalled, we do not know whether it was
+  private void restoreCopies(TokenState token, int neighborId, RecoveryInfoResponse info) {
+    int state = info.copyState(token.resource);
+    if((state & RecoveryInfoResponse.COPY_HELD) != 0) {
+      token.addCopy(neighborId);
+    } else {
+      token.removeCopy(neighborId);
+    }
+    if((state & RecoveryInfoResponse.COPY_WANTED) != 0) {
+      token.addCopyRequest(neighborId);
+    } else {
+      token.removeCopyRequest(neighborId);
+    }
+    if(token.holder == neighborId) {
+      token.copy = (state & RecoveryInfoResponse.COPY_LENT) != 0;
+      token.recalling = token.copy;
+      if(token.copy) {
+        token.copyAsked = false;
+      }
+    }
+  }
+
+  public void onCrashBegin(CrashBegin message, ActorRef sender) {
+
+    logger.logDebug("onCrashBegin() - entering crash mode");
+
+    int downNeighborId = -1;
+    for(int nodeId : message.downNodeIds) {
+      if(neighbors.containsKey(nodeId)) {
+        downNeighborId = nodeId;
+      }
+    }
+
+    boolean crashed = false;
+    if(isInsideAnyCS()) {
+      //Ignore crash request if in CS
+      logger.logWarning("Node is in CS. Crash request message ignored.");
+    } else if(broker.currentMode == BrokerMode.RESHAPING_MODE) {
+      //Same while moving in the tree, the old and the new neighbor would not agree on who has to be asked for recovery
+      logger.logWarning("Node is moving in the tree. Crash request message ignored.");
+    } else if(downNeighborId != -1) {
+      logger.logWarning("Neighbor " + downNeighborId + " is down. Crash request message ignored.");
+    } else {
+      crashed = true;
+      //Clients waiting on this node lose their place together with the rest of the state
+      for(TokenState token : tokens.values()) {
+        if(token.hasWaiters()) {
+          for(Waiter waiter : token.waiters) {
+            waiter.client.tell(new Status.Failure(new IllegalStateException("Node " + myId + " crashed while waiting for " + token.resource)), getSelf());
+          }
+        }
+        if(token.readWaiters != null) {
+          for(Waiter reader : token.readWaiters) {
+            if(reader.client != null) {
+              reader.client.tell(new Status.Failure(new IllegalStateException("Node " + myId + " crashed while waiting to read " + token.resource)), getSelf());
+            }
+          }
+        }
+      }
+
+      initialHolder = -1;
+      tokens.clear();
+      recovery_info.clear();
+      recoveredResources.clear();
+      detectors.clear();
+      suspectedBy.clear();
+      missedNeighbors.clear();
+      unansweredNeighbors.clear();
+      //Only the journal on disk survives, it is read again when the node is restarted
+      if(journal != null) {
+        journal.close();
+        journal = null;
+      }
+
+      broker.changeMode(BrokerMode.SELECTIVE_RECOVERY_MODE);
+    }
+    logAllNodeStates();
+
+    if(sender != getContext().getSystem().deadLetters()) {
+      sender.tell(new CrashOutcome(myId, crashed), getSelf());
+    }
+  }
+
+  public void onCrashEnd(CrashEnd message, ActorRef sender) {
+
+    logger.logDebug("onCrashEnd() - starting recovery operations");
+
+    if(broker.currentMode == BrokerMode.RESHAPING_MODE) {
+      logger.logWarning("Node is moving in the tree and did not crash. Crash end message ignored.");
+      return;
+    }
+    if(broker.currentMode != BrokerMode.SELECTIVE_RECOVERY_MODE || recovering) {
+      //The crash was ignored or the recovery already started, the answers would find no neighbor left to wait for
+      logger.logWarning("Node is not crashed. Crash end message ignored.");
+      return;
+    }
+    recovering = true;
+    if(Metrics.ENABLED) {
+      recoveryStartedAt = System.nanoTime();
+    }
+
+    if(Configuration.JOURNAL_DIR != null) {
+      recoverFromJournal();
+      logAllNodeStates();
+      return;
+    }
+
+    for(int neighborId : neighbors.keys()) {
+
+      //Ask recovery info from everyone
+      //Broker is already allowing recovery info response
+      tellWrapper(neighborId, RecoveryInfoRequest.INSTANCE);
+    }
+
+    //Without neighbors nobody will answer, the tokens are here
+    if(neighbors.size() == 0) {
+      initialHolder = myId;
+      finishRecovery();
+    }
+    logAllNodeStates();
+  }
+
+  public void onRecoveryInfoRequest(RecoveryInfoRequest message, ActorRef sender) {
+    sendRecoveryInfo(getIdBySender(sender));
+    logAllNodeStates();
+  }
+
+  private void sendRecoveryInfo(int neighborId) {
+
+    logger.logDebug(() -> "sendRecoveryInfo() - sending recovery information to: " + neighborId);
+
+    //Only resources that are not in their initial state must be listed
+    List<TokenState> changed = new ArrayList<>();
+    for(TokenState token : tokens.values()) {
+      if(token.holder != initialHolder || token.hasPendingRequests() || token.isReading()) {
+        changed.add(token);
+      }
+    }
+
+    String[] resources = new String[changed.size()];
+    int[] holderIds = new int[changed.size()];
+    boolean[] requestListNotEmpty = new boolean[changed.size()];
+    byte[] copyStates = new byte[changed.size()];
+    for(int i = 0; i < changed.size(); i++) {
+      TokenState token = changed.get(i);
+      resources[i] = token.resource;
+      holderIds[i] = token.holder;
+      requestListNotEmpty[i] = token.hasPendingRequests();
+      if(token.copy && token.holder == neighborId) {
+        copyStates[i] |= RecoveryInfoResponse.COPY_HELD;
+      }
+      if(token.copies().contains(neighborId)) {
+        copyStates[i] |= RecoveryInfoResponse.COPY_LENT;
+      }
+      if(token.copyAsked && token.holder == neighborId) {
+        copyStates[i] |= RecoveryInfoResponse.COPY_WANTED;
+      }
+    }
+
+    //#Tells my holder and whether I have some request for each resource, if my holder is not the requesting node, the boolean field is useless.
+    //Same for the read copies
+    tellWrapper(neighborId, new RecoveryInfoResponse(initialHolder, resources, holderIds, requestListNotEmpty, copyStates));
+  }
+
+  //Holder of a resource, or of the resources not listed by any neighbor if resource is null
+  private int decideHolder(String resource) {
+
+    //Ensures we received the recovery information from all neighbors
+    if(!(recovery_info.size() == neighbors.size())) logger.logError("assertion - recovery messages not received by anybody");
+    assert(recovery_info.size() == neighbors.size());
+
+    //Search if there is a neighbor of which we are not the holders
+    for(int neighborId : recovery_info.keys()) {
+      RecoveryInfoResponse currentRecoveryInfo = recovery_info.get(neighborId);
+      int neighborHolder = (resource == null) ? currentRecoveryInfo.defaultHolderId : currentRecoveryInfo.holderOf(resource);
+
+      //If we found a neighbor of which we are not holders, then it is our holder
+      if(neighborHolder != myId) {
+        return neighborId;
       }
     }
 
-
-    logger.logError("getIdBySender() cannot find ID!");
-    throw new Error("Cannot find id for neighbor " + sender.toString());
+    //If all neighbors have us as holders, then we have the token
+    return myId;
   }
 
-  private ActorRef getNeighborRef(int neighborId) {
-    return neighbors.get(neighborId);
-  }
+  public void onRecoveryInfoResponse(RecoveryInfoResponse message, ActorRef sender) {
 
-  private ActorRef getHolderRef() {
-    return getNeighborRef(holder);
-  }
+    int senderId = getIdBySender(sender);
 
-  private void tellWrapper(ActorRef dest, Object message, ActorRef sender) {
-    tellWrapper(dest, message, sender, false);
-  }
+    logger.logDebug(() -> "onRecoveryInfoResponse() - received recovery information from: " + senderId);
+    recovery_info.put(senderId, message);
 
-  private void tellWrapper(ActorRef dest, Object message, ActorRef sender, boolean bypass_delay) {
-    if(Configuration.DEBUG) {
-      try {
-        int sleepMillis = generator.nextInt(Configuration.MAX_WAIT);
-        Thread.sleep(sleepMillis);
-      } catch (InterruptedException e) {
-        e.printStackTrace();
+    //ask broker to queue for later all messages coming from sender. They will be unlocked and processed when recovery operations are over
+    broker.removeFromBlacklist(sender);
+
+    if(Configuration.JOURNAL_DIR != null) {
+      if(recovery_info.size() == missedNeighbors.size()) {
+        checkJournaledState();
+        finishRecovery();
       }
+      logAllNodeStates();
+      return;
     }
 
-    dest.tell(message, sender);
-  }
+    if(Configuration.INCREMENTAL_RECOVERY) {
+      recoverIncrementally(senderId, message);
+      logAllNodeStates();
+      return;
+    }
 
-  public void onTokenInject(TokenInject message, ActorRef sender) {
-    holder = myId;
+	//I have a response from every neighbor
+    if(recovery_info.size() == neighbors.size()) {
 
-    for(ActorRef currentNeighbor : neighbors.values()) {
-      tellWrapper(currentNeighbor, new Init(myId), getSelf(), true);
-    }
+      logger.logDebug("onRecoveryInfoResponse() - all recovery info received");
 
-    broker.changeMode(BrokerMode.NORMAL_MODE);
+      //Sets the holder of the resources that all neighbors left in their initial state
+      initialHolder = decideHolder(null);
 
-    if(Configuration.DEBUG) {
-      logger.logInfo("Token injected!" + "   " + "holder: " + holder + "   " + "neighbors: " + (neighbors.keySet()).toString());
-    }
+      //Every other resource was listed by at least one neighbor
+      for(String resource : listedResources()) {
+        rebuild(resource, decideHolder(resource));
+      }
 
+      finishRecovery();
+    }
+    logAllNodeStates();
   }
 
-  public void onNeighborInit(NeighborInit message, ActorRef sender) {
-    neighbors.put(message.nodeId, message.nodeRef);
+  //Resources listed by the neighbors that answered. Sorted so that recovery is deterministic
+  private Set<String> listedResources() {
+    Set<String> resources = new TreeSet<>();
+    for(RecoveryInfoResponse currentRecoveryInfo : recovery_info.values()) {
+      Collections.addAll(resources, currentRecoveryInfo.resources);
+    }
+    return resources;
   }
 
-  public void onInit(Init message, ActorRef sender) {
-    holder = getIdBySender(sender);
+  //Rebuilds the state of a resource from its holder and the neighbors that answered
+  private void rebuild(String resource, int holderId) {
+    TokenState token = getToken(resource);
 
-    for(ActorRef currentNeighbor : neighbors.values()) {
-      if(!currentNeighbor.equals(sender)) {
-        tellWrapper(currentNeighbor, new Init(myId), getSelf(), true);
+    //Sets the correct holder
+    token.holder = holderId;
+
+    //Foreach neighbor that has me as holder
+    for(int neighborId : recovery_info.keys()) {
+      RecoveryInfoResponse currentRecoveryInfo = recovery_info.get(neighborId);
+      if(currentRecoveryInfo.holderOf(resource) == myId) {
+        //If the neighbor has a request and I am his holder, then I must have a request on his behalf
+        if(currentRecoveryInfo.requestListNotEmpty(resource)) {
+          token.request_list.add(neighborId, RequestQueue.NORMAL, nanoTime());
+        }
       }
+      restoreCopies(token, neighborId, currentRecoveryInfo);
     }
 
-    broker.changeMode(BrokerMode.NORMAL_MODE);
+    //I could have crashed before receiving the request from a node that wants to access, in that case my request list
+    //will not be empty but i didn't forward the request yet, do it now
+    if((token.holder != myId) && (!token.request_list.isEmpty())) {
+      tellWrapper(token.holder, Request.of(resource));
+      token.askedPriority = RequestQueue.NORMAL;
 
-    if(Configuration.DEBUG) {
-      logger.logInfo("Init received!" + "   " + "holder: " + holder + "   " + "neighbors: " + (neighbors.keySet()).toString());
+      logger.logDebug(() -> "onRequest() - request for " + resource + " forwarded to: " + token.holder);
     }
+    recoveredResources.add(resource);
   }
 
-  public void onRequest(Request message, ActorRef sender) {
-    if(Configuration.DEBUG) {
-      logger.logInfo("onRequest() - request received from: " + getIdBySender(sender));
+  private void finishRecovery() {
+    recoveredResources.clear();
+    recovering = false;
+    if(Metrics.ENABLED) {
+      long recoveryMicros = Metrics.micros(System.nanoTime() - recoveryStartedAt);
+      Metrics.recoveryTime.record(recoveryMicros);
+      metrics.lastRecoveryMicros = recoveryMicros;
+      metrics.recoveries.incrementAndGet();
     }
 
-    ActorRef requester = sender;
+    //Tokens recovered here with requests to serve. The ones the queued messages give requests to are served by their
+    //handlers: a request of the node itself may have sent the token to itself, it must not enter before it arrives
+    Set<TokenState> recovered = new HashSet<>();
+    for(TokenState token : tokens.values()) {
+      if(token.holder == myId && token.hasPendingRequests()) {
+        recovered.add(token);
+      }
+    }
 
-    int requesterId = getIdBySender(sender);
+    //Ask broker to resume normally. Before resuming 'normally', the broker will process each pending message in his queue
+    broker.changeMode(BrokerMode.NORMAL_MODE);
 
-    //Otherwise it means we had duplicate request which is bad
-    if(request_list.contains(requesterId)) {
-      logger.logWarning("onRequest() - duplicated request received from " + requesterId + " (did he crash?) request was dropped");
-      return;
+    //Check if I am still the holder and have messages to send. Queued messages may have changed the states in the meantime
+    for(TokenState token : new ArrayList<>(tokens.values())) {
+      if(recovered.contains(token) && (token.holder == myId) && (token.hasPendingRequests()) && (!token.inside_cs)) {
+        serveExclusive(token);
+      }
+      //Copies we got back from the neighbors go back to our holder, then the readers can ask again
+      if(token.copy && token.recalling) {
+        sendRecalls(token);
+      }
+      afterRead(token);
+      share(token);
+      releaseIfIdle(token);
     }
+  }
 
-    //If request comes from my holder he probably crashed (it sent the request during onCrashExit)
-    if(requesterId == holder && holder != myId) {
-      logger.logWarning("onRequest() - request received from holder " + requesterId + " (did he crash?) request was dropped");
-      return;
+  /*
+  Incremental recovery. A neighbor pointing away from us for a resource is our holder for it whatever the others say,
+  so the state of the resource is rebuilt as soon as such a neighbor answers, and its messages from the neighbors that
+  already answered are handled from then on. A neighbor answering afterwards with requests for it is served as if it
+  sent a Request. Only resources whose token is here or behind the neighbors still to answer wait for all of them
+   */
+  private void recoverIncrementally(int senderId, RecoveryInfoResponse message) {
+    //The first neighbor pointing away for the resources nobody listed is their holder
+    if(initialHolder == -1 && message.defaultHolderId != myId) {
+      initialHolder = senderId;
     }
 
-    //if(!(!request_list.contains(requesterId))) logger.logError("assertion - duplicated request");
-    assert(!request_list.contains(requesterId));
+    //Requests and read copies of the sender for resources already rebuilt
+    for(String resource : new ArrayList<>(recoveredResources)) {
+      TokenState token = getToken(resource);
+      restoreCopies(token, senderId, message);
+      if(message.holderOf(resource) == myId && message.requestListNotEmpty(resource)) {
+        handleRequest(token, senderId, RequestQueue.NORMAL);
+      }
+      logNodeState(token);
+    }
 
-    //Must forward the request to the holder or satisfy it if I am the holder and not in cs
-    if(request_list.isEmpty()) {
-      if(inside_cs) {
-        request_list.add(requesterId); //Put in the list, as soon as I exit I will grant it
+    Set<String> listed = listedResources();
+    for(String resource : listed) {
+      isRecovered(resource);
+    }
 
-      } else if(holder == myId) {
+    if(recovery_info.size() == neighbors.size()) {
+      logger.logDebug("onRecoveryInfoResponse() - all recovery info received");
 
-        //If the request message is sent by myself, add me to the request_list
-        //so that giveAccessToFirst() will be called (after Privilege message received) and i will enter the CS
-        if(requesterId == myId) {
-          request_list.add(requesterId);
+      //Every neighbor points to us for the resources left, their tokens are here
+      if(initialHolder == -1) {
+        initialHolder = myId;
+      }
+      for(String resource : listed) {
+        if(!recoveredResources.contains(resource)) {
+          rebuild(resource, myId);
         }
-        //Grant the privilege and say I don't require token back because I have no other pending requests
-        tellWrapper(requester, new Privilege(false), getSelf());
+      }
 
-        if(Configuration.DEBUG) {
-          logger.logInfo("onRequest() - privilege sent to: " + requesterId);
-        }
+      finishRecovery();
+    } else {
+      broker.dispatchRecovered();
+    }
+  }
 
-        holder = requesterId;
-      } else {
-        //Request token on behalf of requester to my holder
-        request_list.add(requesterId);
+  //Whether the state of the resource is known, rebuilding it if a neighbor that answered points away from us
+  private boolean isRecovered(String resource) {
+    if(recoveredResources.contains(resource)) {
+      return true;
+    }
+    for(int neighborId : recovery_info.keys()) {
+      if(recovery_info.get(neighborId).holderOf(resource) != myId) {
+        rebuild(resource, neighborId);
+        return true;
+      }
+    }
+    return false;
+  }
 
-        ActorRef holderRef = getHolderRef();
-        if(!(holderRef != null)) logger.logError("assertion - no ActorRef found for my holderId");
-        assert(holderRef != null);
+  /*
+  Recovery from the journal. The node gets back the state it had when it crashed, its own requests included, and its
+  neighbors agree with it unless they sent it something in the meantime. Only the neighbors whose messages were dropped
+  are asked for recovery information, which is checked against the journal, while the messages of the others are
+  parked as usual. A neighbor that asked us for ours while we were down is answered instead, its recovery is built on
+  our state. With no neighbor to ask the node is back to normal mode without sending a message
+   */
+  private void recoverFromJournal() {
+    Journal.Replay replay;
+    try {
+      journal = Journal.open(new File(Configuration.JOURNAL_DIR), myId);
+      replay = journal.replay();
+    } catch (IOException e) {
+      throw new Error("Cannot read the journal of node " + myId, e);
+    }
 
-        tellWrapper(holderRef, new Request(), getSelf());
+    //Written as soon as the node knows where the tokens are, which is before it can crash
+    if(!(replay.initialHolder != -1)) logger.logError("assertion - recoverFromJournal() no holder in the journal");
+    assert(replay.initialHolder != -1);
+    initialHolder = replay.initialHolder;
+    for(Journal.Entry entry : replay.entries.values()) {
+      TokenState token = new TokenState(entry.resource, entry.holder);
+      //Priorities are not journaled, the requests start over at the normal one
+      for(int requesterId : entry.requests) {
+        token.request_list.add(requesterId, RequestQueue.NORMAL, nanoTime());
+      }
+      token.returnTo = entry.returnTo;
+      token.batch = entry.batch;
+      token.timedRequest = entry.timedRequest;
+      //The readers are gone, a copy held goes back as soon as the ones lent are
+      token.copy = entry.copy;
+      token.copyAsked = entry.copyAsked;
+      token.recalling = entry.copy;
+      for(int neighborId : entry.copies) {
+        token.addCopy(neighborId);
+      }
+      for(int neighborId : entry.copyRequests) {
+        token.addCopyRequest(neighborId);
+      }
+      if(Metrics.ENABLED) {
+        token.requestedAt = System.nanoTime();
+      }
+      tokens.put(entry.resource, token);
+    }
 
-        if(Configuration.DEBUG) {
-          logger.logInfo("onRequest() - request forwarded to: " + getIdBySender(getHolderRef()));
-        }
+    for(int neighborId : unansweredNeighbors) {
+      sendRecoveryInfo(neighborId);
+    }
+    missedNeighbors.removeAll(unansweredNeighbors);
+    for(int neighborId : neighbors.keys()) {
+      if(missedNeighbors.contains(neighborId)) {
+        tellWrapper(neighborId, RecoveryInfoRequest.INSTANCE);
+      } else {
+        broker.removeFromBlacklist(getNeighborRef(neighborId));
       }
-    } else {
-      //Put in the list, but I already requested privilege before, so don't send a duplicate request
-      request_list.add(requesterId);
     }
 
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+    logger.logDebug(() -> "recoverFromJournal() - " + tokens.size() + " resources recovered, checking with " + missedNeighbors);
+    if(missedNeighbors.isEmpty()) {
+      finishRecovery();
     }
   }
 
-  private void giveAccessToFirst() {
-    //Fetches the first element
-    if(!(!request_list.isEmpty())) logger.logError("assertion - giveAccessToFirst() but request_list is empty");
-    assert(!request_list.isEmpty());
-    int oldLength = request_list.size();
-    int first_requester = request_list.poll();
-    if(!(request_list.size() == oldLength - 1)) logger.logError("assertion - giveAccessToFirst() but not updated request_list");
-    assert(request_list.size() == oldLength - 1);
-
-    if(first_requester == myId) {
-      getContext().getSystem().scheduler().scheduleOnce(Duration.create(1000, TimeUnit.MILLISECONDS), getSelf(), new ExitCS(), getContext().system().dispatcher(), getSelf());
-      inside_cs = true;
-      logger.logInfo("ENTER CS");
+  //Remembers a neighbor that sent something while the node was crashed
+  private void missedMessage(int senderId, Object message) {
+    if(message instanceof RecoveryInfoRequest) {
+      unansweredNeighbors.add(senderId);
     } else {
-      boolean need_privilege_back = !request_list.isEmpty();
-      ActorRef first_requester_ref = getNeighborRef(first_requester);
-      //Send a privilege to the node to serve and ask it back if I have other requests.
-      tellWrapper(first_requester_ref, new Privilege(need_privilege_back), getSelf());
-
-      if(Configuration.DEBUG) {
-        logger.logInfo("giveAccessToFirst() - privilege sent to: " + first_requester);
-      }
-
-      holder = first_requester;
+      missedNeighbors.add(senderId);
     }
   }
 
-  public void onPrivilege(Privilege message, ActorRef sender) {
+  /*
+  Repairs the journaled state with the answers of the neighbors we missed messages from. A neighbor pointing to us while
+  we point to it sent us the token, and one with requests that we do not serve on its behalf sent us a Request.
+  A neighbor pointing away is our holder, as it already is unless the last records were lost
+   */
+  private void checkJournaledState() {
+    for(int neighborId : recovery_info.keys()) {
+      RecoveryInfoResponse currentRecoveryInfo = recovery_info.get(neighborId);
+      Set<String> resources = new TreeSet<>(tokens.keySet());
+      Collections.addAll(resources, currentRecoveryInfo.resources);
+
+      for(String resource : resources) {
+        TokenState token = getToken(resource);
+        if(currentRecoveryInfo.holderOf(resource) != myId) {
+          if(token.holder != neighborId) {
+            logger.logWarning("checkJournaledState() - journal says " + token.holder + " holds " + resource + " but " + neighborId + " points away from us, trusting " + neighborId);
+            token.holder = neighborId;
+          }
+        } else if(token.holder == neighborId) {
+          logger.logDebug(() -> "checkJournaledState() - privilege for " + resource + " from " + neighborId + " was lost in the crash");
+          token.holder = myId;
+        }
+      }
+    }
 
-    int senderId = getIdBySender(sender);
-    //After a crash it is not meaningful to recover the fact whether we wanted or not to access the critical section before the crash, because that decision
-    //must be taken by the logic of the restarted application and not by the old one.
-    //For this reason we may receive a privilege and have an empty request list (Eg scenario_4.txt)
-    if(request_list.isEmpty()) {
-      logger.logWarning("onPrivilege - privilege received from " + senderId + " but request list is empty. Did we crash?");
+    //Once all the holders are known, so that requests are forwarded to the right one
+    for(int neighborId : recovery_info.keys()) {
+      RecoveryInfoResponse currentRecoveryInfo = recovery_info.get(neighborId);
+      for(String resource : currentRecoveryInfo.resources) {
+        TokenState token = getToken(resource);
+        boolean missing = currentRecoveryInfo.holderOf(resource) == myId && currentRecoveryInfo.requestListNotEmpty(resource)
+                && !token.request_list.contains(neighborId) && token.returnTo != neighborId;
+        if(missing) {
+          logger.logDebug(() -> "checkJournaledState() - request for " + resource + " from " + neighborId + " was lost in the crash");
+          boolean alreadyRequested = token.hasPendingRequests();
+          enqueue(token, neighborId, RequestQueue.NORMAL);
+          if(!alreadyRequested && token.holder != myId) {
+            tellWrapper(token.holder, Request.of(resource));
+            token.askedPriority = RequestQueue.NORMAL;
+          }
+        }
+      }
     }
 
-    if(Configuration.DEBUG) {
-      logger.logInfo("onPrivilege() - privilege received from: " + getIdBySender(sender));
+    //Read copies lent or returned in the meantime
+    for(int neighborId : recovery_info.keys()) {
+      RecoveryInfoResponse currentRecoveryInfo = recovery_info.get(neighborId);
+      Set<String> resources = new TreeSet<>(tokens.keySet());
+      Collections.addAll(resources, currentRecoveryInfo.resources);
+      for(String resource : resources) {
+        restoreCopies(getToken(resource), neighborId, currentRecoveryInfo);
+      }
     }
+  }
 
-    holder = myId;
+  //Resource a message refers to, null for messages concerning the whole node
+  static String resourceOf(Object message) {
+    return (message instanceof ResourceMessage) ? ((ResourceMessage) message).resource() : null;
+  }
 
-    //If the token is required by the previous owner (to compete other requests) add the sender to the request_list
-    boolean requiresTokenBack = message.requiresTokenBack;
-    if(requiresTokenBack) {
-      request_list.add(senderId);
-    }
+  /*
+  Failure detection. Every heartbeat interval a node sends a heartbeat to each neighbor and checks the ones it received
+  with a phi accrual detector. A neighbor silent for too long is suspected and told so. A live node refutes the suspicion
+  with a heartbeat straight away, so a slow link or a long pause costs one message and no recovery. A crashed node
+  restarts, as a supervisor would restart it, only once every neighbor suspected it: its recovery then finds the tokens
+  or regenerates the ones lost with it. A node next to a crashed one never confirms, two neighbors down cannot recover
+  anyway, and CrashEnd still restarts a node by hand. Heartbeats and suspicions travel on the links like the other
+  messages and bypass the broker, which would drop or park them
+   */
 
-    //Check whether we have requests to serve. Due to crash dynamics it may not happen if our request was the only one at the moment of crash.
-    if(!request_list.isEmpty()) {
-      giveAccessToFirst();
+  @Override
+  public void preStart() {
+    if(Configuration.HEARTBEAT_INTERVAL > 0) {
+      //Ticks of different nodes are spread over the interval
+      long firstTick = generator.nextInt((int) Configuration.HEARTBEAT_INTERVAL) + 1;
+      if(simulation != null) {
+        heartbeatTimer = simulation.schedule(TimeUnit.MILLISECONDS.toNanos(firstTick), TimeUnit.MILLISECONDS.toNanos(Configuration.HEARTBEAT_INTERVAL), getSelf(), HeartbeatTick.INSTANCE);
+      } else {
+        heartbeatTimer = getContext().getSystem().scheduler().schedule(Duration.create(firstTick, TimeUnit.MILLISECONDS),
+                Duration.create(Configuration.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS), getSelf(), HeartbeatTick.INSTANCE, getContext().dispatcher(), getSelf());
+      }
     }
+  }
 
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+  @Override
+  public void postStop() {
+    if(heartbeatTimer != null) {
+      heartbeatTimer.cancel();
+    }
+    if(journal != null) {
+      journal.close();
     }
   }
 
-  public void onExitCS(ExitCS message, ActorRef sender) {
+  //Crashed until CrashEnd, a crashed node neither sends nor checks heartbeats
+  private boolean isCrashed() {
+    return broker.currentMode == BrokerMode.SELECTIVE_RECOVERY_MODE && !recovering;
+  }
 
-    inside_cs = false;
-    logger.logInfo("EXIT CS");
-    //If someone needs the token give it to them, otherwise sit idle
-    if(!request_list.isEmpty()) {
-      giveAccessToFirst();
+  public void onHeartbeat(Heartbeat message) {
+    Integer senderId = neighborIds.get(getSender());
+    if(senderId == null || isCrashed()) {
+      return;
     }
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+    PhiAccrualDetector detector = detectors.get(senderId);
+    if(detector != null && detector.heartbeat(nanoTime())) {
+      logger.logInfo("onHeartbeat() - neighbor " + senderId + " is alive again");
     }
   }
 
-  public void onCrashBegin(CrashBegin message, ActorRef sender) {
-
-    if(Configuration.DEBUG) {
-      logger.logInfo("onCrashBegin() - entering crash mode");
+  public void onSuspected(Suspected message) {
+    Integer senderId = neighborIds.get(getSender());
+    if(senderId == null) {
+      return;
+    }
+    if(!isCrashed()) {
+      tellWrapper(senderId, Heartbeat.INSTANCE);
+      return;
     }
 
-    if(inside_cs) {
-      //Ignore crash request if in CS
-      logger.logWarning("Node is in CS. Crash request message ignored.");
-    } else {
-      holder = -1;
-      request_list.clear();
-      recovery_info.clear();
+    suspectedBy.add(senderId);
+    for(int neighborId : neighbors.keys()) {
+      if(!suspectedBy.contains(neighborId)) {
+        return;
+      }
+    }
+    logger.logWarning("onSuspected() - suspected by all the neighbors, restarting");
+    suspectedBy.clear();
+    onCrashEnd(new CrashEnd(), getSelf());
+  }
 
-      broker.changeMode(BrokerMode.SELECTIVE_RECOVERY_MODE);
+  public void onHeartbeatTick(HeartbeatTick message) {
+    if(broker.currentMode == BrokerMode.PREINIT_MODE || isCrashed()) {
+      return;
     }
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+
+    long now = nanoTime();
+    //Runs every heartbeat interval, the order of the neighbors does not matter here
+    for(int slot = neighbors.firstSlot(); slot >= 0; slot = neighbors.nextSlot(slot)) {
+      int neighborId = neighbors.keyAt(slot);
+      tellWrapper(neighborId, Heartbeat.INSTANCE);
+
+      PhiAccrualDetector detector = detectors.get(neighborId);
+      if(detector == null) {
+        //Monitored from now on, as if it had just sent a heartbeat
+        detectors.put(neighborId, new PhiAccrualDetector(Configuration.HEARTBEAT_INTERVAL, now));
+      } else if(detector.phi(now) > Configuration.PHI_THRESHOLD) {
+        suspectNeighbor(neighborId, detector.phi(now));
+        detector.suspect(now);
+      }
     }
   }
 
-  public void onCrashEnd(CrashEnd message, ActorRef sender) {
+  private void suspectNeighbor(int neighborId, double phi) {
+    //Tokens we wait for that are in the suspected neighbor or behind it, if it crashed they come back with its recovery,
+    //which finds them or regenerates them and learns about our requests from our answer
+    List<String> waiting = new ArrayList<>();
+    for(TokenState token : tokens.values()) {
+      if(token.holder == neighborId && (token.hasPendingRequests() || token.copyAsked)) {
+        waiting.add(token.resource);
+      }
+    }
 
-    if(Configuration.DEBUG) {
-      logger.logInfo("onCrashEnd() - starting recovery operations");
+    if(waiting.isEmpty()) {
+      logger.logWarning("Neighbor " + neighborId + " suspected (phi " + String.format("%.1f", phi) + ")");
+    } else {
+      logger.logWarning("Neighbor " + neighborId + " suspected (phi " + String.format("%.1f", phi) + ") while holder of " + waiting);
+    }
+    suspicions.increment();
+    if(Metrics.ENABLED) {
+      metrics.suspicions.incrementAndGet();
+      if(!waiting.isEmpty()) {
+        metrics.holderFailures.incrementAndGet();
+      }
     }
 
-    for(ActorRef neighbor : neighbors.values()) {
+    tellWrapper(neighborId, Suspected.INSTANCE);
+  }
 
-      //Ask recovery info from everyone
-      //Broker is already allowing recovery info response
-      tellWrapper(neighbor, new RecoveryInfoRequest(), getSelf());
+  /*
+  Adaptive reshaping. A leaf that keeps entering the critical section moves one edge closer to the token: its neighbor
+  detaches it and hands it to its own neighbor on the path to the token, which adopts it. The tree stays a tree and every holder
+  pointer stays valid as long as the leaf holds no token and no request refers to it, which is checked on both sides.
+  Only leaves move, so nodes in the middle of the tree keep their distance, and moving towards the token of one resource
+  may lengthen the paths towards the others.
+   */
+
+  //A leaf is quiet when it has nothing to do with any token, then no holder pointer and no request queue refers to it
+  private boolean isQuiet() {
+    if(initialHolder == myId) {
+      return false;
     }
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+    for(TokenState token : tokens.values()) {
+      if(token.holder == myId || token.hasPendingRequests() || token.inside_cs || token.hasWaiters() || token.timedRequest || token.isReading()) {
+        return false;
+      }
     }
+    return true;
   }
 
-  public void onRecoveryInfoRequest(RecoveryInfoRequest message, ActorRef sender) {
+  private void maybeReparent(String resource) {
+    if(Configuration.REPARENT_AFTER == 0 || ownEntries < Configuration.REPARENT_AFTER) {
+      return;
+    }
+    if(neighbors.size() != 1 || broker.currentMode != BrokerMode.NORMAL_MODE || !isQuiet()) {
+      return;
+    }
+    //Messages parked during a recovery are still being dispatched, reshaping would park them again
+    if(!broker.messageQueue.isEmpty()) {
+      return;
+    }
+
+    int parentId = neighbors.keys()[0];
+    ownEntries = 0;
+
+    //Everything else waits until we know who our neighbor is
+    broker.changeMode(BrokerMode.RESHAPING_MODE);
+    tellWrapper(parentId, new ReparentRequest(resource));
+
+    logger.logDebug(() -> "maybeReparent() - asking " + parentId + " to move closer to " + resource);
+  }
 
-    if(Configuration.DEBUG) {
-      logger.logInfo("onRecoveryInfoRequest() - sending recovery information");
+  public void onReparentRequest(ReparentRequest message) {
+    if(Metrics.ENABLED) {
+      metrics.received(message);
+    }
+    int childId = getIdBySender(getSender());
+    TokenState token = tokens.get(message.resource);
+    int newParentId = (token == null) ? initialHolder : token.holder;
+
+    //The child must not be part of the state of any token and nothing we sent must still be on its way to it
+    boolean refused = broker.currentMode != BrokerMode.NORMAL_MODE || newParentId == myId || newParentId == childId || !neighbors.containsKey(newParentId) || !getLink(childId).isIdle();
+    for(TokenState current : tokens.values()) {
+      refused = refused || current.holder == childId || current.returnTo == childId || current.request_list.contains(childId)
+              || current.copies().contains(childId) || current.copyRequests().contains(childId);
     }
 
-    //#Tells my holder and whether I have some request, if my holder is not the requesting node, the second boolean field is useless.
-    tellWrapper(sender, new RecoveryInfoResponse(holder, !request_list.isEmpty()), getSelf());
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+    if(refused) {
+      logger.logDebug(() -> "onReparentRequest() - " + childId + " cannot be moved");
+      tellWrapper(childId, ReparentRefused.INSTANCE);
+      return;
     }
+
+    ActorRef childRef = neighbors.remove(childId);
+    neighborIds.remove(childRef);
+    retireLink(childId, childRef);
+    detectors.remove(childId);
+    tellWrapper(newParentId, new AdoptChild(childId, childRef));
+
+    logger.logInfo("Node " + childId + " moved from " + myId + " to " + newParentId);
   }
 
-  private void decideHolder() {
+  public void onAdoptChild(AdoptChild message) {
+    if(Metrics.ENABLED) {
+      metrics.received(message);
+    }
+    //A node in recovery must not gain neighbors it did not ask for recovery information
+    if(broker.currentMode != BrokerMode.NORMAL_MODE) {
+      deferredAdoptions.add(message);
+      return;
+    }
 
-    //Ensures we received the recovery information from all neighbors
-    if(!(recovery_info.size() == neighbors.size())) logger.logError("assertion - recovery messages not received by anybody");
-    assert(recovery_info.size() == neighbors.size());
+    onNeighborInit(new NeighborInit(message.childId, message.childRef), getSender());
+    tellWrapper(message.childId, new Adopted(myId));
+  }
 
-    //Search if there is a neighbor of which we are not the holders
-    for(int neighborId : recovery_info.keySet()) {
-      Tuple<Integer, Boolean> currentRecoveryInfo = recovery_info.get(neighborId);
+  private void adoptDeferredChildren() {
+    List<AdoptChild> adoptions = deferredAdoptions;
+    deferredAdoptions = new ArrayList<>();
+    for(AdoptChild adoption : adoptions) {
+      onAdoptChild(adoption);
+    }
+  }
 
-      //If we found a neighbor of which we are not holders, then it is our holder
-      if(currentRecoveryInfo.first() != myId) {
-        holder = neighborId;
-        return;
+  public void onAdopted(Adopted message) {
+    if(Metrics.ENABLED) {
+      metrics.received(message);
+    }
+    int oldParentId = neighbors.keys()[0];
+    ActorRef oldParentRef = neighbors.remove(oldParentId);
+    neighborIds.remove(oldParentRef);
+    //Heartbeats sent while waiting for the answer may still be on their way
+    retireLink(oldParentId, oldParentRef);
+    detectors.remove(oldParentId);
+    onNeighborInit(new NeighborInit(message.parentId, getSender()), getSender());
+
+    //Everything was on the side of the old neighbor, now it is behind the new one
+    if(initialHolder == oldParentId) {
+      initialHolder = message.parentId;
+    }
+    for(TokenState token : tokens.values()) {
+      if(token.holder == oldParentId) {
+        token.holder = message.parentId;
       }
     }
+    journalInitialHolder();
+    logAllNodeStates();
 
-    //If all neighbors have us as holders, then we have the token
-    holder = myId;
+    logger.logDebug(() -> "onAdopted() - neighbor changed from " + oldParentId + " to " + message.parentId);
+    broker.changeMode(BrokerMode.NORMAL_MODE);
   }
 
-  public void onRecoveryInfoResponse(RecoveryInfoResponse message, ActorRef sender) {
-
-    if(Configuration.DEBUG) {
-      logger.logInfo("onRecoveryInfoResponse() - received recovery information from: " + getIdBySender(sender));
+  public void onReparentRefused(ReparentRefused message) {
+    if(Metrics.ENABLED) {
+      metrics.received(message);
     }
+    logger.logDebug("onReparentRefused() - staying where we are");
+    broker.changeMode(BrokerMode.NORMAL_MODE);
+  }
 
-    int senderId = getIdBySender(sender);
-    Tuple<Integer, Boolean> recoveryData = new Tuple<>(message.holderId, message.requestListNotEmpty);
-    recovery_info.put(senderId, recoveryData);
+  //Current time in ns, virtual in a simulation
+  private long nanoTime() {
+    return (simulation == null) ? System.nanoTime() : simulation.nanoTime();
+  }
 
-    //ask broker to queue for later all messages coming from sender. They will be unlocked and processed when recovery operations are over
-    broker.removeFromBlacklist(sender);
+  //Sends a message to the node itself after the given delay, through the Akka scheduler or the clock of the simulation
+  private Cancellable scheduleOnce(long delayNanos, Object message) {
+    if(simulation != null) {
+      return simulation.schedule(delayNanos, 0, getSelf(), message);
+    }
+    return getContext().getSystem().scheduler().scheduleOnce(Duration.create(delayNanos, TimeUnit.NANOSECONDS), getSelf(), message, getContext().dispatcher(), getSelf());
+  }
 
-	//I have a response from every neighbor
-    if(recovery_info.size() == neighbors.size()) {
+  private class DelayedLink {
+    private final int destId;
+    private DelayDistribution distribution;
+    //Messages in transit together with their delivery deadline in ns. Deadlines are non decreasing to preserve FIFO order
+    private final Queue<Tuple<Long, Object>> inTransit = new ArrayDeque<>();
+    private long lastDeadline;
+    private boolean flushScheduled = false;
+    //Destination once it is no longer a neighbor, until the messages in transit are delivered
+    private ActorRef retiredRef;
+
+    public DelayedLink(int destId, DelayDistribution distribution) {
+      this.destId = destId;
+      this.distribution = distribution;
+    }
+
+    public void send(Object message, boolean bypass_delay) {
+      long delayMillis = bypass_delay ? 0 : distribution.nextDelay(generator);
 
-      if(Configuration.DEBUG) {
-        logger.logInfo("onRecoveryInfoResponse() - all recovery info received");
+      //Nothing to wait for, deliver immediately
+      if(delayMillis == 0 && inTransit.isEmpty()) {
+        deliver(message);
+        return;
       }
 
-      //Sets the correct holder
-      decideHolder();
+      //A message can never overtake the ones sent before it on the same link
+      long deadline = nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+      if(!inTransit.isEmpty()) {
+        deadline = Math.max(deadline, lastDeadline);
+      }
+      lastDeadline = deadline;
+      inTransit.add(new Tuple<>(deadline, message));
 
-      //Foreach neighbor that has me as holder
-      for(int neighborId : recovery_info.keySet()) {
-        Tuple<Integer, Boolean> currentRecoveryInfo = recovery_info.get(neighborId);
-        if(currentRecoveryInfo.first() == myId) {
-          //If the neighbor has a request and I am his holder, then I must have a request on his behalf
-          if(currentRecoveryInfo.last() == true) {
-            request_list.add(neighborId);
-          }
-        }
+      if(!flushScheduled) {
+        scheduleFlush(deadline);
       }
+    }
+
+    public boolean isIdle() {
+      return inTransit.isEmpty();
+    }
 
-      //I could have crashed before receiving the request from a node that wants to access, in that case my request list
-      //will not be empty but i didn't forward the request yet, do it now
-      if((holder != myId) && (!request_list.isEmpty())) {
-        ActorRef holderRef = getHolderRef();
-        tellWrapper(holderRef, new Request(), getSelf());
+    public void flush() {
+      flushScheduled = false;
 
-        if(Configuration.DEBUG) {
-          logger.logInfo("onRequest() - request forwarded to: " + getIdBySender(getHolderRef()));
-        }
+      long now = nanoTime();
+      while(!inTransit.isEmpty() && inTransit.peek().first() <= now) {
+        deliver(inTransit.poll().last());
       }
 
-      //Ask broker to resume normally. Before resuming 'normally', the broker will process each pending message in his queue
-      broker.changeMode(BrokerMode.NORMAL_MODE);
-
-      //Check if I am the holder and have messages to send
-      if((holder == myId) && (!request_list.isEmpty())) {
-        giveAccessToFirst();
+      if(!inTransit.isEmpty()) {
+        scheduleFlush(inTransit.peek().first());
+      } else if(retiredRef != null) {
+        retiredRef = null;
+        //Unless it became a neighbor again in the meantime
+        if(!neighbors.containsKey(destId)) {
+          links.remove(destId);
+        }
       }
+    }
 
+    private void scheduleFlush(long deadline) {
+      LinkFlush flush = new LinkFlush(destId);
+      if(Configuration.VIRTUAL_LINK_TIMER && simulation == null) {
+        //Sleeps until the deadline, not rounded up to the tick of the scheduler
+        ActorRef self = getSelf();
+        VirtualThreads.start(() -> {
+          for(long waitNanos = deadline - System.nanoTime(); waitNanos > 0; waitNanos = deadline - System.nanoTime()) {
+            LockSupport.parkNanos(waitNanos);
+          }
+          self.tell(flush, self);
+        });
+      } else {
+        scheduleOnce(Math.max(0, deadline - nanoTime()), flush);
+      }
+      flushScheduled = true;
     }
-    if(Configuration.DEBUG) {
-      logger.logNodeState(holder, request_list, inside_cs);
+
+    private void deliver(Object message) {
+      ActorRef dest = (destId == myId) ? getSelf() : (retiredRef != null) ? retiredRef : getNeighborRef(destId);
+      if(simulation != null) {
+        simulation.deliver(myId, destId, dest, message, getSelf());
+      } else {
+        dest.tell(message, getSelf());
+      }
     }
   }
 
   private enum BrokerMode {
     PREINIT_MODE,
     NORMAL_MODE,
-    SELECTIVE_RECOVERY_MODE;
+    SELECTIVE_RECOVERY_MODE,
+    RESHAPING_MODE;
 
   }
 
@@ -473,6 +2757,50 @@ public class Node extends AbstractActor {
     private Queue<Tuple<Object, ActorRef>> messageQueue = new ArrayDeque<>();
     private Set<ActorRef> recoveryBlacklist = new HashSet<>();
 
+    //Node methods handling each message class
+    private final Map<Class<?>, BiConsumer<Object, ActorRef>> handlers = new HashMap<>();
+    //Messages handled before initialization. All others are queued until normal mode
+    private final Map<Class<?>, BiConsumer<Object, ActorRef>> preinitHandlers = new HashMap<>();
+    //Messages handled during recovery when coming from outside or from neighbors that already answered. All others are queued until normal mode
+    private final Map<Class<?>, BiConsumer<Object, ActorRef>> recoveryHandlers = new HashMap<>();
+    //Messages handled during recovery when coming from blacklisted neighbors. All others are dropped
+    private final Map<Class<?>, BiConsumer<Object, ActorRef>> blacklistedHandlers = new HashMap<>();
+    //Messages handled while the node moves in the tree. All others are queued until normal mode
+    private final Map<Class<?>, BiConsumer<Object, ActorRef>> reshapingHandlers = new HashMap<>();
+
+    //Filtering policy of the current mode, switched by changeMode()
+    private BiConsumer<Object, ActorRef> behavior = this::preinitArrived;
+
+    public <T> void register(Class<T> messageClass, BiConsumer<T, ActorRef> handler) {
+      handlers.put(messageClass, (message, sender) -> handler.accept(messageClass.cast(message), sender));
+    }
+
+    public void handleDuringInit(Class<?>... messageClasses) {
+      copyHandlers(messageClasses, preinitHandlers);
+    }
+
+    public void handleDuringRecovery(Class<?>... messageClasses) {
+      copyHandlers(messageClasses, recoveryHandlers);
+    }
+
+    public void handleFromBlacklisted(Class<?>... messageClasses) {
+      copyHandlers(messageClasses, blacklistedHandlers);
+    }
+
+    public void handleDuringReshaping(Class<?>... messageClasses) {
+      copyHandlers(messageClasses, reshapingHandlers);
+    }
+
+    private void copyHandlers(Class<?>[] messageClasses, Map<Class<?>, BiConsumer<Object, ActorRef>> destination) {
+      for(Class<?> messageClass : messageClasses) {
+        BiConsumer<Object, ActorRef> handler = handlers.get(messageClass);
+        if(handler == null) {
+          throw new Error("Unregistered message class " + messageClass.toString());
+        }
+        destination.put(messageClass, handler);
+      }
+    }
+
     public void changeMode(BrokerMode mode) {
 
       //Cannot go directly to recovery without passing from normal mode
@@ -481,17 +2809,15 @@ public class Node extends AbstractActor {
 
       currentMode = mode;
       if (currentMode == BrokerMode.NORMAL_MODE) {
-        if(Configuration.DEBUG) {
-          logger.logInfo(" changeMode() - begin change mode to Normal");
-        }
+        logger.logDebug(" changeMode() - begin change mode to Normal");
         //All blacklist requests from previous crashed must have been already handled
         if(!(recoveryBlacklist.isEmpty())) logger.logError("assertion - changeMode() recoveryBlacklist not empty");
         assert(recoveryBlacklist.isEmpty());
+        behavior = this::dispatchMessage;
         //For the invariant no packet in the queue may make the state change, so it is safe to dispatch them all in batch
         dispatchAllWaitingMessages();
-        if(Configuration.DEBUG) {
-          logger.logInfo(" changeMode() - mode changed to Normal");
-        }
+        adoptDeferredChildren();
+        logger.logDebug(" changeMode() - mode changed to Normal");
       } else if (currentMode == BrokerMode.PREINIT_MODE) {
         //Broker must be created in this mode and never return to it
         if(!(false)) logger.logError("assertion - changeMode()");
@@ -507,9 +2833,14 @@ public class Node extends AbstractActor {
         for(ActorRef neighborRef : Node.this.neighbors.values()) {
           recoveryBlacklist.add(neighborRef);
         }
-        if(Configuration.DEBUG) {
-          logger.logInfo(" changeMode() - mode changed to Selective Recovery");
-        }
+        behavior = this::recoveryArrived;
+        logger.logDebug(" changeMode() - mode changed to Selective Recovery");
+      } else if (currentMode == BrokerMode.RESHAPING_MODE) {
+        //Entered only from normal mode, which never leaves messages behind
+        if(!(messageQueue.isEmpty())) logger.logError("assertion - changeMode() messageQueue not empty");
+        assert(messageQueue.isEmpty());
+        behavior = this::reshapingArrived;
+        logger.logDebug(" changeMode() - mode changed to Reshaping");
       } else {
         logger.logError("Unknown BrokerMode " + currentMode.toString());
         throw new Error("Unknown BrokerMode " + currentMode.toString());
@@ -530,85 +2861,106 @@ public class Node extends AbstractActor {
         if(!(currentMode == BrokerMode.NORMAL_MODE)) logger.logError("assertion - dispatchAllWaitingMessages() called not in normal mode");
         assert(currentMode == BrokerMode.NORMAL_MODE);
         Tuple<Object, ActorRef> messageData = messageQueue.poll();
-        dispatchMessage(messageData);
+        dispatchMessage(messageData.first(), messageData.last());
       }
     }
 
-    private void dispatchMessage(Tuple<Object, ActorRef> messageData) {
-      Object message = messageData.first();
-      ActorRef sender = messageData.last();
-
+    private void dispatchMessage(Object message, ActorRef sender) {
       //Find node method to which dispatch the message and dispatch it
-      if(message.getClass().equals(Init.class)) {
-        Node.this.onInit((Init) message, sender);
-      } else if(message.getClass().equals(TokenInject.class)) {
-        Node.this.onTokenInject((TokenInject) message, sender);
-      } else if(message.getClass().equals(Request.class)) {
-        Node.this.onRequest((Request) message, sender);
-      } else if(message.getClass().equals(Privilege.class)) {
-        Node.this.onPrivilege((Privilege) message, sender);
-      } else if(message.getClass().equals(RecoveryInfoRequest.class)) {
-        Node.this.onRecoveryInfoRequest((RecoveryInfoRequest) message, sender);
-      } else if(message.getClass().equals(RecoveryInfoResponse.class)) {
-        Node.this.onRecoveryInfoResponse((RecoveryInfoResponse) message, sender);
-      } else if(message.getClass().equals(ExitCS.class)) {
-        Node.this.onExitCS((ExitCS) message, sender);
-      } else if(message.getClass().equals(CrashBegin.class)) {
-        Node.this.onCrashBegin((CrashBegin) message, sender);
-      } else if(message.getClass().equals(CrashEnd.class)) {
-        Node.this.onCrashEnd((CrashEnd) message, sender);
-      } else if(message.getClass().equals(NeighborInit.class)) {
-        Node.this.onNeighborInit((NeighborInit) message, sender);
-      } else {
+      BiConsumer<Object, ActorRef> handler = handlers.get(message.getClass());
+      if(handler == null) {
         logger.logError("Exception");
         throw new Error("Unregistered message class " + message.getClass().toString());
       }
+      handler.accept(message, sender);
     }
 
-    public void messageArrived(Object message, ActorRef sender) {
-
-      Tuple<Object, ActorRef> messageData = new Tuple<>(message, sender);
-
-      if(currentMode == BrokerMode.NORMAL_MODE) {
-        dispatchMessage(messageData);
-      } else if(currentMode == BrokerMode.PREINIT_MODE) {
-        if(message.getClass().equals(NeighborInit.class)) {
-          dispatchMessage(messageData);
-        } else if(message.getClass().equals(TokenInject.class)) {
-          dispatchMessage(messageData);
-        } else if(message.getClass().equals(Init.class)) {
-          dispatchMessage(messageData);
-        } else {
-          messageQueue.add(messageData);
+    private void preinitArrived(Object message, ActorRef sender) {
+      BiConsumer<Object, ActorRef> handler = preinitHandlers.get(message.getClass());
+      if(handler != null) {
+        handler.accept(message, sender);
+      } else {
+        messageQueue.add(new Tuple<>(message, sender));
+        if(Metrics.ENABLED) {
+          metrics.parkedDuringInit.incrementAndGet();
         }
-      } else if(currentMode == BrokerMode.SELECTIVE_RECOVERY_MODE) {
+      }
+    }
 
-        //Messages with no sender coming from outside are always handled
-        if(recoveryBlacklist.contains(sender)) {
+    private void reshapingArrived(Object message, ActorRef sender) {
+      BiConsumer<Object, ActorRef> handler = reshapingHandlers.get(message.getClass());
+      if(handler != null) {
+        handler.accept(message, sender);
+      } else {
+        messageQueue.add(new Tuple<>(message, sender));
+        if(Metrics.ENABLED) {
+          metrics.parkedDuringReshaping.incrementAndGet();
+        }
+      }
+    }
 
-          //We drop anything apart from RecoveryResponse messages
-          if(message.getClass().equals(RecoveryInfoResponse.class)) {
-            dispatchMessage(messageData);
-          }
+    private void recoveryArrived(Object message, ActorRef sender) {
+      //Messages with no sender coming from outside are always handled
+      if(recoveryBlacklist.contains(sender)) {
+
+        //We drop anything apart from RecoveryResponse messages
+        BiConsumer<Object, ActorRef> handler = blacklistedHandlers.get(message.getClass());
+        if(handler != null) {
+          handler.accept(message, sender);
+        } else if(Configuration.JOURNAL_DIR != null && isCrashed()) {
+          //Recovered from the journal, the neighbor is asked or answered once restarted
+          missedMessage(getIdBySender(sender), message);
+        } else if(message instanceof RecoveryInfoRequest) {
+          //The neighbor crashed before answering us, so it drops our request in the same way and neither recovery ends
+          logger.logError("Neighbor " + getIdBySender(sender) + " crashed at the same time, adjacent crashes cannot be recovered");
+        }
+      } else {
         //Packets from outside Eg CrashEnd are processed immediately
-        } else if(message.getClass().equals(CrashEnd.class)) {
-
-          dispatchMessage(messageData);
+        BiConsumer<Object, ActorRef> handler = recoveryHandlers.get(message.getClass());
+        if(handler != null) {
+          handler.accept(message, sender);
+        //With incremental recovery, messages of resources already rebuilt are handled
+        } else if(Configuration.INCREMENTAL_RECOVERY && Configuration.JOURNAL_DIR == null && isRecoveredFor(message)) {
+          dispatchMessage(message, sender);
         //All other packets from non blacklisted nodes are remembered for later
         } else {
-          messageQueue.add(messageData);
+          messageQueue.add(new Tuple<>(message, sender));
+          if(Metrics.ENABLED) {
+            metrics.parkedDuringRecovery.incrementAndGet();
+          }
         }
+      }
+    }
 
-      } else {
-        logger.logError("Exception");
-        throw new Error("Unknown BrokerMode " + currentMode.toString());
+    private boolean isRecoveredFor(Object message) {
+      String resource = resourceOf(message);
+      return resource != null && isRecovered(resource);
+    }
+
+    //Dispatches the parked messages of the resources rebuilt so far, the others stay parked in their order
+    public void dispatchRecovered() {
+      int parked = messageQueue.size();
+      for(int i = 0; i < parked; i++) {
+        Tuple<Object, ActorRef> messageData = messageQueue.poll();
+        if(isRecoveredFor(messageData.first())) {
+          dispatchMessage(messageData.first(), messageData.last());
+        } else {
+          messageQueue.add(messageData);
+        }
       }
     }
 
+    public void messageArrived(Object message, ActorRef sender) {
+      behavior.accept(message, sender);
+    }
+
   }
 
   public void brokerDispatcher(Object message) {
     ActorRef sender = getSender();
+    if(Metrics.ENABLED) {
+      metrics.received(message);
+    }
 
     //Notify the broker when any message arrives
     broker.messageArrived(message, sender);
@@ -617,7 +2969,18 @@ public class Node extends AbstractActor {
   @Override
   public Receive createReceive() {
     //insert the broker as a receiver for all messages
+    //link management messages do not belong to the protocol and never go through the broker
     return receiveBuilder()
+            .match(LinkFlush.class, this::onLinkFlush)
+            .match(SetLinkDelay.class, this::onSetLinkDelay)
+            .match(Heartbeat.class, this::onHeartbeat)
+            .match(HeartbeatTick.class, this::onHeartbeatTick)
+            .match(Suspected.class, this::onSuspected)
+            //reshaping must go through even during recovery, where the broker drops messages of blacklisted neighbors
+            .match(ReparentRequest.class, this::onReparentRequest)
+            .match(AdoptChild.class, this::onAdoptChild)
+            .match(Adopted.class, this::onAdopted)
+            .match(ReparentRefused.class, this::onReparentRefused)
             .matchAny(this::brokerDispatcher)
             .build();
   }
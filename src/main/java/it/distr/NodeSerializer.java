@@ -0,0 +1,427 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ExtendedActorSystem;
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.Serialization;
+import akka.serialization.SerializerWithStringManifest;
+import it.distr.utils.DelayDistribution;
+import it.distr.utils.RequestQueue;
+
+import java.io.NotSerializableException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+Binary wire format of the node messages, bound to them in remote.conf. The manifest identifies the message,
+fixed size fields come first and the resource name, if any, takes the rest of the payload. The default resource is sent
+as an empty name, so Request and the Privilege of the default resource take 0 and 5 bytes. Requests with a priority
+have their own manifest, so that the others do not carry it. The read copy messages only carry the resource.
+Artery writes straight into its send buffers through ByteBufferSerializer, the byte array methods are used elsewhere.
+Self messages (ExitCS, LeaseTimeout, LinkFlush, HeartbeatTick) never leave the node and are not bound.
+ */
+public class NodeSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+
+  private static final byte[] EMPTY = new byte[0];
+  //Large enough for any message of a network that fits in a remote frame
+  private static final int MAX_SIZE = 256 * 1024;
+
+  private static final String NEIGHBOR_INIT = "NI";
+  private static final String INIT = "IN";
+  private static final String TOKEN_INJECT = "TI";
+  private static final String WIRE = "W";
+  private static final String IS_READY = "IR";
+  private static final String READY = "RD";
+  private static final String REQUEST = "RQ";
+  private static final String PRIORITY_REQUEST = "RQP";
+  private static final String PRIVILEGE = "PV";
+  private static final String READ_REQUEST = "RRQ";
+  private static final String READ_PRIVILEGE = "RPV";
+  private static final String READ_RECALL = "RRC";
+  private static final String READ_RETURN = "RRT";
+  private static final String RECOVERY_INFO_REQUEST = "RIQ";
+  private static final String RECOVERY_INFO_RESPONSE = "RIR";
+  private static final String CS_ENTERED = "CE";
+  private static final String ACQUIRE = "AQ";
+  private static final String CANCEL = "CA";
+  private static final String GRANTED = "GR";
+  private static final String RELEASE = "RL";
+  private static final String LEASE_EXPIRED = "LE";
+  private static final String WATCH_LEASE = "WL";
+  private static final String REPARENT_REQUEST = "RP";
+  private static final String REPARENT_REFUSED = "RF";
+  private static final String ADOPT_CHILD = "AC";
+  private static final String ADOPTED = "AD";
+  private static final String CRASH_BEGIN = "CB";
+  private static final String CRASH_OUTCOME = "CO";
+  private static final String CRASH_END = "CN";
+  private static final String SET_LINK_DELAY = "LD";
+  private static final String HEARTBEAT = "HB";
+  private static final String SUSPECTED = "SU";
+
+  private final ExtendedActorSystem system;
+  //Buffers of the byte array methods, sized for the largest message
+  private final ThreadLocal<ByteBuffer> scratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(MAX_SIZE));
+
+  public NodeSerializer(ExtendedActorSystem system) {
+    this.system = system;
+  }
+
+  @Override
+  public int identifier() {
+    return 7001;
+  }
+
+  @Override
+  public String manifest(Object o) {
+    if(o instanceof Node.Request) return (((Node.Request) o).priority == RequestQueue.NORMAL) ? REQUEST : PRIORITY_REQUEST;
+    if(o instanceof Node.Privilege) return PRIVILEGE;
+    if(o instanceof Node.ReadRequest) return READ_REQUEST;
+    if(o instanceof Node.ReadPrivilege) return READ_PRIVILEGE;
+    if(o instanceof Node.ReadRecall) return READ_RECALL;
+    if(o instanceof Node.ReadReturn) return READ_RETURN;
+    if(o instanceof Node.Acquire) return ACQUIRE;
+    if(o instanceof Node.Granted) return GRANTED;
+    if(o instanceof Node.Release) return RELEASE;
+    if(o instanceof Node.Cancel) return CANCEL;
+    if(o instanceof Node.LeaseExpired) return LEASE_EXPIRED;
+    if(o instanceof Node.WatchLease) return WATCH_LEASE;
+    if(o instanceof Node.CSEntered) return CS_ENTERED;
+    if(o instanceof Node.RecoveryInfoRequest) return RECOVERY_INFO_REQUEST;
+    if(o instanceof Node.RecoveryInfoResponse) return RECOVERY_INFO_RESPONSE;
+    if(o instanceof Node.ReparentRequest) return REPARENT_REQUEST;
+    if(o instanceof Node.ReparentRefused) return REPARENT_REFUSED;
+    if(o instanceof Node.AdoptChild) return ADOPT_CHILD;
+    if(o instanceof Node.Adopted) return ADOPTED;
+    if(o instanceof Node.NeighborInit) return NEIGHBOR_INIT;
+    if(o instanceof Node.Init) return INIT;
+    if(o instanceof Node.TokenInject) return TOKEN_INJECT;
+    if(o instanceof Node.Wire) return WIRE;
+    if(o instanceof Node.IsReady) return IS_READY;
+    if(o instanceof Node.Ready) return READY;
+    if(o instanceof Node.CrashBegin) return CRASH_BEGIN;
+    if(o instanceof Node.CrashOutcome) return CRASH_OUTCOME;
+    if(o instanceof Node.CrashEnd) return CRASH_END;
+    if(o instanceof Node.SetLinkDelay) return SET_LINK_DELAY;
+    if(o instanceof Node.Heartbeat) return HEARTBEAT;
+    if(o instanceof Node.Suspected) return SUSPECTED;
+    throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName());
+  }
+
+  @Override
+  public byte[] toBinary(Object o) {
+    //The most frequent message has no payload at all
+    if(o == Node.Request.INSTANCE) {
+      return EMPTY;
+    }
+
+    ByteBuffer buffer = scratch.get();
+    buffer.clear();
+    toBinary(o, buffer);
+    return Arrays.copyOf(buffer.array(), buffer.position());
+  }
+
+  @Override
+  public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+    return fromBinary(ByteBuffer.wrap(bytes), manifest);
+  }
+
+  @Override
+  public void toBinary(Object o, ByteBuffer buffer) {
+    if(o instanceof Node.Request) {
+      Node.Request message = (Node.Request) o;
+      if(message.priority != RequestQueue.NORMAL) {
+        buffer.put((byte) message.priority);
+      }
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.Privilege) {
+      Node.Privilege message = (Node.Privilege) o;
+      //0 if the token is not wanted back, otherwise 1 plus the priority it is wanted with
+      buffer.put((byte) (message.requiresTokenBack ? 1 + message.priority : 0));
+      buffer.putInt(message.batch);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.ReadRequest) {
+      putResource(buffer, ((Node.ReadRequest) o).resource);
+    } else if(o instanceof Node.ReadPrivilege) {
+      putResource(buffer, ((Node.ReadPrivilege) o).resource);
+    } else if(o instanceof Node.ReadRecall) {
+      putResource(buffer, ((Node.ReadRecall) o).resource);
+    } else if(o instanceof Node.ReadReturn) {
+      putResource(buffer, ((Node.ReadReturn) o).resource);
+    } else if(o instanceof Node.Acquire) {
+      Node.Acquire message = (Node.Acquire) o;
+      buffer.putLong(message.leaseMillis);
+      buffer.putLong(message.requestId);
+      buffer.put((byte) message.priority);
+      buffer.put((byte) (message.shared ? 1 : 0));
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.Granted) {
+      Node.Granted message = (Node.Granted) o;
+      buffer.putInt(message.nodeId);
+      buffer.putLong(message.leaseId);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.Release) {
+      Node.Release message = (Node.Release) o;
+      buffer.putLong(message.leaseId);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.Cancel) {
+      Node.Cancel message = (Node.Cancel) o;
+      buffer.putLong(message.requestId);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.LeaseExpired) {
+      Node.LeaseExpired message = (Node.LeaseExpired) o;
+      buffer.putInt(message.nodeId);
+      buffer.putLong(message.leaseId);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.WatchLease) {
+      Node.WatchLease message = (Node.WatchLease) o;
+      buffer.putLong(message.leaseId);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.CSEntered) {
+      Node.CSEntered message = (Node.CSEntered) o;
+      buffer.putInt(message.nodeId);
+      putResource(buffer, message.resource);
+    } else if(o instanceof Node.RecoveryInfoResponse) {
+      Node.RecoveryInfoResponse message = (Node.RecoveryInfoResponse) o;
+      buffer.putInt(message.defaultHolderId);
+      buffer.putInt(message.resources.length);
+      for(int i = 0; i < message.resources.length; i++) {
+        buffer.putInt(message.holderIds[i]);
+        //Pending requests in the lowest bit, the read copies shared with the receiver above it
+        buffer.put((byte) ((message.requestListNotEmpty[i] ? 1 : 0) | message.copyStates[i] << 1));
+        putString(buffer, message.resources[i]);
+      }
+    } else if(o instanceof Node.ReparentRequest) {
+      putResource(buffer, ((Node.ReparentRequest) o).resource);
+    } else if(o instanceof Node.AdoptChild) {
+      Node.AdoptChild message = (Node.AdoptChild) o;
+      buffer.putInt(message.childId);
+      putString(buffer, Serialization.serializedActorPath(message.childRef));
+    } else if(o instanceof Node.Adopted) {
+      buffer.putInt(((Node.Adopted) o).parentId);
+    } else if(o instanceof Node.NeighborInit) {
+      Node.NeighborInit message = (Node.NeighborInit) o;
+      buffer.putInt(message.nodeId);
+      putString(buffer, Serialization.serializedActorPath(message.nodeRef));
+    } else if(o instanceof Node.Init) {
+      buffer.putInt(((Node.Init) o).holderId);
+    } else if(o instanceof Node.Wire) {
+      Node.Wire message = (Node.Wire) o;
+      buffer.putInt(message.nodes.length);
+      for(ActorRef node : message.nodes) {
+        putString(buffer, Serialization.serializedActorPath(node));
+      }
+    } else if(o instanceof Node.Ready) {
+      buffer.putInt(((Node.Ready) o).nodeId);
+    } else if(o instanceof Node.CrashBegin) {
+      Node.CrashBegin message = (Node.CrashBegin) o;
+      buffer.putInt(message.downNodeIds.length);
+      for(int nodeId : message.downNodeIds) {
+        buffer.putInt(nodeId);
+      }
+    } else if(o instanceof Node.CrashOutcome) {
+      Node.CrashOutcome message = (Node.CrashOutcome) o;
+      buffer.putInt(message.nodeId);
+      buffer.put((byte) (message.crashed ? 1 : 0));
+    } else if(o instanceof Node.SetLinkDelay) {
+      Node.SetLinkDelay message = (Node.SetLinkDelay) o;
+      buffer.putInt(message.neighborId);
+      //The textual form is the one parsed by the console
+      putResource(buffer, message.distribution.toString());
+    } else if(!(o instanceof Node.RecoveryInfoRequest || o instanceof Node.ReparentRefused || o instanceof Node.TokenInject
+            || o instanceof Node.IsReady || o instanceof Node.CrashEnd || o instanceof Node.Heartbeat
+            || o instanceof Node.Suspected)) {
+      throw new IllegalArgumentException("Cannot serialize " + o.getClass().getName());
+    }
+  }
+
+  @Override
+  public Object fromBinary(ByteBuffer buffer, String manifest) throws NotSerializableException {
+    switch(manifest) {
+      case REQUEST:
+        return Node.Request.of(getResource(buffer));
+      case PRIORITY_REQUEST: {
+        int priority = buffer.get();
+        return Node.Request.of(getResource(buffer), priority);
+      }
+      case PRIVILEGE: {
+        int tokenBack = buffer.get();
+        int batch = buffer.getInt();
+        return Node.Privilege.of(getResource(buffer), tokenBack != 0, batch, Math.max(tokenBack - 1, RequestQueue.NORMAL));
+      }
+      case READ_REQUEST:
+        return Node.ReadRequest.of(getResource(buffer));
+      case READ_PRIVILEGE:
+        return Node.ReadPrivilege.of(getResource(buffer));
+      case READ_RECALL:
+        return Node.ReadRecall.of(getResource(buffer));
+      case READ_RETURN:
+        return Node.ReadReturn.of(getResource(buffer));
+      case ACQUIRE: {
+        long leaseMillis = buffer.getLong();
+        long requestId = buffer.getLong();
+        int priority = buffer.get();
+        boolean shared = buffer.get() != 0;
+        return new Node.Acquire(getResource(buffer), leaseMillis, requestId, priority, shared);
+      }
+      case GRANTED: {
+        int nodeId = buffer.getInt();
+        long leaseId = buffer.getLong();
+        return new Node.Granted(nodeId, getResource(buffer), leaseId);
+      }
+      case RELEASE: {
+        long leaseId = buffer.getLong();
+        return new Node.Release(getResource(buffer), leaseId);
+      }
+      case CANCEL: {
+        long requestId = buffer.getLong();
+        return new Node.Cancel(getResource(buffer), requestId);
+      }
+      case LEASE_EXPIRED: {
+        int nodeId = buffer.getInt();
+        long leaseId = buffer.getLong();
+        return new Node.LeaseExpired(nodeId, getResource(buffer), leaseId);
+      }
+      case WATCH_LEASE: {
+        long leaseId = buffer.getLong();
+        return new Node.WatchLease(getResource(buffer), leaseId);
+      }
+      case CS_ENTERED: {
+        int nodeId = buffer.getInt();
+        return new Node.CSEntered(nodeId, getResource(buffer));
+      }
+      case RECOVERY_INFO_REQUEST:
+        return Node.RecoveryInfoRequest.INSTANCE;
+      case RECOVERY_INFO_RESPONSE: {
+        int defaultHolderId = buffer.getInt();
+        int count = buffer.getInt();
+        if(count == 0) {
+          return new Node.RecoveryInfoResponse(defaultHolderId);
+        }
+        String[] resources = new String[count];
+        int[] holderIds = new int[count];
+        boolean[] requestListNotEmpty = new boolean[count];
+        byte[] copyStates = new byte[count];
+        for(int i = 0; i < count; i++) {
+          holderIds[i] = buffer.getInt();
+          int flags = buffer.get();
+          requestListNotEmpty[i] = (flags & 1) != 0;
+          copyStates[i] = (byte) (flags >> 1);
+          resources[i] = getString(buffer);
+        }
+        return new Node.RecoveryInfoResponse(defaultHolderId, resources, holderIds, requestListNotEmpty, copyStates);
+      }
+      case REPARENT_REQUEST:
+        return new Node.ReparentRequest(getResource(buffer));
+      case REPARENT_REFUSED:
+        return Node.ReparentRefused.INSTANCE;
+      case ADOPT_CHILD: {
+        int childId = buffer.getInt();
+        return new Node.AdoptChild(childId, getRef(buffer));
+      }
+      case ADOPTED:
+        return new Node.Adopted(buffer.getInt());
+      case NEIGHBOR_INIT: {
+        int nodeId = buffer.getInt();
+        return new Node.NeighborInit(nodeId, getRef(buffer));
+      }
+      case INIT:
+        return new Node.Init(buffer.getInt());
+      case TOKEN_INJECT:
+        return new Node.TokenInject();
+      case WIRE: {
+        ActorRef[] nodes = new ActorRef[buffer.getInt()];
+        for(int i = 0; i < nodes.length; i++) {
+          nodes[i] = getRef(buffer);
+        }
+        return new Node.Wire(nodes);
+      }
+      case IS_READY:
+        return Node.IsReady.INSTANCE;
+      case READY:
+        return new Node.Ready(buffer.getInt());
+      case CRASH_BEGIN: {
+        int[] downNodeIds = new int[buffer.getInt()];
+        for(int i = 0; i < downNodeIds.length; i++) {
+          downNodeIds[i] = buffer.getInt();
+        }
+        return new Node.CrashBegin(downNodeIds);
+      }
+      case CRASH_OUTCOME: {
+        int nodeId = buffer.getInt();
+        return new Node.CrashOutcome(nodeId, buffer.get() != 0);
+      }
+      case CRASH_END:
+        return new Node.CrashEnd();
+      case HEARTBEAT:
+        return Node.Heartbeat.INSTANCE;
+      case SUSPECTED:
+        return Node.Suspected.INSTANCE;
+      case SET_LINK_DELAY: {
+        int neighborId = buffer.getInt();
+        DelayDistribution distribution = DelayDistribution.parse(getResource(buffer));
+        if(distribution == null) {
+          throw new NotSerializableException("Invalid delay distribution");
+        }
+        return new Node.SetLinkDelay(neighborId, distribution);
+      }
+      default:
+        throw new NotSerializableException("Unknown manifest " + manifest);
+    }
+  }
+
+  //Last field of the message, its length is implied by the end of the payload
+  private static void putResource(ByteBuffer buffer, String resource) {
+    if(!Node.DEFAULT_RESOURCE.equals(resource)) {
+      if(resource.isEmpty()) {
+        throw new IllegalArgumentException("Empty resource names cannot be serialized");
+      }
+      buffer.put(resource.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+
+  private static String getResource(ByteBuffer buffer) {
+    if(!buffer.hasRemaining()) {
+      return Node.DEFAULT_RESOURCE;
+    }
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void putString(ByteBuffer buffer, String string) {
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    if(bytes.length > Short.MAX_VALUE) {
+      throw new BufferOverflowException();
+    }
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getShort()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private ActorRef getRef(ByteBuffer buffer) {
+    return system.provider().resolveActorRef(getString(buffer));
+  }
+}
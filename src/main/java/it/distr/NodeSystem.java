@@ -16,18 +16,55 @@
 package it.distr;
 
 import akka.actor.ActorSystem;
+import akka.actor.Address;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
 import it.distr.utils.CommandParser;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
 
+import java.util.ArrayList;
+import java.util.List;
 
+/*
+Without arguments all the nodes run in this JVM. To spread them over several JVMs start the workers first
+
+  NodeSystem worker port
+
+then a driver, which reads the commands and deploys the nodes it creates on the workers in round robin
+
+  NodeSystem driver host:port [host:port ...]
+ */
 public class NodeSystem {
 
-  public static void main(String[] args) {
+  public static void main(String[] args) throws Exception {
+
+    if(args.length == 2 && args[0].equals("worker")) {
+      //Hosts the nodes deployed by the driver until killed
+      final ActorSystem system = ActorSystem.create("network", remoteConfig(Integer.parseInt(args[1])));
+      System.out.println("Worker listening on " + system.provider().getDefaultAddress());
+      Await.ready(system.whenTerminated(), Duration.Inf());
+      return;
+    }
 
-    // Create the actor system
+    final ActorSystem system;
+    final List<Address> workers = new ArrayList<>();
 
-    final ActorSystem system = ActorSystem.create("network");
+    if(args.length >= 2 && args[0].equals("driver")) {
+      system = ActorSystem.create("network", remoteConfig(0));
+      for(int i = 1; i < args.length; i++) {
+        String[] hostPort = args[i].split(":");
+        workers.add(new Address("akka", "network", hostPort[0], Integer.parseInt(hostPort[1])));
+      }
+    } else if(args.length == 0) {
+      // Create the actor system
+      system = ActorSystem.create("network");
+    } else {
+      System.out.println("Usage: NodeSystem [worker port | driver host:port [host:port ...]]");
+      return;
+    }
 
-    CommandParser cp = new CommandParser(system);
+    CommandParser cp = new CommandParser(system, workers);
 
     boolean over = false;
 
@@ -37,4 +74,8 @@ public class NodeSystem {
 
     system.terminate();
   }
+
+  private static Config remoteConfig(int port) {
+    return ConfigFactory.parseString("akka.remote.artery.canonical.port = " + port).withFallback(ConfigFactory.load("remote"));
+  }
 }
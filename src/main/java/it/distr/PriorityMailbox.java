@@ -0,0 +1,121 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.dispatch.Envelope;
+import akka.dispatch.MailboxType;
+import akka.dispatch.MessageQueue;
+import akka.dispatch.ProducesMessageQueue;
+import akka.dispatch.UnboundedMessageQueueSemantics;
+import com.typesafe.config.Config;
+import scala.Option;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+Mailbox letting Privilege and RecoveryInfoResponse overtake the other queued messages, Requests above all, so that
+a node passes the token on as soon as it gets it instead of first forwarding the requests queued in the meantime.
+Messages of the same sender are never reordered: the recovery relies on the messages a neighbor sent before its
+RecoveryInfoResponse being dropped, and a Request overtaken by the response would be served twice.
+ */
+public class PriorityMailbox implements MailboxType, ProducesMessageQueue<PriorityMailbox.PriorityMessageQueue> {
+
+  public PriorityMailbox(ActorSystem.Settings settings, Config config) {
+  }
+
+  @Override
+  public MessageQueue create(Option<ActorRef> owner, Option<ActorSystem> system) {
+    return new PriorityMessageQueue();
+  }
+
+  private static boolean isUrgent(Object message) {
+    return message instanceof Node.Privilege || message instanceof Node.RecoveryInfoResponse;
+  }
+
+  public static class PriorityMessageQueue implements MessageQueue, UnboundedMessageQueueSemantics {
+
+    private static class Queued {
+      final Envelope envelope;
+      final long sequence;
+      //For urgent messages, last message of the same sender that must be dequeued first, -1 if none
+      final long after;
+
+      Queued(Envelope envelope, long sequence, long after) {
+        this.envelope = envelope;
+        this.sequence = sequence;
+        this.after = after;
+      }
+    }
+
+    private final ArrayDeque<Queued> urgent = new ArrayDeque<>();
+    private final ArrayDeque<Queued> normal = new ArrayDeque<>();
+    //Sequence number of the last queued normal message of each sender that still has some
+    private final Map<ActorRef, Long> lastNormal = new HashMap<>();
+    private long nextSequence = 0;
+
+    @Override
+    public synchronized void enqueue(ActorRef receiver, Envelope handle) {
+      long sequence = nextSequence++;
+      if(isUrgent(handle.message())) {
+        Long after = lastNormal.get(handle.sender());
+        urgent.add(new Queued(handle, sequence, (after == null) ? -1 : after));
+      } else {
+        normal.add(new Queued(handle, sequence, -1));
+        lastNormal.put(handle.sender(), sequence);
+      }
+    }
+
+    @Override
+    public synchronized Envelope dequeue() {
+      Queued first = urgent.peek();
+      //The normal messages sent before by the same sender are older than anything else in the normal queue
+      if(first != null && (normal.isEmpty() || normal.peek().sequence > first.after)) {
+        return urgent.poll().envelope;
+      }
+
+      Queued next = normal.poll();
+      if(next == null) {
+        return null;
+      }
+      if(lastNormal.get(next.envelope.sender()) == next.sequence) {
+        lastNormal.remove(next.envelope.sender());
+      }
+      return next.envelope;
+    }
+
+    @Override
+    public synchronized int numberOfMessages() {
+      return urgent.size() + normal.size();
+    }
+
+    @Override
+    public synchronized boolean hasMessages() {
+      return !urgent.isEmpty() || !normal.isEmpty();
+    }
+
+    @Override
+    public void cleanUp(ActorRef owner, MessageQueue deadLetters) {
+      Envelope envelope;
+      while((envelope = dequeue()) != null) {
+        deadLetters.enqueue(owner, envelope);
+      }
+    }
+  }
+}
@@ -0,0 +1,396 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.OneForOneStrategy;
+import akka.actor.Props;
+import akka.actor.SupervisorStrategy;
+import akka.actor.SupervisorStrategyConfigurator;
+import akka.japi.pf.DeciderBuilder;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import it.distr.utils.CommandParser;
+import scala.concurrent.ExecutionContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Scanner;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/*
+Deterministic discrete-event simulation of the nodes. They are the usual actors, but their actor system runs every
+mailbox on the thread driving the simulation, in the order in which the messages were sent, and their timers (link
+delays, critical sections, lease timeouts, heartbeats) are events on a virtual clock instead of the Akka scheduler.
+The clock jumps from one event to the next, so a scenario runs as fast as its messages are handled, and the link delays
+of each node are drawn from a generator seeded by the seed of the simulation: the same seed and the same commands
+deliver the same messages at the same virtual times. Every delivery can be written to a trace, and a trace replayed:
+its scenario is run again with its seed, checking that each message delivered is the one recorded.
+
+  Simulation scenario [seed [trace]]
+  Simulation replay trace
+
+Scenarios are the files of the console, delay advances the virtual clock. Everything must happen on the thread that
+created the simulation. A node throwing an exception is stopped, not restarted with an empty state that would hide
+the failure
+ */
+public class Simulation {
+
+  private static final String SEED = "seed ";
+  private static final String COMMAND = "> ";
+
+  private long seed;
+  private final ActorSystem system;
+  //Actors created so far, stopped by restart()
+  private final List<ActorRef> actors = new ArrayList<>();
+  //Mailboxes with messages to handle, run in order by the simulation
+  private final Queue<Runnable> ready = new ConcurrentLinkedQueue<>();
+  private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+  //Virtual time in ns
+  private long now = 0;
+  //Orders the timers expiring at the same time as they were scheduled
+  private long nextSequence = 0;
+  private long delivered = 0;
+  //Deliveries after which the simulation stops, as a livelock never advancing the clock would not
+  private long maxDelivered = Long.MAX_VALUE;
+  //Written with every delivery if recording
+  private PrintWriter trace;
+  //Deliveries still expected if replaying
+  private Iterator<String> expected;
+  //First delivery differing from the replayed trace, the simulation stops there
+  private String divergence;
+  //Notified of the critical section entries and exits, may be null
+  private Monitor monitor;
+
+  //Stops the nodes failing with any throwable, failed assertions included, which would otherwise stop the whole system
+  public static class StopOnFailure implements SupervisorStrategyConfigurator {
+    @Override
+    public SupervisorStrategy create() {
+      return new OneForOneStrategy(DeciderBuilder.matchAny(failure -> SupervisorStrategy.stop()).build());
+    }
+  }
+
+  //Called on the thread of the simulation as soon as a node enters or exits a critical section, shared if it reads
+  public interface Monitor {
+    void entered(int nodeId, String resource, boolean shared);
+    void exited(int nodeId, String resource, boolean shared);
+  }
+
+  private static class Timer implements Cancellable, Comparable<Timer> {
+    private long time;
+    private long sequence;
+    //0 for timers firing once
+    private final long interval;
+    private final ActorRef target;
+    private final Object message;
+    private boolean cancelled = false;
+
+    Timer(long time, long sequence, long interval, ActorRef target, Object message) {
+      this.time = time;
+      this.sequence = sequence;
+      this.interval = interval;
+      this.target = target;
+      this.message = message;
+    }
+
+    @Override
+    public boolean cancel() {
+      boolean wasActive = !cancelled;
+      cancelled = true;
+      return wasActive;
+    }
+
+    @Override
+    public boolean isCancelled() {
+      return cancelled;
+    }
+
+    @Override
+    public int compareTo(Timer other) {
+      int byTime = Long.compare(time, other.time);
+      return (byTime != 0) ? byTime : Long.compare(sequence, other.sequence);
+    }
+  }
+
+  public Simulation(long seed) {
+    this.seed = seed;
+    //Loggers are actors whose startup is awaited, which would block before the simulation runs them
+    Config config = ConfigFactory.parseString("akka.loggers = [\"akka.event.Logging$StandardOutLogger\"]\n"
+            + "akka.log-dead-letters = off\n"
+            + "akka.actor.guardian-supervisor-strategy = \"" + StopOnFailure.class.getName() + "\"\n"
+            + "akka.jvm-shutdown-hooks = off\n"
+            + "akka.coordinated-shutdown.run-by-jvm-shutdown-hook = off").withFallback(ConfigFactory.load());
+    system = ActorSystem.create("simulation", config, Simulation.class.getClassLoader(), ExecutionContext.fromExecutor(ready::add));
+  }
+
+  public ActorSystem system() {
+    return system;
+  }
+
+  //Node built by messages, as by create
+  public ActorRef createNode(int id) {
+    return actorOf(Node.props(id, this));
+  }
+
+  public ActorRef actorOf(Props props) {
+    ActorRef actor = system.actorOf(props);
+    actors.add(actor);
+    return actor;
+  }
+
+  /*
+  Stops the actors and discards the timers, virtual time starts again from 0 with the new seed. Much faster than a new
+  simulation, most of whose cost is creating the actor system
+   */
+  public void restart(long newSeed) {
+    trace = null;
+    expected = null;
+    divergence = null;
+    monitor = null;
+    maxDelivered = Long.MAX_VALUE;
+    for(ActorRef actor : actors) {
+      system.stop(actor);
+    }
+    actors.clear();
+    drain();
+    timers.clear();
+    seed = newSeed;
+    now = 0;
+    nextSequence = 0;
+    delivered = 0;
+  }
+
+  public void monitor(Monitor monitor) {
+    this.monitor = monitor;
+  }
+
+  public long seed() {
+    return seed;
+  }
+
+  public long nanoTime() {
+    return now;
+  }
+
+  //Messages nodes delivered to each other so far
+  public long delivered() {
+    return delivered;
+  }
+
+  public void limit(long maxDeliveries) {
+    this.maxDelivered = maxDeliveries;
+  }
+
+  //Stopped by a divergence or by the limit of deliveries
+  public boolean halted() {
+    return divergence != null || delivered > maxDelivered;
+  }
+
+  //Null unless a replay diverged
+  public String divergence() {
+    return divergence;
+  }
+
+  //Writes every delivery to the trace from now on
+  public void record(PrintWriter trace) {
+    this.trace = trace;
+  }
+
+  //Checks every delivery from now on against the given ones, in order
+  public void replay(Iterator<String> deliveries) {
+    this.expected = deliveries;
+  }
+
+  //True if a replay delivered all the deliveries it expected
+  public boolean replayComplete() {
+    return expected != null && divergence == null && !expected.hasNext();
+  }
+
+  //Generator of the link delays of a node, independent of the order in which nodes are created
+  Random randomFor(int nodeId) {
+    return new Random(seed ^ (0x9E3779B97F4A7C15L * (nodeId + 1)));
+  }
+
+  //Sends the message to the target at the given virtual time from now, then every interval ns if it is not 0
+  Cancellable schedule(long delayNanos, long intervalNanos, ActorRef target, Object message) {
+    Timer timer = new Timer(now + delayNanos, nextSequence++, intervalNanos, target, message);
+    timers.add(timer);
+    return timer;
+  }
+
+  void csEntered(int nodeId, String resource, boolean shared) {
+    if(monitor != null) {
+      monitor.entered(nodeId, resource, shared);
+    }
+  }
+
+  void csExited(int nodeId, String resource, boolean shared) {
+    if(monitor != null) {
+      monitor.exited(nodeId, resource, shared);
+    }
+  }
+
+  //Message leaving a link of node fromId for node toId
+  void deliver(int fromId, int toId, ActorRef dest, Object message, ActorRef sender) {
+    delivered++;
+    if(trace != null || expected != null) {
+      String event = now + " " + fromId + " " + toId + " " + describe(message);
+      if(trace != null) {
+        trace.println(event);
+      }
+      if(expected != null && divergence == null) {
+        String recorded = expected.hasNext() ? expected.next() : null;
+        if(!event.equals(recorded)) {
+          divergence = "delivery " + delivered + ": expected " + (recorded == null ? "nothing" : recorded) + ", delivered " + event;
+        }
+      }
+    }
+    dest.tell(message, sender);
+  }
+
+  //Message type and resource, messages have no stable toString()
+  private static String describe(Object message) {
+    String resource = Node.resourceOf(message);
+    return (resource == null) ? message.getClass().getSimpleName() : message.getClass().getSimpleName() + " " + resource;
+  }
+
+  //Advances the virtual clock, handling every message and timer due in the meantime
+  public void run(long nanos) {
+    long end = now + nanos;
+    advance(() -> false, end);
+    if(!halted()) {
+      now = Math.max(now, end);
+    }
+  }
+
+  //Handles messages and timers until the condition holds, at most for the given virtual time. Returns whether it holds
+  public boolean runUntil(BooleanSupplier condition, long timeoutNanos) {
+    advance(condition, now + timeoutNanos);
+    return condition.getAsBoolean();
+  }
+
+  private void advance(BooleanSupplier condition, long end) {
+    drain();
+    while(!halted() && !condition.getAsBoolean()) {
+      Timer timer = timers.peek();
+      if(timer == null || timer.time > end) {
+        return;
+      }
+      timers.poll();
+      if(timer.cancelled) {
+        continue;
+      }
+      now = timer.time;
+      timer.target.tell(timer.message, timer.target);
+      if(timer.interval > 0) {
+        timer.time += timer.interval;
+        timer.sequence = nextSequence++;
+        timers.add(timer);
+      }
+      drain();
+    }
+  }
+
+  private void drain() {
+    Runnable mailbox;
+    while(!halted() && (mailbox = ready.poll()) != null) {
+      mailbox.run();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if(args.length == 2 && args[0].equals("replay")) {
+      System.exit(replay(new File(args[1])) ? 0 : 1);
+    } else if(args.length >= 1 && args.length <= 3) {
+      long seed = (args.length > 1) ? Long.parseLong(args[1]) : System.nanoTime();
+      List<String> commands = Files.readAllLines(new File(args[0]).toPath(), StandardCharsets.UTF_8);
+      Simulation simulation = new Simulation(seed);
+
+      if(args.length > 2) {
+        PrintWriter trace = new PrintWriter(Files.newBufferedWriter(new File(args[2]).toPath(), StandardCharsets.UTF_8));
+        trace.println(SEED + seed);
+        for(String command : commands) {
+          trace.println(COMMAND + command);
+        }
+        simulation.record(trace);
+        simulation.runScenario(commands);
+        trace.close();
+      } else {
+        simulation.runScenario(commands);
+      }
+      System.exit(0);
+    } else {
+      System.out.println("Usage: Simulation scenario [seed [trace]] | Simulation replay trace");
+    }
+  }
+
+  //Runs the scenario of the trace with its seed, returns whether it delivered the recorded messages
+  static boolean replay(File file) throws IOException {
+    List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+    if(lines.isEmpty() || !lines.get(0).startsWith(SEED)) {
+      System.out.println("Not a trace: " + file);
+      return false;
+    }
+    long seed = Long.parseLong(lines.get(0).substring(SEED.length()));
+    List<String> commands = new ArrayList<>();
+    int first = 1;
+    while(first < lines.size() && lines.get(first).startsWith(COMMAND)) {
+      commands.add(lines.get(first++).substring(COMMAND.length()));
+    }
+    List<String> deliveries = lines.subList(first, lines.size());
+
+    Simulation simulation = new Simulation(seed);
+    simulation.replay(deliveries.iterator());
+    simulation.runScenario(commands);
+
+    if(simulation.divergence() != null) {
+      System.out.println("Replay diverged at " + simulation.divergence());
+      return false;
+    } else if(!simulation.replayComplete()) {
+      System.out.println("Replay stopped after " + simulation.delivered() + " of " + deliveries.size() + " deliveries");
+      return false;
+    }
+    System.out.println("Replayed " + deliveries.size() + " deliveries exactly");
+    return true;
+  }
+
+  private void runScenario(List<String> commands) {
+    System.out.println("Simulating with seed " + seed);
+    CommandParser parser = new CommandParser(this, new Scanner(String.join("\n", commands)));
+    long start = System.nanoTime();
+    boolean over = false;
+    while(!over && !halted()) {
+      over = parser.parse();
+    }
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println("Simulated " + TimeUnit.NANOSECONDS.toMillis(now) + " ms in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+            + delivered + " messages delivered (" + (long) (delivered / Math.max(elapsed / 1e9, 1e-9)) + " per second)");
+  }
+}
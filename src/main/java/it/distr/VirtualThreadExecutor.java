@@ -0,0 +1,44 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.dispatch.DispatcherPrerequisites;
+import akka.dispatch.ExecutorServiceConfigurator;
+import akka.dispatch.ExecutorServiceFactory;
+import com.typesafe.config.Config;
+import it.distr.utils.VirtualThreads;
+
+import java.util.concurrent.ThreadFactory;
+
+/*
+Executor of a dispatcher running each mailbox batch on a new virtual thread (Java 21).
+Nodes then cost no carrier thread while they wait, which only matters if something blocks in them: the network and its
+simulated link delays never block. The thread factory of the dispatcher is not used, virtual threads are unnamed
+ */
+public class VirtualThreadExecutor extends ExecutorServiceConfigurator {
+
+  public VirtualThreadExecutor(Config config, DispatcherPrerequisites prerequisites) {
+    super(config, prerequisites);
+  }
+
+  @Override
+  public ExecutorServiceFactory createExecutorServiceFactory(String id, ThreadFactory threadFactory) {
+    if(!VirtualThreads.isAvailable()) {
+      throw new IllegalArgumentException("Dispatcher " + id + " needs virtual threads, available from Java 21");
+    }
+    return VirtualThreads::newExecutor;
+  }
+}
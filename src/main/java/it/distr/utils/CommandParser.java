@@ -17,12 +17,30 @@ package it.distr.utils;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.Deploy;
+import akka.actor.Props;
+import akka.pattern.PatternsCS;
+import akka.remote.RemoteScope;
+import it.distr.DistributedMutex;
+import it.distr.NetworkBuilder;
 import it.distr.Node;
+import it.distr.Simulation;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -30,62 +48,133 @@ public class CommandParser {
 
     // UTILITY COMMANDS
     public static final Pattern COMMAND_SOURCE = Pattern.compile("^source\\s+(\\S+)$");
+    public static final Pattern COMMAND_LOG_LEVEL = Pattern.compile("^log_level\\s+(\\S+)$");
 
     // COMMANDS FOR BUILDING THE NETWORK
     public static final Pattern COMMAND_CREATE = Pattern.compile("^create\\s+(\\d+)$");
     public static final Pattern COMMAND_CONNECT = Pattern.compile("^connect\\s+(\\d+)\\s+(\\d+)$");
     public static final Pattern COMMAND_INJECT = Pattern.compile("^inject\\s+(\\d+)$"); //inject token into network
+    public static final Pattern COMMAND_LINK = Pattern.compile("^link\\s+(\\d+)\\s+(\\d+)$"); //physical link the optimizer may use
+    public static final Pattern COMMAND_RATE = Pattern.compile("^rate\\s+(\\d+)\\s+(\\d+(?:\\.\\d+)?)$"); //declared request rate of a node
+    public static final Pattern COMMAND_OPTIMIZE = Pattern.compile("^optimize(\\s+tree)?$"); //inject token in the best node
+    public static final Pattern COMMAND_GENERATE = Pattern.compile("^generate\\s+(random|kary|star|line|caterpillar)(?::(\\d+))?\\s+(\\d+)(?:\\s+(-?\\d+))?$"); //shape[:arity] size [seed]
 
     // COMMANDS FOR TESTING THE NETWORK
-    public static final Pattern COMMAND_REQUEST = Pattern.compile("^request\\s+(\\d+(?:\\s*,\\s*\\d+)*)+$");
+    public static final Pattern COMMAND_REQUEST = Pattern.compile("^request\\s+(\\d+(?:\\s*,\\s*\\d+)*)(?:\\s+([A-Za-z][\\w.:-]*))?(?:\\s+(\\d+))?$"); //optionally followed by the resource name and the priority
+    public static final Pattern COMMAND_READ = Pattern.compile("^read\\s+(\\d+(?:\\s*,\\s*\\d+)*)(?:\\s+([A-Za-z][\\w.:-]*))?$"); //optionally followed by the resource name
     public static final Pattern COMMAND_CRASH = Pattern.compile("^crash\\s+(\\d+)$");
     public static final Pattern COMMAND_EXIT = Pattern.compile("^exit$");
     public static final Pattern COMMAND_DELAY = Pattern.compile("^delay\\s+(\\d+)$");
     public static final Pattern COMMAND_HELP = Pattern.compile("^help$");
-    public static final Pattern COMMAND_RFT = Pattern.compile("^rft\\s+(\\d+)\\s+(\\d+)$"); //request from -> to
+    public static final Pattern COMMAND_RFT = Pattern.compile("^rft\\s+(\\d+)\\s+(\\d+)(?:\\s+([A-Za-z][\\w.:-]*))?$"); //request from -> to
     public static final Pattern COMMAND_FORCE_CRASH = Pattern.compile("^force_crash\\s+(\\d+)$");
     public static final Pattern COMMAND_FORCE_RECOVERY = Pattern.compile("^force_recovery\\s+(\\d+)$");
+    public static final Pattern COMMAND_HOPS = Pattern.compile("^hops$");
+    public static final Pattern COMMAND_METRICS = Pattern.compile("^metrics(?:\\s+(\\d+))?$");
+    public static final Pattern COMMAND_LOCK = Pattern.compile("^lock\\s+(\\d+)(?:\\s+([A-Za-z][\\w.:-]*))?(?:\\s+(\\d+))?$"); //acquire until unlocked
+    public static final Pattern COMMAND_RLOCK = Pattern.compile("^rlock\\s+(\\d+)(?:\\s+([A-Za-z][\\w.:-]*))?$"); //read until unlocked
+    public static final Pattern COMMAND_UNLOCK = Pattern.compile("^unlock\\s+(\\d+)(?:\\s+([A-Za-z][\\w.:-]*))?$");
+
+    // COMMANDS FOR SIMULATING THE NETWORK
+    public static final Pattern COMMAND_LINK_DELAY = Pattern.compile("^link_delay\\s+(\\d+)\\s+(\\d+)\\s+(\\S+)$"); //delay distribution of a link
+    public static final Pattern COMMAND_NET_DELAY = Pattern.compile("^net_delay\\s+(\\S+)$"); //delay distribution of all links
 
     private ActorSystem system;
     private ArrayList<ActorRef> nodes;
-    private int crashedNode = -1;
+    //Crashed nodes, nodes asked to crash that did not answer yet and revived nodes still recovering. Recovery needs the
+    //state of all the neighbors, so a node refuses to crash while one of its neighbors is in any of them
+    private Set<Integer> crashedNodes = ConcurrentHashMap.newKeySet();
+    private Set<Integer> crashingNodes = ConcurrentHashMap.newKeySet();
+    private Set<Integer> recoveringNodes = ConcurrentHashMap.newKeySet();
     private boolean tokenInjected = false;
     private Scanner inputSource;
+    private DistributedMutex mutex;
+    //Remote actor systems hosting the nodes
+    private List<Address> workers;
+    //Runs the nodes and the delays in virtual time if not null
+    private Simulation simulation;
+    //Leases obtained by lock and not yet unlocked, by node ID and resource, and the ones still being acquired. A node
+    //holds or waits for at most one lease of each resource, so that unlock knows which one to release
+    private Map<String, DistributedMutex.Lease> heldLeases = new ConcurrentHashMap<>();
+    private Set<String> pendingLeases = ConcurrentHashMap.newKeySet();
+    //Edges connected so far and physical links declared for the optimizer
+    private List<int[]> connections = new ArrayList<>();
+    private List<int[]> links = new ArrayList<>();
+    //Declared request rates by node ID, nodes without one have rate 1
+    private Map<Integer, Double> rates = new HashMap<>();
+    //Expected hops per entry of the injected network, computed by optimize, and counters when the token was injected
+    private double expectedHops = -1;
+    private long messagesAtInject;
+    private long entriesAtInject;
 
 
     public CommandParser(ActorSystem s) {
+        this(s, Collections.emptyList());
+    }
+
+    //Nodes are deployed on the workers in round robin, or created locally if there are none
+    public CommandParser(ActorSystem s, List<Address> w) {
+        workers = w;
         inputSource = new Scanner(System.in);
         nodes = new ArrayList<ActorRef>();
         system = s;
+        mutex = new DistributedMutex(nodes);
 
         System.out.println("# Enter a command (try 'help' or 'source scenario_1.txt')");
     }
 
+    //Runs the given commands on the nodes of the simulation, parsing is over at their end
+    public CommandParser(Simulation s, Scanner commands) {
+        workers = Collections.emptyList();
+        inputSource = commands;
+        nodes = new ArrayList<ActorRef>();
+        system = s.system();
+        simulation = s;
+        mutex = new DistributedMutex(nodes);
+    }
+
     /*
     Return true if parsing is over, false if continues
      */
     public boolean parse() {
-        System.out.print("# ");
         String input = "#";
 
-        if(!inputSource.hasNext()) {
-            System.out.println("Sourcing from file over, switching to interactive mode");
-            inputSource = new Scanner(System.in);
-        }
+        if(simulation != null) {
+            //Commands are not typed, nothing to prompt
+            while(input.startsWith("#") || input.isEmpty()) {
+                if(!inputSource.hasNextLine()) {
+                    return true;
+                }
+                input = inputSource.nextLine().trim();
+            }
+        } else {
+            System.out.print("# ");
+
+            if(!inputSource.hasNext()) {
+                System.out.println("Sourcing from file over, switching to interactive mode");
+                inputSource = new Scanner(System.in);
+            }
 
-        while(input.startsWith("#") || input.isEmpty()) {
-            input = inputSource.nextLine();
-            input = input.trim();
+            while(input.startsWith("#") || input.isEmpty()) {
+                input = inputSource.nextLine();
+                input = input.trim();
+            }
         }
 
 
         Matcher match_source = COMMAND_SOURCE.matcher(input);
+        Matcher match_log_level = COMMAND_LOG_LEVEL.matcher(input);
 
         Matcher match_create = COMMAND_CREATE.matcher(input);
         Matcher match_connect = COMMAND_CONNECT.matcher(input);
         Matcher match_inject = COMMAND_INJECT.matcher(input);
+        Matcher match_generate = COMMAND_GENERATE.matcher(input);
+        Matcher match_link = COMMAND_LINK.matcher(input);
+        Matcher match_rate = COMMAND_RATE.matcher(input);
+        Matcher match_optimize = COMMAND_OPTIMIZE.matcher(input);
 
         Matcher match_request = COMMAND_REQUEST.matcher(input);
+        Matcher match_read = COMMAND_READ.matcher(input);
         Matcher match_crash = COMMAND_CRASH.matcher(input);
         Matcher match_exit = COMMAND_EXIT.matcher(input);
         Matcher match_delay = COMMAND_DELAY.matcher(input);
@@ -93,31 +182,65 @@ public class CommandParser {
         Matcher match_rft = COMMAND_RFT.matcher(input);
         Matcher match_force_crash = COMMAND_FORCE_CRASH.matcher(input);
         Matcher match_force_recovery = COMMAND_FORCE_RECOVERY.matcher(input);
+        Matcher match_hops = COMMAND_HOPS.matcher(input);
+        Matcher match_metrics = COMMAND_METRICS.matcher(input);
+        Matcher match_lock = COMMAND_LOCK.matcher(input);
+        Matcher match_rlock = COMMAND_RLOCK.matcher(input);
+        Matcher match_unlock = COMMAND_UNLOCK.matcher(input);
+
+        Matcher match_link_delay = COMMAND_LINK_DELAY.matcher(input);
+        Matcher match_net_delay = COMMAND_NET_DELAY.matcher(input);
 
         if(match_exit.matches()) {
             return true;
         } if(match_delay.matches()) {
             execDelay(match_delay.group(1));
         } else if(match_request.matches()) {
-            execRequest(match_request.group(1));
+            execRequest(match_request.group(1), match_request.group(2), match_request.group(3));
+        } else if(match_read.matches()) {
+            execRead(match_read.group(1), match_read.group(2));
         } else if(match_crash.matches()) {
             execCrash(match_crash.group(1));
         } else if(match_help.matches()) {
             printUsage();
         } else if(match_rft.matches()) {
-            execRft(match_rft.group(1), match_rft.group(2));
+            execRft(match_rft.group(1), match_rft.group(2), match_rft.group(3));
         } else if(match_force_crash.matches()) {
             execForceCrash(match_force_crash.group(1));
         } else if(match_force_recovery.matches()) {
             execForceRecovery(match_force_recovery.group(1));
+        } else if(match_hops.matches()) {
+            execHops();
+        } else if(match_metrics.matches()) {
+            execMetrics(match_metrics.group(1));
+        } else if(match_lock.matches()) {
+            execLock(match_lock.group(1), match_lock.group(2), match_lock.group(3));
+        } else if(match_rlock.matches()) {
+            execRlock(match_rlock.group(1), match_rlock.group(2));
+        } else if(match_unlock.matches()) {
+            execUnlock(match_unlock.group(1), match_unlock.group(2));
         } else if(match_create.matches()) {
             execCreate(match_create.group(1));
         } else if(match_connect.matches()) {
             execConnect(match_connect.group(1), match_connect.group(2));
         } else if(match_inject.matches()) {
             execInject(match_inject.group(1));
+        } else if(match_link.matches()) {
+            execLink(match_link.group(1), match_link.group(2));
+        } else if(match_rate.matches()) {
+            execRate(match_rate.group(1), match_rate.group(2));
+        } else if(match_optimize.matches()) {
+            execOptimize(match_optimize.group(1) != null);
+        } else if(match_generate.matches()) {
+            execGenerate(match_generate.group(1), match_generate.group(2), match_generate.group(3), match_generate.group(4));
         } else if(match_source.matches()) {
             execSource(match_source.group(1));
+        } else if(match_log_level.matches()) {
+            execLogLevel(match_log_level.group(1));
+        } else if(match_link_delay.matches()) {
+            execLinkDelay(match_link_delay.group(1), match_link_delay.group(2), match_link_delay.group(3));
+        } else if(match_net_delay.matches()) {
+            execNetDelay(match_net_delay.group(1));
         } else if(input.equals("")){
             return false;
         } else {
@@ -127,7 +250,7 @@ public class CommandParser {
         return false;
     }
 
-    private void execRequest(String a) {
+    private void execRequest(String a, String resource, String p) {
         //parse arguments
         String args[] = a.split(",");
         int nodeIds[] = new int[args.length];
@@ -140,16 +263,150 @@ public class CommandParser {
             }
         }
 
+        int priority = parsePriority(p);
+        if(priority == -1) {
+            return;
+        }
+
+        Node.Request request = Node.Request.of((resource == null) ? Node.DEFAULT_RESOURCE : resource, priority);
         for(int i = 0; i < args.length; i++) {
-            System.out.println("Sending request message to node " + nodeIds[i]);
-            nodes.get(nodeIds[i]).tell(new Node.Request(), nodes.get(nodeIds[i]));
+            System.out.println("Sending request message for " + request.resource + " to node " + nodeIds[i]);
+            nodes.get(nodeIds[i]).tell(request, nodes.get(nodeIds[i]));
+        }
+    }
+
+    private void execRead(String a, String resource) {
+        //parse arguments
+        String args[] = a.split(",");
+        int nodeIds[] = new int[args.length];
+        for(int i = 0; i < args.length; i++) {
+            args[i] = args[i].trim();
+            nodeIds[i] = Integer.parseInt(args[i]);
+            if(nodeIds[i] < 0 || nodeIds[i] >= nodes.size()) {
+                System.out.println("Node IDs not valid!");
+                return;
+            }
+        }
+
+        Node.ReadRequest request = Node.ReadRequest.of((resource == null) ? Node.DEFAULT_RESOURCE : resource);
+        for(int i = 0; i < args.length; i++) {
+            System.out.println("Sending read request message for " + request.resource + " to node " + nodeIds[i]);
+            nodes.get(nodeIds[i]).tell(request, nodes.get(nodeIds[i]));
+        }
+    }
+
+    private void execLock(String a, String r, String p) {
+        //parse arguments
+        int nodeId = Integer.parseInt(a.trim());
+        String resource = (r == null) ? Node.DEFAULT_RESOURCE : r;
+
+        if(nodeId < 0 || nodeId >= nodes.size()) {
+            System.out.println("Node ID not valid!");
+            return;
+        }
+
+        int priority = parsePriority(p);
+        if(priority == -1 || !reserveLease(nodeId, resource)) {
+            return;
+        }
+
+        System.out.println("Node " + nodeId + " acquiring " + resource);
+        mutex.acquire(nodeId, resource, Configuration.LEASE_TIMEOUT, priority).whenComplete((lease, error) -> {
+            completeLease(nodeId, resource, lease);
+            if(error != null) {
+                System.out.println("Node " + nodeId + " could not acquire " + resource + ": " + error.getMessage());
+            } else {
+                System.out.println("Node " + nodeId + " acquired " + resource + " after " + TimeUnit.NANOSECONDS.toMillis(lease.latencyNanos()) + " ms");
+            }
+        });
+    }
+
+    private void execRlock(String a, String r) {
+        //parse arguments
+        int nodeId = Integer.parseInt(a.trim());
+        String resource = (r == null) ? Node.DEFAULT_RESOURCE : r;
+
+        if(nodeId < 0 || nodeId >= nodes.size()) {
+            System.out.println("Node ID not valid!");
+            return;
+        }
+        if(!reserveLease(nodeId, resource)) {
+            return;
+        }
+
+        System.out.println("Node " + nodeId + " acquiring " + resource + " for reading");
+        mutex.acquireShared(nodeId, resource).whenComplete((lease, error) -> {
+            completeLease(nodeId, resource, lease);
+            if(error != null) {
+                System.out.println("Node " + nodeId + " could not read " + resource + ": " + error.getMessage());
+            } else {
+                System.out.println("Node " + nodeId + " reading " + resource + " after " + TimeUnit.NANOSECONDS.toMillis(lease.latencyNanos()) + " ms");
+            }
+        });
+    }
+
+    //Returns false if the node already holds or waits for a lease of the resource
+    private boolean reserveLease(int nodeId, String resource) {
+        String key = nodeId + " " + resource;
+        if(heldLeases.containsKey(key) || !pendingLeases.add(key)) {
+            System.out.println("Node " + nodeId + " already holds or waits for " + resource + "!");
+            return false;
         }
+        return true;
+    }
+
+    //lease is null if the acquisition failed
+    private void completeLease(int nodeId, String resource, DistributedMutex.Lease lease) {
+        String key = nodeId + " " + resource;
+        if(lease != null) {
+            heldLeases.put(key, lease);
+        }
+        pendingLeases.remove(key);
+    }
+
+    //Returns -1 if the priority is not valid, NORMAL if omitted
+    private int parsePriority(String p) {
+        if(p == null) {
+            return RequestQueue.NORMAL;
+        }
+        int priority;
+        try {
+            priority = Integer.parseInt(p);
+        } catch (NumberFormatException e) {
+            //More digits than an int holds
+            priority = Integer.MAX_VALUE;
+        }
+        if(priority > RequestQueue.HIGHEST) {
+            System.out.println("Priority not valid, the highest is " + RequestQueue.HIGHEST + "!");
+            return -1;
+        }
+        return priority;
+    }
+
+    private void execUnlock(String a, String r) {
+        //parse arguments
+        int nodeId = Integer.parseInt(a.trim());
+        String resource = (r == null) ? Node.DEFAULT_RESOURCE : r;
+
+        DistributedMutex.Lease lease = heldLeases.remove(nodeId + " " + resource);
+        if(lease == null) {
+            System.out.println("Node " + nodeId + " does not hold " + resource + "!");
+            return;
+        }
+
+        lease.release();
+        System.out.println("Node " + nodeId + " released " + resource);
     }
 
     private void execDelay(String delayMillisStr) {
         //parse arguments
         int delayMillis = Integer.parseInt(delayMillisStr.trim());
 
+        if(simulation != null) {
+            simulation.run(TimeUnit.MILLISECONDS.toNanos(delayMillis));
+            return;
+        }
+
         try {
             Thread.sleep(delayMillis);
         } catch (InterruptedException e) {
@@ -166,23 +423,58 @@ public class CommandParser {
             return;
         }
 
-        if(crashedNode == -1) {
-            //crash node
-            System.out.println("Crashing node " + nodeId);
-            nodes.get(nodeId).tell(new Node.CrashBegin(), null);
-            crashedNode = nodeId;
-        } else if (crashedNode == nodeId) {
-            //bring back node
+        //A node that did not answer yet is revived too, the crash end is ignored if it did not crash
+        if(crashedNodes.remove(nodeId) || crashingNodes.remove(nodeId)) {
+            //bring back node, it counts as crashed until it answers once recovered
             System.out.println("Reviving node " + nodeId);
             nodes.get(nodeId).tell(new Node.CrashEnd(), null);
-            crashedNode = -1;
-        } else {
-            //a node is already crashed, must before recover the other
-            System.out.println("Node " + crashedNode + " is already crashed! Cannot crash more!");
+            awaitRecovery(nodeId);
+            return;
         }
+
+        if(recoveringNodes.contains(nodeId)) {
+            System.out.println("Node " + nodeId + " is still recovering! Retry later");
+            return;
+        }
+
+        //crash node, it refuses if one of its current neighbors is down
+        Set<Integer> down = new TreeSet<>(crashedNodes);
+        down.addAll(crashingNodes);
+        down.addAll(recoveringNodes);
+        int[] downNodeIds = down.stream().mapToInt(Integer::intValue).toArray();
+        System.out.println("Crashing node " + nodeId);
+        crashingNodes.add(nodeId);
+        PatternsCS.ask(nodes.get(nodeId), new Node.CrashBegin(downNodeIds), Configuration.ACQUIRE_TIMEOUT).whenComplete((outcome, error) -> {
+            //Revived in the meantime otherwise
+            if(!crashingNodes.remove(nodeId)) {
+                return;
+            }
+            if(error != null) {
+                System.out.println("Node " + nodeId + " did not answer the crash!");
+            } else if(((Node.CrashOutcome) outcome).crashed && Configuration.HEARTBEAT_INTERVAL > 0) {
+                //Restarted by its neighbors once they all suspect it
+                awaitRecovery(nodeId);
+            } else if(((Node.CrashOutcome) outcome).crashed) {
+                crashedNodes.add(nodeId);
+            } else {
+                System.out.println("Node " + nodeId + " did not crash: it is in a critical section, moving in the tree or next to a node that is down");
+            }
+        });
+    }
+
+    private void awaitRecovery(int nodeId) {
+        recoveringNodes.add(nodeId);
+        PatternsCS.ask(nodes.get(nodeId), Node.IsReady.INSTANCE, Configuration.ACQUIRE_TIMEOUT).whenComplete((ready, error) -> {
+            if(error != null) {
+                System.out.println("Node " + nodeId + " did not recover!");
+            } else {
+                System.out.println("Node " + nodeId + " recovered");
+            }
+            recoveringNodes.remove(nodeId);
+        });
     }
 
-    private void execRft(String f, String t) {
+    private void execRft(String f, String t, String resource) {
         int from = Integer.parseInt(f);
         int to = Integer.parseInt(t);
 
@@ -196,8 +488,9 @@ public class CommandParser {
             return;
         }
 
-        System.out.println("Injecting request from " + from + " to " + to);
-        nodes.get(to).tell(new Node.Request(), nodes.get(from));
+        Node.Request request = (resource == null) ? Node.Request.INSTANCE : Node.Request.of(resource);
+        System.out.println("Injecting request for " + request.resource + " from " + from + " to " + to);
+        nodes.get(to).tell(request, nodes.get(from));
     }
 
     private void execForceCrash(String a) {
@@ -240,9 +533,18 @@ public class CommandParser {
 
         for (int i = 0; i < number; i++) {
             int index = alreadyThere + i;
-            ActorRef t = system.actorOf(Node.props(index));
+            ActorRef t;
+            if(simulation != null) {
+                t = simulation.createNode(index);
+            } else {
+                Props props = Node.props(index);
+                if(!workers.isEmpty()) {
+                    props = props.withDeploy(new Deploy(new RemoteScope(workers.get(index % workers.size()))));
+                }
+                t = system.actorOf(props);
+            }
             nodes.add(t);
-            System.out.println("Created node " + index);
+            System.out.println("Created node " + index + (workers.isEmpty() ? "" : " on " + t.path().address()));
         }
     }
 
@@ -267,11 +569,15 @@ public class CommandParser {
             return;
         }
 
+        connect(alpha, beta);
+        System.out.println("Nodes " + alpha + " and " + beta + " are now neighbors");
+    }
+
+    private void connect(int alpha, int beta) {
         //send neighbor message to both
         nodes.get(alpha).tell(new Node.NeighborInit(beta, nodes.get(beta)), null);
         nodes.get(beta).tell(new Node.NeighborInit(alpha, nodes.get(alpha)), null);
-
-        System.out.println("Nodes " + alpha + " and " + beta + " are now neighbors");
+        connections.add(new int[] {alpha, beta});
     }
 
     private void execInject(String a) {
@@ -289,9 +595,229 @@ public class CommandParser {
             return;
         }
 
+        inject(nodeId);
+    }
+
+    private void inject(int nodeId) {
         nodes.get(nodeId).tell(new Node.TokenInject(), null);
         System.out.println("Injected token to " + nodeId);
         tokenInjected = true;
+        messagesAtInject = Node.tokenMessagesSent();
+        entriesAtInject = Node.csEntries();
+    }
+
+    private void execLink(String a, String b) {
+
+        if(tokenInjected) {
+            System.out.println("Token already injected, cannot change neighbors!");
+            return;
+        }
+
+        //parse arguments
+        int alpha = Integer.parseInt(a.trim());
+        int beta = Integer.parseInt(b.trim());
+
+        if(alpha < 0 || alpha >= nodes.size() || beta < 0 || beta >= nodes.size() || alpha == beta) {
+            System.out.println("Node IDs not valid!");
+            return;
+        }
+
+        links.add(new int[] {alpha, beta});
+        System.out.println("Nodes " + alpha + " and " + beta + " may be connected by optimize");
+    }
+
+    private void execRate(String a, String r) {
+        //parse arguments
+        int nodeId = Integer.parseInt(a.trim());
+        double rate = Double.parseDouble(r);
+
+        if(nodeId < 0 || nodeId >= nodes.size()) {
+            System.out.println("Node ID not valid!");
+            return;
+        }
+
+        rates.put(nodeId, rate);
+        System.out.println("Request rate of node " + nodeId + " set to " + rate);
+    }
+
+    /*
+    Injects the token in the node minimizing the expected hops of first entries. With tree, the network must not be
+    connected yet: the spanning tree of the declared links is chosen as the BFS tree from their weighted median,
+    which keeps both the distances to the token and the diameter low, and connected before injecting
+     */
+    private void execOptimize(boolean buildTree) {
+
+        if(tokenInjected) {
+            System.out.println("Token already injected!");
+            return;
+        }
+
+        double[] nodeRates = new double[nodes.size()];
+        double total = 0;
+        for(int i = 0; i < nodeRates.length; i++) {
+            nodeRates[i] = rates.getOrDefault(i, 1.0);
+            total += nodeRates[i];
+        }
+        if(nodes.isEmpty() || total <= 0) {
+            System.out.println("No request rate to optimize for!");
+            return;
+        }
+
+        int[][] tree;
+        int root;
+        try {
+            if(buildTree) {
+                if(!connections.isEmpty()) {
+                    System.out.println("Nodes already connected, cannot choose the tree!");
+                    return;
+                }
+                int[][] graph = TokenPlacement.adjacency(nodes.size(), links);
+                int center = TokenPlacement.graphMedian(graph, nodeRates);
+                int[] parents = TokenPlacement.bfsTree(graph, center);
+                for(int i = 0; i < parents.length; i++) {
+                    if(parents[i] != -1) {
+                        connect(i, parents[i]);
+                    }
+                }
+                System.out.println("Connected spanning tree of depth " + TokenPlacement.eccentricity(TokenPlacement.adjacency(nodes.size(), connections), center) + " from node " + center + " out of " + links.size() + " links");
+            }
+            tree = TokenPlacement.adjacency(nodes.size(), connections);
+            root = TokenPlacement.weightedMedian(tree, nodeRates);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Cannot optimize: " + e.getMessage() + "!");
+            return;
+        }
+
+        expectedHops = TokenPlacement.steadyStateHops(tree, nodeRates);
+        System.out.println("Expected hops of first entries: " + String.format("%.2f", TokenPlacement.firstEntryHops(tree, nodeRates, root)) + " (" + String.format("%.2f", TokenPlacement.firstEntryHops(tree, nodeRates, 0)) + " with token in 0)");
+        System.out.println("Expected hops per entry afterwards: " + String.format("%.2f", expectedHops));
+        inject(root);
+    }
+
+    private void execHops() {
+
+        if(!tokenInjected) {
+            System.out.println("Token not injected yet!");
+            return;
+        }
+
+        long entries = Node.csEntries() - entriesAtInject;
+        long messages = Node.tokenMessagesSent() - messagesAtInject;
+        System.out.println("Measured hops per entry: " + String.format("%.2f", (double) messages / Math.max(1, entries)) + " over " + entries + " entries"
+                + (expectedHops < 0 ? "" : ", expected " + String.format("%.2f", expectedHops) + " without concurrent requests"));
+    }
+
+    private void execMetrics(String nodeIdStr) {
+        if(nodeIdStr == null || !Metrics.ENABLED) {
+            System.out.print(Metrics.snapshot());
+        } else {
+            System.out.print(Metrics.nodeSnapshot(Integer.parseInt(nodeIdStr)));
+        }
+    }
+
+    private void execGenerate(String shapeName, String a, String n, String s) {
+
+        if(!nodes.isEmpty()) {
+            System.out.println("Nodes already created, cannot generate a network!");
+            return;
+        }
+
+        if(!workers.isEmpty()) {
+            //Every node would receive the references of all the others
+            System.out.println("Generated networks are local only, use create and connect with workers!");
+            return;
+        }
+
+        //parse arguments
+        TopologyGenerator.Shape shape = TopologyGenerator.Shape.valueOf(shapeName.toUpperCase());
+        int arity = (a == null) ? 2 : Integer.parseInt(a);
+        int size = Integer.parseInt(n);
+        long seed = (s == null) ? System.nanoTime() : Long.parseLong(s);
+
+        if(size < 1 || arity < 1) {
+            System.out.println("Size and arity must be positive!");
+            return;
+        }
+
+        long start = System.nanoTime();
+        int[] parents = TopologyGenerator.parents(shape, size, arity, seed);
+        ActorRef[] created = (simulation == null) ? NetworkBuilder.build(system, parents, null) : NetworkBuilder.build(simulation, parents);
+        long built = System.nanoTime();
+        Collections.addAll(nodes, created);
+        for(int i = 1; i < parents.length; i++) {
+            connections.add(new int[] {i, parents[i]});
+        }
+        tokenInjected = true;
+        messagesAtInject = Node.tokenMessagesSent();
+        entriesAtInject = Node.csEntries();
+
+        try {
+            CompletableFuture<Void> initialized = NetworkBuilder.whenReady(created, Configuration.ACQUIRE_TIMEOUT).toCompletableFuture();
+            //Nodes of a simulation only initialize while it runs
+            if(simulation != null && !simulation.runUntil(initialized::isDone, TimeUnit.MILLISECONDS.toNanos(Configuration.ACQUIRE_TIMEOUT))) {
+                System.out.println("Network not initialized");
+                return;
+            }
+            initialized.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("Network not initialized: " + e.getMessage());
+            return;
+        }
+        long ready = System.nanoTime();
+
+        System.out.println("Generated " + shape + " tree of " + size + " nodes (arity " + arity + ", seed " + seed + ", depth " + TopologyGenerator.depth(parents) + ") with token in 0");
+        System.out.println("Nodes created in " + TimeUnit.NANOSECONDS.toMillis(built - start) + " ms, initialized after " + TimeUnit.NANOSECONDS.toMillis(ready - start) + " ms");
+    }
+
+    private void execLinkDelay(String a, String b, String spec) {
+        //parse arguments
+        int alpha = Integer.parseInt(a.trim());
+        int beta = Integer.parseInt(b.trim());
+
+        if(alpha < 0 || alpha >= nodes.size()) {
+            System.out.println("Node ID not valid!");
+            return;
+        }
+
+        if(beta < 0 || beta >= nodes.size()) {
+            System.out.println("Node ID not valid!");
+            return;
+        }
+
+        DelayDistribution distribution = DelayDistribution.parse(spec);
+        if(distribution == null) {
+            System.out.println("Delay distribution not valid!");
+            return;
+        }
+
+        //the link is simulated by the sender, so configure both directions
+        nodes.get(alpha).tell(new Node.SetLinkDelay(beta, distribution), null);
+        nodes.get(beta).tell(new Node.SetLinkDelay(alpha, distribution), null);
+
+        System.out.println("Link between " + alpha + " and " + beta + " now has delay " + distribution);
+    }
+
+    private void execNetDelay(String spec) {
+        DelayDistribution distribution = DelayDistribution.parse(spec);
+        if(distribution == null) {
+            System.out.println("Delay distribution not valid!");
+            return;
+        }
+
+        for(ActorRef node : nodes) {
+            node.tell(new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, distribution), null);
+        }
+
+        System.out.println("All links now have delay " + distribution);
+    }
+
+    private void execLogLevel(String levelName) {
+        try {
+            Logger.setLevel(Logger.Level.valueOf(levelName.trim().toUpperCase()));
+            System.out.println("Log level set to " + Logger.getLevel());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Log level not valid!");
+        }
     }
 
     private void execSource(String filename) {
@@ -307,21 +833,34 @@ public class CommandParser {
         System.out.println(Configuration.ANSI_CYAN);
         System.out.println("Utility Commands:");
         System.out.println("source filename                                     -- executes commands contained in selected file");
+        System.out.println("log_level level                                     -- logs only up to level (error, warning, info, debug, trace)");
         System.out.println(Configuration.ANSI_PURPLE);
         System.out.println("Setup Commands:");
         System.out.println("create n                                            -- creates n nodes and adds them to the Actor System");
         System.out.println("connect alpha beta                                  -- sets nodes alpha and beta as neighbors");
         System.out.println("inject node_id                                      -- injects token into selected node");
+        System.out.println("link alpha beta                                     -- declares a link optimize may use to connect alpha and beta");
+        System.out.println("rate node_id rate                                   -- declares the request rate of node (1 if not declared)");
+        System.out.println("optimize [tree]                                     -- injects token into the best node, first connecting the best tree of links");
+        System.out.println("generate shape[:arity] n [seed]                     -- creates n connected nodes with token in 0 (random, kary, star, line, caterpillar)");
         System.out.println(Configuration.ANSI_GREEN);
         System.out.println("Simulation Commands:");
-        System.out.println("request comma_separated_list_of_nodes_id            -- ask node to enter CS");
-        System.out.println("crash node_id                                       -- crashes/recovers node");
+        System.out.println("request node_id,... [resource] [priority]           -- ask nodes to enter CS of resource (default if omitted), priority from 0 to 7");
+        System.out.println("read node_id,... [resource]                         -- ask nodes to read resource, together with the other readers");
+        System.out.println("lock node_id [resource] [priority]                  -- node enters CS of resource and stays until unlocked");
+        System.out.println("rlock node_id [resource]                            -- node reads resource and stays until unlocked");
+        System.out.println("unlock node_id [resource]                           -- node leaves CS of resource, or stops reading it");
+        System.out.println("crash node_id                                       -- crashes/recovers node, not while a neighbor is down");
+        System.out.println("hops                                                -- shows measured (and expected) hops per CS entry");
+        System.out.println("metrics [node_id]                                   -- shows the metrics of all nodes or of one (needs -Ddmx.metrics=true)");
+        System.out.println("link_delay alpha beta distribution                  -- sets delay of link alpha-beta (none, constant:ms, uniform:max_ms, exp:mean_ms)");
+        System.out.println("net_delay distribution                              -- sets delay of all links");
         System.out.println("help                                                -- shows this prompt");
         System.out.println("exit                                                -- terminates system");
         System.out.println(Configuration.ANSI_YELLOW);
         System.out.println("Debug Commands -- Will probably crash the software unless you know what you are doing!");
-        System.out.println("rft node_from node_to                               -- generate request from node to node");
-        System.out.println("force_crash                                         -- sends crashBegin signal (even with other crashes present)");
+        System.out.println("rft node_from node_to [resource]                    -- generate request from node to node");
+        System.out.println("force_crash                                         -- sends crashBegin signal (even next to a crashed neighbor)");
         System.out.println("force_recovery                                      -- sends crashEnd signal");
         System.out.println(Configuration.ANSI_RESET);
     }
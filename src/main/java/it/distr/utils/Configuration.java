@@ -16,10 +16,57 @@
 package it.distr.utils;
 
 public class Configuration {
-    //Enables message delaying and tracing
-    public static final boolean DEBUG = true;
+    //Enables message delaying and tracing. Can be overridden with -Ddmx.debug=false
+    public static final boolean DEBUG = Boolean.parseBoolean(System.getProperty("dmx.debug", "true"));
     //Maximum time in ms that a message can be delayed before transmission
-    public static final int MAX_WAIT = 250;
+    public static final int MAX_WAIT = Integer.getInteger("dmx.max_wait", 250);
+    //Time in ms a node spends in the critical section when it is requested without a client (request command)
+    public static final int CS_DURATION = Integer.getInteger("dmx.cs_duration", 1000);
+    //Time in ms after which a client holding the critical section is forced out if it did not release it, 0 for no limit
+    public static final long LEASE_TIMEOUT = Long.getLong("dmx.lease_timeout", 0);
+    //Requests a node may serve with a token it was lent before giving it back, 0 gives it back as soon as the requests
+    //queued before its arrival are served
+    public static final int PRIVILEGE_BATCH = Integer.getInteger("dmx.privilege_batch", 0);
+    //Order in which nodes serve the requests queued for a token: fifo, priority, or aging:ms and bypass:n separated by
+    //commas, see RequestQueue.parse()
+    public static final RequestQueue.Discipline REQUEST_QUEUE = RequestQueue.parse(System.getProperty("dmx.request_queue", "fifo"));
+    //Critical section entries after which a leaf moves one edge closer to the token, 0 keeps the tree fixed
+    public static final int REPARENT_AFTER = Integer.getInteger("dmx.reparent_after", 0);
+    //Time in ms after which a pending DistributedMutex acquisition fails
+    public static final long ACQUIRE_TIMEOUT = Long.getLong("dmx.acquire_timeout", 60000);
+    //A recovering node handles the messages of a resource as soon as a neighbor pointing away from it for the resource
+    //answered, instead of waiting for all the neighbors
+    public static final boolean INCREMENTAL_RECOVERY = Boolean.parseBoolean(System.getProperty("dmx.incremental_recovery", "false"));
+    //Interval in ms between the heartbeats a node sends to each neighbor, 0 disables failure detection. A crashed node
+    //is restarted once all its neighbors suspect it
+    public static final long HEARTBEAT_INTERVAL = Long.getLong("dmx.heartbeat_interval", 0);
+    //Suspicion level over which a silent neighbor is suspected, see PhiAccrualDetector
+    public static final double PHI_THRESHOLD = Double.parseDouble(System.getProperty("dmx.phi_threshold", "8"));
+    //Directory of the journals in which nodes write their token states, so that a restarted node recovers them locally
+    //and only checks them with the neighbors it missed messages from. Persistence is disabled if not set
+    public static final String JOURNAL_DIR = System.getProperty("dmx.journal_dir");
+    //Size in bytes of the journal of each node, when full it is replaced by a snapshot of the node state
+    public static final int JOURNAL_SIZE = Integer.getInteger("dmx.journal_size", 1 << 20);
+    //Interval in ms between the forces of the journals written in the meantime, 0 forces every record as it is written
+    public static final long JOURNAL_SYNC = Long.getLong("dmx.journal_sync", 10);
+    //Dispatcher and mailbox of the nodes, among the ones of application.conf. The Akka defaults are used if empty
+    public static final String NODE_DISPATCHER = System.getProperty("dmx.dispatcher", "");
+    public static final String NODE_MAILBOX = System.getProperty("dmx.mailbox", "");
+    //Wakes links with messages in transit from a virtual thread sleeping until the deadline (Java 21) instead of the Akka
+    //scheduler, which rounds link delays up to its tick (10 ms unless akka.scheduler.tick-duration is changed)
+    public static final boolean VIRTUAL_LINK_TIMER = Boolean.parseBoolean(System.getProperty("dmx.virtual_link_timer", "false"));
+    //Collects the protocol metrics exposed through JMX (it.distr:type=Metrics) and the metrics command
+    public static final boolean METRICS = Boolean.parseBoolean(System.getProperty("dmx.metrics", "false"));
+    //Interval in ms between metrics printed to the console, 0 to disable
+    public static final long METRICS_INTERVAL = Long.getLong("dmx.metrics_interval", 0);
+    //Minimum level of logged records, can be changed at runtime with Logger.setLevel()
+    public static final Logger.Level LOG_LEVEL = Logger.Level.valueOf(System.getProperty("dmx.log_level", DEBUG ? "TRACE" : "INFO"));
+    //Records that can wait to be written before new ones are dropped
+    public static final int LOG_BUFFER_SIZE = Integer.getInteger("dmx.log_buffer", 65536);
+    //Writes records to the console
+    public static final boolean LOG_CONSOLE = Boolean.parseBoolean(System.getProperty("dmx.log_console", "true"));
+    //File receiving every record as a JSON line, tracing to file is disabled if not set
+    public static final String TRACE_FILE = System.getProperty("dmx.trace_file");
     //ANSI CODES FOR COLORED OUTPUT
     public static final String ANSI_RESET = "\u001B[0m";
     public static final String ANSI_BLACK = "\u001B[30m";
@@ -0,0 +1,126 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/*
+Distribution of the simulated transmission delay of a link. Instances travel inside messages so they must be serializable
+ */
+public interface DelayDistribution extends Serializable {
+
+    DelayDistribution NONE = new ConstantDelay(0);
+
+    //Returns the delay in ms to apply to the next message sent on the link
+    long nextDelay(Random generator);
+
+    static DelayDistribution constant(long millis) {
+        return new ConstantDelay(millis);
+    }
+
+    static DelayDistribution uniform(int maxMillis) {
+        return new UniformDelay(maxMillis);
+    }
+
+    static DelayDistribution exponential(double meanMillis) {
+        return new ExponentialDelay(meanMillis);
+    }
+
+    //Default delay applied to links with no explicit distribution
+    static DelayDistribution defaultDistribution() {
+        return Configuration.DEBUG ? uniform(Configuration.MAX_WAIT) : NONE;
+    }
+
+    /*
+    Parses specifications in the form none, constant:ms, uniform:max_ms or exp:mean_ms
+    Returns null if the specification is not valid
+     */
+    static DelayDistribution parse(String spec) {
+        String parts[] = spec.trim().split(":");
+        try {
+            if(parts[0].equals("none") && parts.length == 1) {
+                return NONE;
+            } else if(parts[0].equals("constant") && parts.length == 2) {
+                return constant(Long.parseLong(parts[1]));
+            } else if(parts[0].equals("uniform") && parts.length == 2) {
+                return uniform(Integer.parseInt(parts[1]));
+            } else if(parts[0].equals("exp") && parts.length == 2) {
+                return exponential(Double.parseDouble(parts[1]));
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return null;
+    }
+
+    class ConstantDelay implements DelayDistribution {
+        private final long millis;
+
+        public ConstantDelay(long millis) {
+            if(millis < 0) throw new IllegalArgumentException("Negative delay " + millis);
+            this.millis = millis;
+        }
+
+        @Override
+        public long nextDelay(Random generator) {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            return "constant:" + millis;
+        }
+    }
+
+    class UniformDelay implements DelayDistribution {
+        private final int maxMillis;
+
+        public UniformDelay(int maxMillis) {
+            if(maxMillis <= 0) throw new IllegalArgumentException("Non positive maximum delay " + maxMillis);
+            this.maxMillis = maxMillis;
+        }
+
+        @Override
+        public long nextDelay(Random generator) {
+            return generator.nextInt(maxMillis);
+        }
+
+        @Override
+        public String toString() {
+            return "uniform:" + maxMillis;
+        }
+    }
+
+    class ExponentialDelay implements DelayDistribution {
+        private final double meanMillis;
+
+        public ExponentialDelay(double meanMillis) {
+            if(meanMillis <= 0) throw new IllegalArgumentException("Non positive mean delay " + meanMillis);
+            this.meanMillis = meanMillis;
+        }
+
+        @Override
+        public long nextDelay(Random generator) {
+            return (long) (-meanMillis * Math.log(1.0 - generator.nextDouble()));
+        }
+
+        @Override
+        public String toString() {
+            return "exp:" + meanMillis;
+        }
+    }
+}
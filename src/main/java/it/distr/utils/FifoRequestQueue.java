@@ -0,0 +1,92 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.NoSuchElementException;
+
+/*
+Requesters served in arrival order whatever their priority, the plain Raymond request list
+ */
+public class FifoRequestQueue implements RequestQueue {
+    //Created by the first request, most resources never queue one
+    private IntQueue order;
+    private IntMap<Boolean> members;
+
+    @Override
+    public void add(int requesterId, int priority, long now) {
+        if(order == null) {
+            order = new IntQueue();
+            members = new IntMap<>();
+        }
+        if(members.put(requesterId, Boolean.TRUE) != null) {
+            throw new IllegalStateException("Requester " + requesterId + " already queued");
+        }
+        order.add(requesterId);
+    }
+
+    @Override
+    public int poll(long now) {
+        if(order == null) {
+            throw new NoSuchElementException();
+        }
+        int requesterId = order.poll();
+        members.remove(requesterId);
+        return requesterId;
+    }
+
+    @Override
+    public boolean contains(int requesterId) {
+        return members != null && members.containsKey(requesterId);
+    }
+
+    @Override
+    public boolean raise(int requesterId, int priority) {
+        return false;
+    }
+
+    @Override
+    public int highestPriority() {
+        return NORMAL;
+    }
+
+    @Override
+    public int size() {
+        return (order != null) ? order.size() : 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return order == null || order.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        if(order != null) {
+            order.clear();
+            members.clear();
+        }
+    }
+
+    @Override
+    public int[] toArray() {
+        return (order != null) ? order.toArray() : new int[0];
+    }
+
+    @Override
+    public String toString() {
+        return (order != null) ? order.toString() : "[]";
+    }
+}
@@ -0,0 +1,135 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Concurrent histogram of non negative values with log-linear buckets, as in HdrHistogram: values below 32 are exact, the
+others fall in one of 16 buckets per power of two, so reported values are at most 1/16 above the recorded ones.
+Recording is lock-free and allocation free. Readings taken while values are recorded are approximate
+ */
+public class Histogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    //Enough buckets for any positive long
+    private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS + 1) * HALF_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong max = new AtomicLong(0);
+
+    private static int indexOf(long value) {
+        if(value < SUB_COUNT) {
+            return (int) value;
+        }
+        //Keeps the SUB_BITS most significant bits of the value
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return SUB_COUNT + (shift - 1) * HALF_COUNT + (int) ((value >> shift) - HALF_COUNT);
+    }
+
+    //Highest value falling in the bucket
+    private static long highestOf(int index) {
+        if(index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_COUNT + 1;
+        long subBucket = (index - SUB_COUNT) % HALF_COUNT + HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(indexOf(value));
+        long currentMax = max.get();
+        while(value > currentMax && !max.compareAndSet(currentMax, value)) {
+            currentMax = max.get();
+        }
+    }
+
+    public long count() {
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    //Value below which the given percentage of the recorded values falls, 0 if nothing was recorded
+    public long valueAt(double percentile) {
+        long[] snapshot = snapshot();
+        long count = 0;
+        for(long bucketCount : snapshot) {
+            count += bucketCount;
+        }
+        if(count == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if(seen >= rank) {
+                return Math.min(highestOf(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public double mean() {
+        long count = 0;
+        double sum = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            long bucketCount = counts.get(i);
+            if(bucketCount > 0) {
+                count += bucketCount;
+                //Middle of the bucket
+                long highest = highestOf(i);
+                long lowest = (i == 0) ? 0 : highestOf(i - 1) + 1;
+                sum += bucketCount * (lowest + highest) / 2.0;
+            }
+        }
+        return count == 0 ? 0 : sum / count;
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        max.set(0);
+    }
+
+    private long[] snapshot() {
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count() + " mean=" + Math.round(mean()) + " p50=" + valueAt(50) + " p90=" + valueAt(90) + " p99=" + valueAt(99) + " p99.9=" + valueAt(99.9) + " max=" + max();
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Map from int keys to non null values using open addressing, lookups do not box the key
+ */
+public class IntMap<V> {
+    private int[] keys;
+    //A null value marks a free slot
+    private Object[] values;
+    //32 - log2 of the capacity, slots are indexed by the high bits of the hash
+    private int shift;
+    private int size = 0;
+
+    public IntMap() {
+        this(8);
+    }
+
+    public IntMap(int expectedSize) {
+        int capacity = 2;
+        while(capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+        keys = new int[capacity];
+        values = new Object[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    //Fibonacci hashing: the high bits of the product depend on all the bits of the key, the low ones only on the low ones
+    private int slotOf(int key) {
+        return (key * 0x9E3779B9) >>> shift;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int mask = keys.length - 1;
+        for(int slot = slotOf(key); values[slot] != null; slot = (slot + 1) & mask) {
+            if(keys[slot] == key) {
+                return (V) values[slot];
+            }
+        }
+        return null;
+    }
+
+    public boolean containsKey(int key) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if(value == null) {
+            throw new IllegalArgumentException("Null values are not supported");
+        }
+
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        for(; values[slot] != null; slot = (slot + 1) & mask) {
+            if(keys[slot] == key) {
+                V old = (V) values[slot];
+                values[slot] = value;
+                return old;
+            }
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+        //Keep the load factor at most 0.5
+        if(size * 2 > keys.length) {
+            rehash(keys.length * 2);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        while(values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if(values[slot] == null) {
+            return null;
+        }
+
+        V old = (V) values[slot];
+        values[slot] = null;
+        size--;
+
+        //Shift back the following entries of the cluster so that lookups never stop at the freed slot
+        int free = slot;
+        for(int current = (slot + 1) & mask; values[current] != null; current = (current + 1) & mask) {
+            int home = slotOf(keys[current]);
+            boolean reachable = (free <= current) ? (free < home && home <= current) : (free < home || home <= current);
+            if(!reachable) {
+                keys[free] = keys[current];
+                values[free] = values[current];
+                values[current] = null;
+                free = current;
+            }
+        }
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /*
+    Iteration over the slots in table order without allocating, for the hot paths where the order does not matter:
+    for(int slot = map.firstSlot(); slot >= 0; slot = map.nextSlot(slot)). The map must not change meanwhile
+     */
+    public int firstSlot() {
+        return nextSlot(-1);
+    }
+
+    public int nextSlot(int slot) {
+        for(slot++; slot < keys.length; slot++) {
+            if(values[slot] != null) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V) values[slot];
+    }
+
+    //Keys in ascending order, so that iterations are deterministic
+    public int[] keys() {
+        int[] result = new int[size];
+        int index = 0;
+        for(int slot = 0; slot < keys.length; slot++) {
+            if(values[slot] != null) {
+                result[index++] = keys[slot];
+            }
+        }
+        Arrays.sort(result);
+        return result;
+    }
+
+    //Values in the same order as keys()
+    public List<V> values() {
+        List<V> result = new ArrayList<>(size);
+        for(int key : keys()) {
+            result.add(get(key));
+        }
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new int[capacity];
+        values = new Object[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+        size = 0;
+        for(int slot = 0; slot < oldKeys.length; slot++) {
+            if(oldValues[slot] != null) {
+                insertNew(oldKeys[slot], oldValues[slot]);
+            }
+        }
+    }
+
+    private void insertNew(int key, Object value) {
+        int mask = keys.length - 1;
+        int slot = slotOf(key);
+        while(values[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        size++;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(keys());
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+/*
+FIFO queue of ints backed by a growable circular array, does not box its elements
+ */
+public class IntQueue {
+    private int[] elements;
+    private int head = 0;
+    private int size = 0;
+
+    public IntQueue() {
+        this(8);
+    }
+
+    public IntQueue(int initialCapacity) {
+        elements = new int[Math.max(initialCapacity, 1)];
+    }
+
+    public void add(int value) {
+        if(size == elements.length) {
+            grow();
+        }
+        elements[(head + size) % elements.length] = value;
+        size++;
+    }
+
+    public int poll() {
+        if(size == 0) {
+            throw new NoSuchElementException();
+        }
+        int value = elements[head];
+        head = (head + 1) % elements.length;
+        size--;
+        return value;
+    }
+
+    public int peek() {
+        if(size == 0) {
+            throw new NoSuchElementException();
+        }
+        return elements[head];
+    }
+
+    //Element at the given position from the head, without removing it
+    public int get(int index) {
+        if(index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + size);
+        }
+        return elements[(head + index) % elements.length];
+    }
+
+    public boolean contains(int value) {
+        for(int i = 0; i < size; i++) {
+            if(elements[(head + i) % elements.length] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    private void grow() {
+        int[] grown = new int[elements.length * 2];
+        for(int i = 0; i < size; i++) {
+            grown[i] = elements[(head + i) % elements.length];
+        }
+        elements = grown;
+        head = 0;
+    }
+
+    //Elements from the head to the tail
+    public int[] toArray() {
+        int[] ordered = new int[size];
+        for(int i = 0; i < size; i++) {
+            ordered[i] = elements[(head + i) % elements.length];
+        }
+        return ordered;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
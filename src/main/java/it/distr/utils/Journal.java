@@ -0,0 +1,376 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/*
+Write-ahead journal of the token states of one node, in a memory-mapped append-only file of fixed size:
+
+  epoch (long) | length (int) crc (int) record | ... | 0
+
+Each record is the state of a resource after a change, or the holder of the resources without one, so replaying them in
+order and keeping the last of each resource gives the state at the time of the last record. When the file is full the
+whole state is written to a snapshot file, replaced atomically, and the log starts over with the epoch of the snapshot.
+Records of an older epoch are ignored, as well as a torn last record, which fails its checksum.
+Records reach the page cache when written and survive the process. A background thread forces the journals written
+since its last round to disk every JOURNAL_SYNC ms, so a single fsync covers all the records a node wrote in the
+meantime (group commit), or each record is forced as it is written if JOURNAL_SYNC is 0.
+Appends must come from a single thread at a time, the actor owning the journal
+ */
+public class Journal {
+
+    private static final byte INITIAL_HOLDER = 1;
+    private static final byte TOKEN = 2;
+    private static final int HEADER = 8;
+    //Length and checksum of each record
+    private static final int RECORD_HEADER = 8;
+
+    //Records written and forces done by all the journals of the JVM, read by the benchmarks
+    private static final LongAdder records = new LongAdder();
+    private static final LongAdder forces = new LongAdder();
+    //Journals with records that were not forced yet
+    private static final Set<Journal> unsynced = ConcurrentHashMap.newKeySet();
+
+    static {
+        if(Configuration.JOURNAL_SYNC > 0) {
+            Thread committer = new Thread(Journal::commitPeriodically, "dmx-journal");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    //State of a resource as last journaled
+    public static class Entry {
+        public final String resource;
+        public final int holder;
+        public final int[] requests;
+        public final int returnTo;
+        public final int batch;
+        public final boolean timedRequest;
+        //Read copy held and asked, copies lent and neighbors waiting for one
+        public final boolean copy;
+        public final boolean copyAsked;
+        public final int[] copies;
+        public final int[] copyRequests;
+
+        public Entry(String resource, int holder, int[] requests, int returnTo, int batch, boolean timedRequest,
+                     boolean copy, boolean copyAsked, int[] copies, int[] copyRequests) {
+            this.resource = resource;
+            this.holder = holder;
+            this.requests = requests;
+            this.returnTo = returnTo;
+            this.batch = batch;
+            this.timedRequest = timedRequest;
+            this.copy = copy;
+            this.copyAsked = copyAsked;
+            this.copies = copies;
+            this.copyRequests = copyRequests;
+        }
+    }
+
+    //Content of snapshot and log after a restart
+    public static class Replay {
+        //Holder of the resources without an entry, -1 if it was never journaled
+        public int initialHolder = -1;
+        //Last entry of each resource. Sorted so that recovery is deterministic
+        public final Map<String, Entry> entries = new TreeMap<>();
+    }
+
+    private final File snapshotFile;
+    private final MappedByteBuffer log;
+    private long epoch = 0;
+    //Where the next record is written
+    private int position = HEADER;
+    private volatile boolean dirty = false;
+    //Records are encoded here to compute their checksum before copying them in the log
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+    private final CRC32 crc = new CRC32();
+
+    private Journal(File directory, int nodeId) throws IOException {
+        //Nodes are created concurrently, the directory may appear in the meantime
+        Files.createDirectories(directory.toPath());
+        File logFile = new File(directory, "node-" + nodeId + ".log");
+        snapshotFile = new File(directory, "node-" + nodeId + ".snapshot");
+        try(FileChannel channel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //The mapping stays valid after the channel is closed
+            log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Configuration.JOURNAL_SIZE);
+        }
+    }
+
+    //Empty journal of a node that just joined the network, whatever a previous run left in the directory
+    public static Journal create(File directory, int nodeId) throws IOException {
+        Journal journal = new Journal(directory, nodeId);
+        Files.deleteIfExists(journal.snapshotFile.toPath());
+        journal.restart(0);
+        return journal;
+    }
+
+    //Journal of a restarted node, replay() must be called before appending
+    public static Journal open(File directory, int nodeId) throws IOException {
+        return new Journal(directory, nodeId);
+    }
+
+    public static long recordsWritten() {
+        return records.sum();
+    }
+
+    public static long forces() {
+        return forces.sum();
+    }
+
+    public Replay replay() throws IOException {
+        Replay replay = new Replay();
+
+        epoch = 0;
+        if(snapshotFile.exists()) {
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile.toPath()));
+            epoch = snapshot.getLong();
+            readRecords(snapshot, replay);
+        }
+
+        //A log older than the snapshot is entirely contained in it
+        if(log.getLong(0) == epoch) {
+            ByteBuffer records = log.duplicate();
+            records.position(HEADER);
+            position = readRecords(records, replay);
+        } else {
+            restart(epoch);
+        }
+        return replay;
+    }
+
+    //Reads valid records until the end marker, returns the position following the last one
+    private int readRecords(ByteBuffer buffer, Replay replay) {
+        while(buffer.remaining() >= RECORD_HEADER) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if(length <= 0 || length > buffer.remaining()) {
+                return start;
+            }
+
+            byte[] record = new byte[length];
+            buffer.get(record);
+            crc.reset();
+            crc.update(record, 0, length);
+            if((int) crc.getValue() != checksum) {
+                return start;
+            }
+
+            ByteBuffer in = ByteBuffer.wrap(record);
+            if(in.get() == INITIAL_HOLDER) {
+                replay.initialHolder = in.getInt();
+            } else {
+                byte[] name = new byte[in.getInt()];
+                in.get(name);
+                String resource = new String(name, StandardCharsets.UTF_8);
+                int holder = in.getInt();
+                int returnTo = in.getInt();
+                int batch = in.getInt();
+                boolean timedRequest = in.get() != 0;
+                int[] requests = readIds(in);
+                byte copyFlags = in.get();
+                int[] copies = readIds(in);
+                int[] copyRequests = readIds(in);
+                replay.entries.put(resource, new Entry(resource, holder, requests, returnTo, batch, timedRequest,
+                        (copyFlags & 1) != 0, (copyFlags & 2) != 0, copies, copyRequests));
+            }
+        }
+        return buffer.position();
+    }
+
+    private static int[] readIds(ByteBuffer in) {
+        int[] ids = new int[in.getInt()];
+        for(int i = 0; i < ids.length; i++) {
+            ids[i] = in.getInt();
+        }
+        return ids;
+    }
+
+    //Returns false without writing if the log is full, a snapshot must replace it
+    public boolean appendInitialHolder(int holder) {
+        scratch.clear();
+        scratch.put(INITIAL_HOLDER).putInt(holder);
+        return append();
+    }
+
+    //Returns false without writing if the log is full, a snapshot must replace it. Requesters are written in the order
+    //they would be served, their priorities are not kept
+    public boolean appendToken(String resource, int holder, RequestQueue requests, int returnTo, int batch, boolean timedRequest,
+                               boolean copy, boolean copyAsked, Collection<Integer> copies, Collection<Integer> copyRequests) {
+        int[] requesters = requests.toArray();
+        encodeToken(resource, holder, requesters.length, returnTo, batch, timedRequest, copies.size() + copyRequests.size());
+        for(int requesterId : requesters) {
+            scratch.putInt(requesterId);
+        }
+        scratch.put(copyFlags(copy, copyAsked)).putInt(copies.size());
+        for(int neighborId : copies) {
+            scratch.putInt(neighborId);
+        }
+        scratch.putInt(copyRequests.size());
+        for(int neighborId : copyRequests) {
+            scratch.putInt(neighborId);
+        }
+        return append();
+    }
+
+    //Encodes a token record up to its requests, which the caller appends followed by the read copies
+    private void encodeToken(String resource, int holder, int requestCount, int returnTo, int batch, boolean timedRequest, int copyCount) {
+        byte[] name = resource.getBytes(StandardCharsets.UTF_8);
+        int length = 1 + 4 + name.length + 4 * 3 + 1 + 4 + 4 * requestCount + 1 + 4 * 2 + 4 * copyCount;
+        if(scratch.capacity() < length) {
+            scratch = ByteBuffer.allocate(Math.max(length, scratch.capacity() * 2));
+        }
+        scratch.clear();
+        scratch.put(TOKEN).putInt(name.length).put(name).putInt(holder).putInt(returnTo).putInt(batch).put((byte) (timedRequest ? 1 : 0)).putInt(requestCount);
+    }
+
+    private static byte copyFlags(boolean copy, boolean copyAsked) {
+        return (byte) ((copy ? 1 : 0) | (copyAsked ? 2 : 0));
+    }
+
+    private boolean append() {
+        int length = scratch.position();
+        //Room for the record and the end marker behind it
+        if(position + RECORD_HEADER + length + 4 > log.capacity()) {
+            return false;
+        }
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+
+        //The end marker is moved first and the length written last, so the record is either complete or ignored
+        int start = position;
+        log.putInt(start + RECORD_HEADER + length, 0);
+        log.position(start + RECORD_HEADER);
+        log.put(scratch.array(), 0, length);
+        log.putInt(start + 4, (int) crc.getValue());
+        log.putInt(start, length);
+        position = start + RECORD_HEADER + length;
+        records.increment();
+
+        if(Configuration.JOURNAL_SYNC == 0) {
+            force();
+        } else if(!dirty) {
+            //A record written while the journal is being forced is forced at the latest in the next round
+            dirty = true;
+            unsynced.add(this);
+        }
+        return true;
+    }
+
+    /*
+    Replaces snapshot and log with the whole state of the node. The new snapshot is forced before it replaces the old one,
+    then the log is discarded by moving to the epoch of the snapshot
+     */
+    public void snapshot(int initialHolder, Iterable<Entry> entries) throws IOException {
+        File temporary = new File(snapshotFile.getPath() + ".tmp");
+        try(FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putLong(0, epoch + 1);
+            writeFully(channel, header);
+
+            scratch.clear();
+            scratch.put(INITIAL_HOLDER).putInt(initialHolder);
+            writeRecord(channel);
+            for(Entry entry : entries) {
+                encodeToken(entry.resource, entry.holder, entry.requests.length, entry.returnTo, entry.batch, entry.timedRequest,
+                        entry.copies.length + entry.copyRequests.length);
+                for(int request : entry.requests) {
+                    scratch.putInt(request);
+                }
+                scratch.put(copyFlags(entry.copy, entry.copyAsked)).putInt(entry.copies.length);
+                for(int neighborId : entry.copies) {
+                    scratch.putInt(neighborId);
+                }
+                scratch.putInt(entry.copyRequests.length);
+                for(int neighborId : entry.copyRequests) {
+                    scratch.putInt(neighborId);
+                }
+                writeRecord(channel);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        restart(epoch + 1);
+    }
+
+    private void writeRecord(FileChannel channel) throws IOException {
+        int length = scratch.position();
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.putInt(length).putInt((int) crc.getValue()).flip();
+        writeFully(channel, header);
+        writeFully(channel, ByteBuffer.wrap(scratch.array(), 0, length));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    //Empties the log, starting a new epoch
+    private void restart(long newEpoch) {
+        epoch = newEpoch;
+        log.putInt(HEADER, 0);
+        log.putLong(0, newEpoch);
+        position = HEADER;
+        force();
+    }
+
+    private void force() {
+        log.force();
+        forces.increment();
+    }
+
+    //Forces what was written so far, the journal must not be used afterwards
+    public void close() {
+        unsynced.remove(this);
+        force();
+    }
+
+    private static void commitPeriodically() {
+        long interval = TimeUnit.MILLISECONDS.toNanos(Configuration.JOURNAL_SYNC);
+        while(true) {
+            LockSupport.parkNanos(interval);
+            for(Journal journal : unsynced) {
+                unsynced.remove(journal);
+                journal.dirty = false;
+                journal.force();
+            }
+        }
+    }
+}
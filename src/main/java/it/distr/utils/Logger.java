@@ -15,30 +15,268 @@
 
 package it.distr.utils;
 
-import java.util.Queue;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 
+/*
+Asynchronous logger. Callers only build the records of enabled levels and put them in a lock-free ring buffer,
+a background thread writes them to the console and, if configured, as JSON lines to the trace file.
+When the buffer is full records are dropped rather than blocking the actors, and the drop count is reported.
+ */
 public class Logger {
 
+    public enum Level {
+        ERROR,
+        WARNING,
+        INFO,
+        DEBUG,
+        TRACE
+    }
+
+    private static volatile Level level = Configuration.LOG_LEVEL;
+    private static final MpscRingBuffer<Record> buffer = new MpscRingBuffer<>(Configuration.LOG_BUFFER_SIZE);
+    private static final AtomicLong dropped = new AtomicLong(0);
+
+    static {
+        WriterThread writer = new WriterThread();
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Logger::flush));
+    }
+
     private final int nodeId;
 
     public Logger(int nodeId) {
         this.nodeId = nodeId;
     }
 
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.ordinal() <= level.ordinal();
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
     public void logError(String message) {
-        System.err.println("(" + nodeId + ") " + message);
+        log(Level.ERROR, message);
     }
 
     public void logWarning(String message) {
-        System.out.println(Configuration.ANSI_YELLOW + "(" + nodeId + ") " + message + Configuration.ANSI_RESET);
+        log(Level.WARNING, message);
     }
 
     public void logInfo(String message) {
-        System.out.println("(" + nodeId + ") " + message);
+        log(Level.INFO, message);
+    }
+
+    public void logDebug(String message) {
+        log(Level.DEBUG, message);
     }
 
-    public void logNodeState(int holder, Queue<Integer> request_list, boolean inside_cs) {
-        System.out.println("(" + nodeId + ")" + "   token: " + (nodeId == holder ? "Y" : "N") + "   holder: " + holder + "   requests: " + request_list.toString() + "   CS: " + (inside_cs ? "Y" : "N") + "   ");
+    //The message is built only if the debug level is enabled
+    public void logDebug(Supplier<String> message) {
+        if(isEnabled(Level.DEBUG)) {
+            enqueue(new Record(nodeId, Level.DEBUG, message.get()));
+        }
     }
 
+    public void logNodeState(String resource, int holder, RequestQueue request_list, boolean inside_cs) {
+        if(isEnabled(Level.TRACE)) {
+            enqueue(new Record(nodeId, resource, holder, request_list.toString(), inside_cs));
+        }
+    }
+
+    private void log(Level messageLevel, String message) {
+        if(isEnabled(messageLevel)) {
+            enqueue(new Record(nodeId, messageLevel, message));
+        }
+    }
+
+    private static void enqueue(Record record) {
+        if(!buffer.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    //Blocks until all the records logged before the call have been written
+    public static void flush() {
+        Record marker = new Record(new CountDownLatch(1));
+        while(!buffer.offer(marker)) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        try {
+            marker.flushed.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class Record {
+        final long timestamp = System.nanoTime();
+        final int nodeId;
+        final Level level;
+        final String message;
+        //Node state, only for state records
+        final boolean isState;
+        final String resource;
+        final int holder;
+        final String requests;
+        final boolean insideCs;
+        //Only for flush markers
+        final CountDownLatch flushed;
+
+        Record(int nodeId, Level level, String message) {
+            this(nodeId, level, message, false, null, 0, null, false, null);
+        }
+
+        Record(int nodeId, String resource, int holder, String requests, boolean insideCs) {
+            this(nodeId, Level.TRACE, null, true, resource, holder, requests, insideCs, null);
+        }
+
+        Record(CountDownLatch flushed) {
+            this(-1, null, null, false, null, 0, null, false, flushed);
+        }
+
+        private Record(int nodeId, Level level, String message, boolean isState, String resource, int holder, String requests, boolean insideCs, CountDownLatch flushed) {
+            this.nodeId = nodeId;
+            this.level = level;
+            this.message = message;
+            this.isState = isState;
+            this.resource = resource;
+            this.holder = holder;
+            this.requests = requests;
+            this.insideCs = insideCs;
+            this.flushed = flushed;
+        }
+    }
+
+    private static class WriterThread extends Thread {
+        private final StringBuilder out = new StringBuilder();
+        private final StringBuilder err = new StringBuilder();
+        private Writer trace;
+        private long reportedDrops = 0;
+
+        WriterThread() {
+            super("dmx-logger");
+            setDaemon(true);
+
+            if(Configuration.TRACE_FILE != null) {
+                try {
+                    trace = new BufferedWriter(new FileWriter(Configuration.TRACE_FILE));
+                } catch (IOException e) {
+                    System.err.println("Cannot open trace file " + Configuration.TRACE_FILE + ": " + e.getMessage());
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            while(true) {
+                Record record = buffer.poll();
+                if(record == null) {
+                    writeOut();
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                } else if(record.flushed != null) {
+                    writeOut();
+                    record.flushed.countDown();
+                } else {
+                    if(Configuration.LOG_CONSOLE) {
+                        formatConsole(record);
+                    }
+                    if(trace != null) {
+                        formatTrace(record);
+                    }
+                }
+            }
+        }
+
+        private void formatConsole(Record record) {
+            if(record.isState) {
+                out.append("(").append(record.nodeId).append(")").append("   resource: ").append(record.resource).append("   token: ").append(record.nodeId == record.holder ? "Y" : "N").append("   holder: ").append(record.holder).append("   requests: ").append(record.requests).append("   CS: ").append(record.insideCs ? "Y" : "N").append("   \n");
+            } else if(record.level == Level.ERROR) {
+                err.append("(").append(record.nodeId).append(") ").append(record.message).append('\n');
+            } else if(record.level == Level.WARNING) {
+                out.append(Configuration.ANSI_YELLOW).append("(").append(record.nodeId).append(") ").append(record.message).append(Configuration.ANSI_RESET).append('\n');
+            } else {
+                out.append("(").append(record.nodeId).append(") ").append(record.message).append('\n');
+            }
+        }
+
+        private void formatTrace(Record record) {
+            StringBuilder line = new StringBuilder(128);
+            line.append("{\"ts\":").append(record.timestamp).append(",\"node\":").append(record.nodeId).append(",\"level\":\"").append(record.level).append('"');
+            if(record.isState) {
+                line.append(",\"resource\":\"");
+                appendEscaped(line, record.resource);
+                line.append("\",\"holder\":").append(record.holder).append(",\"requests\":").append(record.requests).append(",\"cs\":").append(record.insideCs);
+            } else {
+                line.append(",\"msg\":\"");
+                appendEscaped(line, record.message);
+                line.append('"');
+            }
+            line.append("}\n");
+
+            try {
+                trace.write(line.toString());
+            } catch (IOException e) {
+                System.err.println("Cannot write trace file, tracing disabled: " + e.getMessage());
+                trace = null;
+            }
+        }
+
+        private void writeOut() {
+            long drops = dropped.get();
+            if(drops != reportedDrops) {
+                err.append("Logger buffer full, ").append(drops - reportedDrops).append(" records dropped\n");
+                reportedDrops = drops;
+            }
+
+            if(out.length() > 0) {
+                System.out.print(out);
+                System.out.flush();
+                out.setLength(0);
+            }
+            if(err.length() > 0) {
+                System.err.print(err);
+                System.err.flush();
+                err.setLength(0);
+            }
+            if(trace != null) {
+                try {
+                    trace.flush();
+                } catch (IOException e) {
+                    System.err.println("Cannot write trace file, tracing disabled: " + e.getMessage());
+                    trace = null;
+                }
+            }
+        }
+
+        private static void appendEscaped(StringBuilder line, String text) {
+            for(int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if(c == '"' || c == '\\') {
+                    line.append('\\').append(c);
+                } else if(c < 0x20) {
+                    line.append(String.format("\\u%04x", (int) c));
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+    }
 }
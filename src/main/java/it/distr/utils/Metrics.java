@@ -0,0 +1,229 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+Instrumentation of the protocol, enabled with -Ddmx.metrics=true. Nodes keep their own counters, latencies go in
+histograms shared by all the nodes of the JVM. Everything is exposed through JMX and, if dmx.metrics_interval is set,
+printed periodically. When disabled nodes get no NodeMetrics and the checks of ENABLED are removed by the JIT
+ */
+public class Metrics {
+    public static final boolean ENABLED = Configuration.METRICS;
+
+    //Time in us from the arrival of a request of the node itself or of a local client to the entry in the critical section
+    public static final Histogram grantLatency = new Histogram();
+    //Time in us spent inside the critical section
+    public static final Histogram holdTime = new Histogram();
+    //Length of the request list after each request is handled
+    public static final Histogram requestListDepth = new Histogram();
+    //Time in us from CrashEnd to normal mode
+    public static final Histogram recoveryTime = new Histogram();
+
+    private static final Map<Integer, NodeMetrics> nodes = new ConcurrentHashMap<>();
+
+    static {
+        if(ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Bean(), new ObjectName("it.distr:type=Metrics"));
+            } catch (Exception e) {
+                System.err.println("Cannot register metrics with JMX: " + e.getMessage());
+            }
+
+            if(Configuration.METRICS_INTERVAL > 0) {
+                ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+                    Thread thread = new Thread(task, "dmx-metrics");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                dumper.scheduleAtFixedRate(() -> System.out.print(snapshot()), Configuration.METRICS_INTERVAL, Configuration.METRICS_INTERVAL, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    //Counters for a new node, replacing the ones of a previous node with the same ID. Null if metrics are disabled
+    public static NodeMetrics register(int nodeId) {
+        if(!ENABLED) {
+            return null;
+        }
+        NodeMetrics metrics = new NodeMetrics(nodeId);
+        nodes.put(nodeId, metrics);
+        return metrics;
+    }
+
+    public static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    public static String snapshot() {
+        if(!ENABLED) {
+            return "Metrics are disabled, enable them with -Ddmx.metrics=true\n";
+        }
+
+        Map<String, Long> sent = new TreeMap<>();
+        Map<String, Long> received = new TreeMap<>();
+        long csEntries = 0;
+        long recoveries = 0;
+        long suspicions = 0;
+        for(NodeMetrics node : nodes.values()) {
+            node.addTo(sent, received);
+            csEntries += node.csEntries.get();
+            recoveries += node.recoveries.get();
+            suspicions += node.suspicions.get();
+        }
+
+        return "metrics of " + nodes.size() + " nodes\n" +
+                "  sent                " + sent + "\n" +
+                "  received            " + received + "\n" +
+                "  parked              " + parkedMessages() + "\n" +
+                "  cs entries          " + csEntries + "\n" +
+                "  recoveries          " + recoveries + "\n" +
+                "  suspicions          " + suspicions + "\n" +
+                "  grant latency us    " + grantLatency + "\n" +
+                "  hold time us        " + holdTime + "\n" +
+                "  request list depth  " + requestListDepth + "\n" +
+                "  recovery time us    " + recoveryTime + "\n";
+    }
+
+    public static String nodeSnapshot(int nodeId) {
+        NodeMetrics node = nodes.get(nodeId);
+        return (node == null) ? "No metrics for node " + nodeId + "\n" : node.toString();
+    }
+
+    //Forgets the nodes and clears the histograms, nodes created afterwards register again
+    public static void reset() {
+        nodes.clear();
+        grantLatency.reset();
+        holdTime.reset();
+        requestListDepth.reset();
+        recoveryTime.reset();
+    }
+
+    private static Map<String, Long> parkedMessages() {
+        long init = 0;
+        long recovery = 0;
+        long reshaping = 0;
+        for(NodeMetrics node : nodes.values()) {
+            init += node.parkedDuringInit.get();
+            recovery += node.parkedDuringRecovery.get();
+            reshaping += node.parkedDuringReshaping.get();
+        }
+
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("init", init);
+        result.put("recovery", recovery);
+        result.put("reshaping", reshaping);
+        return result;
+    }
+
+    private static Map<String, Long> summary(Histogram histogram) {
+        Map<String, Long> result = new LinkedHashMap<>();
+        result.put("count", histogram.count());
+        result.put("mean", Math.round(histogram.mean()));
+        result.put("p50", histogram.valueAt(50));
+        result.put("p90", histogram.valueAt(90));
+        result.put("p99", histogram.valueAt(99));
+        result.put("p99.9", histogram.valueAt(99.9));
+        result.put("max", histogram.max());
+        return result;
+    }
+
+    private static class Bean implements MetricsMXBean {
+
+        @Override
+        public int getNodes() {
+            return nodes.size();
+        }
+
+        @Override
+        public Map<String, Long> getMessagesSent() {
+            Map<String, Long> sent = new TreeMap<>();
+            nodes.values().forEach(node -> node.addTo(sent, new TreeMap<>()));
+            return sent;
+        }
+
+        @Override
+        public Map<String, Long> getMessagesReceived() {
+            Map<String, Long> received = new TreeMap<>();
+            nodes.values().forEach(node -> node.addTo(new TreeMap<>(), received));
+            return received;
+        }
+
+        @Override
+        public Map<String, Long> getParkedMessages() {
+            return parkedMessages();
+        }
+
+        @Override
+        public long getCsEntries() {
+            return nodes.values().stream().mapToLong(node -> node.csEntries.get()).sum();
+        }
+
+        @Override
+        public long getRecoveries() {
+            return nodes.values().stream().mapToLong(node -> node.recoveries.get()).sum();
+        }
+
+        @Override
+        public long getSuspicions() {
+            return nodes.values().stream().mapToLong(node -> node.suspicions.get()).sum();
+        }
+
+        @Override
+        public Map<String, Long> getGrantLatency() {
+            return summary(grantLatency);
+        }
+
+        @Override
+        public Map<String, Long> getHoldTime() {
+            return summary(holdTime);
+        }
+
+        @Override
+        public Map<String, Long> getRequestListDepth() {
+            return summary(requestListDepth);
+        }
+
+        @Override
+        public Map<String, Long> getRecoveryTime() {
+            return summary(recoveryTime);
+        }
+
+        @Override
+        public String snapshot() {
+            return Metrics.snapshot();
+        }
+
+        @Override
+        public String nodeSnapshot(int nodeId) {
+            return Metrics.nodeSnapshot(nodeId);
+        }
+
+        @Override
+        public void reset() {
+            Metrics.reset();
+        }
+    }
+}
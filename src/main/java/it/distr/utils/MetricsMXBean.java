@@ -0,0 +1,53 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.Map;
+
+/*
+Metrics of all the nodes of the JVM, registered as it.distr:type=Metrics when metrics are enabled.
+Latencies are in us, histograms are given as count, mean, p50, p90, p99, p99.9 and max
+ */
+public interface MetricsMXBean {
+
+    int getNodes();
+
+    Map<String, Long> getMessagesSent();
+
+    Map<String, Long> getMessagesReceived();
+
+    Map<String, Long> getParkedMessages();
+
+    long getCsEntries();
+
+    long getRecoveries();
+
+    long getSuspicions();
+
+    Map<String, Long> getGrantLatency();
+
+    Map<String, Long> getHoldTime();
+
+    Map<String, Long> getRequestListDepth();
+
+    Map<String, Long> getRecoveryTime();
+
+    String snapshot();
+
+    String nodeSnapshot(int nodeId);
+
+    void reset();
+}
@@ -0,0 +1,84 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+Bounded lock-free queue for many producers and a single consumer.
+Each slot carries a sequence number telling whether it is free for the producer of a given position or full for the consumer
+ */
+public class MpscRingBuffer<E> {
+    private final Object[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    //Next position to be claimed by producers
+    private final AtomicLong tail = new AtomicLong(0);
+    //Next position to be consumed, only accessed by the consumer
+    private long head = 0;
+
+    public MpscRingBuffer(int capacity) {
+        int size = 1;
+        while(size < capacity) {
+            size *= 2;
+        }
+        buffer = new Object[size];
+        sequences = new AtomicLongArray(size);
+        mask = size - 1;
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    //Returns false without blocking if the buffer is full
+    public boolean offer(E element) {
+        while(true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long difference = sequences.get(index) - position;
+
+            if(difference == 0) {
+                if(tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = element;
+                    //Publishes the element to the consumer
+                    sequences.lazySet(index, position + 1);
+                    return true;
+                }
+            } else if(difference < 0) {
+                //The consumer did not free the slot yet
+                return false;
+            }
+            //Otherwise another producer claimed the position, retry
+        }
+    }
+
+    //Returns null if the buffer is empty. Must be called by a single thread
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        int index = (int) (head & mask);
+        if(sequences.get(index) != head + 1) {
+            return null;
+        }
+
+        E element = (E) buffer[index];
+        buffer[index] = null;
+        //Frees the slot for the producer of the same index in the next lap
+        sequences.lazySet(index, head + buffer.length);
+        head++;
+        return element;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Counters of a single node. Written by the node only, read at any time by Metrics snapshots and JMX
+ */
+public class NodeMetrics {
+    public final int nodeId;
+    //Messages by type, sent to neighbors (or to the node itself) through the links and received through the broker
+    private final Map<Class<?>, AtomicLong> sent = new ConcurrentHashMap<>();
+    private final Map<Class<?>, AtomicLong> received = new ConcurrentHashMap<>();
+    //Messages parked by the broker until normal mode, by the mode in which they arrived
+    public final AtomicLong parkedDuringInit = new AtomicLong();
+    public final AtomicLong parkedDuringRecovery = new AtomicLong();
+    public final AtomicLong parkedDuringReshaping = new AtomicLong();
+    public final AtomicLong csEntries = new AtomicLong();
+    public final AtomicLong recoveries = new AtomicLong();
+    //Neighbors suspected by the failure detector, and among them holders of tokens the node was waiting for
+    public final AtomicLong suspicions = new AtomicLong();
+    public final AtomicLong holderFailures = new AtomicLong();
+    //Duration of the last recovery in us, from CrashEnd to normal mode
+    public volatile long lastRecoveryMicros = 0;
+
+    NodeMetrics(int nodeId) {
+        this.nodeId = nodeId;
+    }
+
+    public void sent(Object message) {
+        increment(sent, message.getClass());
+    }
+
+    public void received(Object message) {
+        increment(received, message.getClass());
+    }
+
+    private static void increment(Map<Class<?>, AtomicLong> counters, Class<?> messageClass) {
+        AtomicLong counter = counters.get(messageClass);
+        if(counter == null) {
+            counter = counters.computeIfAbsent(messageClass, key -> new AtomicLong());
+        }
+        counter.incrementAndGet();
+    }
+
+    public Map<String, Long> sent() {
+        return byName(sent);
+    }
+
+    public Map<String, Long> received() {
+        return byName(received);
+    }
+
+    //Adds the counts of the node to the totals, by simple class name
+    void addTo(Map<String, Long> sentTotals, Map<String, Long> receivedTotals) {
+        sent.forEach((messageClass, count) -> sentTotals.merge(messageClass.getSimpleName(), count.get(), Long::sum));
+        received.forEach((messageClass, count) -> receivedTotals.merge(messageClass.getSimpleName(), count.get(), Long::sum));
+    }
+
+    private static Map<String, Long> byName(Map<Class<?>, AtomicLong> counters) {
+        Map<String, Long> result = new TreeMap<>();
+        counters.forEach((messageClass, count) -> result.put(messageClass.getSimpleName(), count.get()));
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "node " + nodeId + "\n" +
+                "  sent        " + sent() + "\n" +
+                "  received    " + received() + "\n" +
+                "  parked      init=" + parkedDuringInit.get() + " recovery=" + parkedDuringRecovery.get() + " reshaping=" + parkedDuringReshaping.get() + "\n" +
+                "  cs entries  " + csEntries.get() + "\n" +
+                "  recoveries  " + recoveries.get() + " (last " + lastRecoveryMicros + " us)\n" +
+                "  suspected   " + suspicions.get() + " neighbors, " + holderFailures.get() + " holding awaited tokens\n";
+    }
+}
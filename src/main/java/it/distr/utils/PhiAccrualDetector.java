@@ -0,0 +1,91 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+/*
+Phi accrual failure detector (Hayashibara et al.) for the heartbeats of one neighbor. Instead of alive or dead it gives
+the suspicion phi = -log10(probability that a heartbeat arrives later than now), with the intervals between heartbeats
+assumed normally distributed and estimated over the last ones. A threshold of 1 suspects a neighbor that is alive 10% of
+the times, 8 about once in 10^8. Single threaded, times in ns from System.nanoTime()
+ */
+public class PhiAccrualDetector {
+
+    private static final int WINDOW = 32;
+
+    //Last intervals in ms, the window starts with the expected one so that phi is meaningful from the first heartbeat
+    private final double[] intervals = new double[WINDOW];
+    private int count = 0;
+    private int next = 0;
+    private double sum = 0;
+    private double squares = 0;
+    //Jitter of links and dispatchers makes the first intervals look too regular
+    private final double minDeviation;
+    private long lastHeartbeat;
+    private boolean suspected = false;
+
+    public PhiAccrualDetector(long expectedIntervalMillis, long now) {
+        minDeviation = expectedIntervalMillis / 4.0;
+        lastHeartbeat = now;
+        add(expectedIntervalMillis);
+    }
+
+    //Returns true if the neighbor was suspected, it no longer is
+    public boolean heartbeat(long now) {
+        boolean wasSuspected = suspected;
+        //The silence of a crash is not an interval between heartbeats
+        if(!wasSuspected) {
+            add((now - lastHeartbeat) / 1e6);
+        }
+        lastHeartbeat = now;
+        suspected = false;
+        return wasSuspected;
+    }
+
+    public double phi(long now) {
+        double mean = sum / count;
+        double deviation = Math.max(Math.sqrt(Math.max(squares / count - mean * mean, 0)), minDeviation);
+        double elapsed = (now - lastHeartbeat) / 1e6;
+
+        //Logistic approximation of the normal cumulative distribution, as in Akka
+        double y = (elapsed - mean) / deviation;
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if(elapsed > mean) {
+            return -Math.log10(e / (1.0 + e));
+        } else {
+            return -Math.log10(1.0 - 1.0 / (1.0 + e));
+        }
+    }
+
+    //The silence of a suspected neighbor is measured again from now, so that one that stays silent is suspected again
+    //after the same time, e.g. if it crashed again before sending any heartbeat
+    public void suspect(long now) {
+        lastHeartbeat = now;
+        suspected = true;
+    }
+
+    private void add(double interval) {
+        if(count == WINDOW) {
+            sum -= intervals[next];
+            squares -= intervals[next] * intervals[next];
+        } else {
+            count++;
+        }
+        intervals[next] = interval;
+        sum += interval;
+        squares += interval * interval;
+        next = (next + 1) % WINDOW;
+    }
+}
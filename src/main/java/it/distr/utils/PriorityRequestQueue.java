@@ -0,0 +1,228 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.NoSuchElementException;
+import java.util.StringJoiner;
+
+/*
+Requesters served by priority, in arrival order within the same priority. Each priority has its own list, sorted by
+arrival, so the head of a list is the request that waited longest at that priority and the next requester to serve is
+always the head of one of them: polling looks at HIGHEST + 1 heads whatever the length of the queue.
+With aging a request gains a priority every agingNanos it waits. With a bypass bound the oldest request is served as
+soon as maxBypass younger ones were served before it: a younger request served bypasses every older one still queued,
+so the oldest is the most bypassed and bounding it bounds all of them
+ */
+public class PriorityRequestQueue implements RequestQueue {
+
+    private static class Entry {
+        final int requesterId;
+        int priority;
+        //Arrival order
+        final long sequence;
+        final long arrivedAt;
+        //Requesters removed before this one arrived and requesters it found in the queue
+        final long removedBefore;
+        final int ahead;
+        Entry previous;
+        Entry next;
+
+        Entry(int requesterId, int priority, long sequence, long arrivedAt, long removedBefore, int ahead) {
+            this.requesterId = requesterId;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.arrivedAt = arrivedAt;
+            this.removedBefore = removedBefore;
+            this.ahead = ahead;
+        }
+    }
+
+    //0 disables aging
+    private final long agingNanos;
+    //Negative for no bound
+    private final int maxBypass;
+
+    private final Entry[] heads = new Entry[HIGHEST + 1];
+    private final Entry[] tails = new Entry[HIGHEST + 1];
+    //Created by the first request, most resources never queue one
+    private IntMap<Entry> members;
+    private int size = 0;
+    private long nextSequence = 0;
+    private long removed = 0;
+
+    public PriorityRequestQueue(long agingNanos, int maxBypass) {
+        this.agingNanos = agingNanos;
+        this.maxBypass = maxBypass;
+    }
+
+    @Override
+    public void add(int requesterId, int priority, long now) {
+        RequestQueue.checkPriority(priority);
+        if(members == null) {
+            members = new IntMap<>();
+        }
+        Entry entry = new Entry(requesterId, priority, nextSequence++, now, removed, size);
+        if(members.put(requesterId, entry) != null) {
+            throw new IllegalStateException("Requester " + requesterId + " already queued");
+        }
+        insert(entry);
+        size++;
+    }
+
+    @Override
+    public int poll(long now) {
+        Entry oldest = null;
+        Entry next = null;
+        long nextPriority = 0;
+        for(int priority = HIGHEST; priority >= NORMAL; priority--) {
+            Entry head = heads[priority];
+            if(head == null) {
+                continue;
+            }
+            if(oldest == null || head.sequence < oldest.sequence) {
+                oldest = head;
+            }
+            long effective = (agingNanos == 0) ? priority : priority + (now - head.arrivedAt) / agingNanos;
+            if(next == null || effective > nextPriority || (effective == nextPriority && head.sequence < next.sequence)) {
+                next = head;
+                nextPriority = effective;
+            }
+        }
+        if(next == null) {
+            throw new NoSuchElementException();
+        }
+
+        if(maxBypass >= 0 && removed - oldest.removedBefore - oldest.ahead >= maxBypass) {
+            next = oldest;
+        }
+        unlink(next);
+        members.remove(next.requesterId);
+        size--;
+        removed++;
+        return next.requesterId;
+    }
+
+    @Override
+    public boolean contains(int requesterId) {
+        return members != null && members.containsKey(requesterId);
+    }
+
+    @Override
+    public boolean raise(int requesterId, int priority) {
+        RequestQueue.checkPriority(priority);
+        Entry entry = (members != null) ? members.get(requesterId) : null;
+        if(entry == null || priority <= entry.priority) {
+            return false;
+        }
+        unlink(entry);
+        entry.priority = priority;
+        insert(entry);
+        return true;
+    }
+
+    @Override
+    public int highestPriority() {
+        for(int priority = HIGHEST; priority > NORMAL; priority--) {
+            if(heads[priority] != null) {
+                return priority;
+            }
+        }
+        return NORMAL;
+    }
+
+    //Puts the entry in the list of its priority, keeping it sorted by arrival. Only raised entries are not the last
+    private void insert(Entry entry) {
+        Entry previous = tails[entry.priority];
+        while(previous != null && previous.sequence > entry.sequence) {
+            previous = previous.previous;
+        }
+        Entry next = (previous == null) ? heads[entry.priority] : previous.next;
+        entry.previous = previous;
+        entry.next = next;
+        if(previous == null) {
+            heads[entry.priority] = entry;
+        } else {
+            previous.next = entry;
+        }
+        if(next == null) {
+            tails[entry.priority] = entry;
+        } else {
+            next.previous = entry;
+        }
+    }
+
+    private void unlink(Entry entry) {
+        if(entry.previous == null) {
+            heads[entry.priority] = entry.next;
+        } else {
+            entry.previous.next = entry.next;
+        }
+        if(entry.next == null) {
+            tails[entry.priority] = entry.previous;
+        } else {
+            entry.next.previous = entry.previous;
+        }
+        entry.previous = null;
+        entry.next = null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        for(int priority = NORMAL; priority <= HIGHEST; priority++) {
+            heads[priority] = null;
+            tails[priority] = null;
+        }
+        if(members != null) {
+            members.clear();
+        }
+        size = 0;
+    }
+
+    //Ignores aging and the bypass bound
+    @Override
+    public int[] toArray() {
+        int[] ordered = new int[size];
+        int i = 0;
+        for(int priority = HIGHEST; priority >= NORMAL; priority--) {
+            for(Entry entry = heads[priority]; entry != null; entry = entry.next) {
+                ordered[i++] = entry.requesterId;
+            }
+        }
+        return ordered;
+    }
+
+    //Requesters with a priority other than NORMAL are followed by it
+    @Override
+    public String toString() {
+        StringJoiner joiner = new StringJoiner(", ", "[", "]");
+        for(int priority = HIGHEST; priority >= NORMAL; priority--) {
+            for(Entry entry = heads[priority]; entry != null; entry = entry.next) {
+                joiner.add(priority == NORMAL ? Integer.toString(entry.requesterId) : entry.requesterId + ":" + priority);
+            }
+        }
+        return joiner.toString();
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+/*
+Request list of a token: the IDs of the neighbors, or of the node itself, waiting for it. Each requester is queued at
+most once, with the priority of its request, and membership is checked in constant time. The discipline decides the
+order in which the requesters are served
+ */
+public interface RequestQueue {
+
+    //Priorities go from NORMAL to HIGHEST, higher ones are more urgent
+    int NORMAL = 0;
+    int HIGHEST = 7;
+
+    //now is the time in ns of the node, used by the disciplines that age requests
+    void add(int requesterId, int priority, long now);
+
+    //Removes and returns the next requester to serve
+    int poll(long now);
+
+    boolean contains(int requesterId);
+
+    //Raises the priority of a queued requester, returns false if the discipline has no use for it or it is not higher
+    boolean raise(int requesterId, int priority);
+
+    //Highest priority among the queued requesters, NORMAL if empty. Aging is not considered
+    int highestPriority();
+
+    int size();
+
+    boolean isEmpty();
+
+    void clear();
+
+    //Requesters in the order they would be served now if no other arrived
+    int[] toArray();
+
+    static void checkPriority(int priority) {
+        if(priority < NORMAL || priority > HIGHEST) {
+            throw new IllegalArgumentException("Priority " + priority + " not between " + NORMAL + " and " + HIGHEST);
+        }
+    }
+
+    //Creates the request lists of the tokens
+    interface Discipline {
+        RequestQueue create();
+    }
+
+    /*
+    Parses specifications in the form fifo, priority, or a comma separated combination of aging:ms and bypass:n.
+    fifo ignores priorities, the others serve higher priorities first and requests of the same priority in arrival order.
+    aging:ms raises the priority of a request by one every ms it waits, bypass:n serves a request as soon as n requests
+    that arrived after it were served first, so that none waits forever behind more urgent ones
+     */
+    static Discipline parse(String spec) {
+        String trimmed = spec.trim();
+        if(trimmed.equals("fifo")) {
+            return FifoRequestQueue::new;
+        } else if(trimmed.equals("priority")) {
+            return () -> new PriorityRequestQueue(0, -1);
+        }
+
+        long agingNanos = 0;
+        int maxBypass = -1;
+        for(String option : trimmed.split(",")) {
+            String parts[] = option.trim().split(":");
+            if(parts.length != 2) {
+                throw new IllegalArgumentException("Invalid request queue " + spec);
+            }
+            if(parts[0].equals("aging")) {
+                agingNanos = Long.parseLong(parts[1]) * 1000000;
+                if(agingNanos <= 0) throw new IllegalArgumentException("Non positive aging interval " + parts[1]);
+            } else if(parts[0].equals("bypass")) {
+                maxBypass = Integer.parseInt(parts[1]);
+                if(maxBypass < 0) throw new IllegalArgumentException("Negative bypass bound " + parts[1]);
+            } else {
+                throw new IllegalArgumentException("Invalid request queue " + spec);
+            }
+        }
+        long aging = agingNanos;
+        int bypass = maxBypass;
+        return () -> new PriorityRequestQueue(aging, bypass);
+    }
+}
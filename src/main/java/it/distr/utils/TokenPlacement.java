@@ -0,0 +1,202 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.Arrays;
+import java.util.List;
+
+/*
+Where to inject the tokens and which spanning tree to use, given the request rate of each node.
+Graphs and trees are adjacency arrays indexed by node ID, rates need not be normalized.
+
+Hops are Request and Privilege messages crossing a link, so an entry of v while the token is in u costs 2 d(u, v)
+when requests are not merged on the way. The token stays with its last user, so in steady state the expected cost of an entry
+only depends on the tree, while the node in which tokens are injected decides the cost of the first entry of every resource
+ */
+public class TokenPlacement {
+
+    public static int[][] adjacency(int size, List<int[]> edges) {
+        int[] degree = new int[size];
+        for(int[] edge : edges) {
+            degree[edge[0]]++;
+            degree[edge[1]]++;
+        }
+
+        int[][] adjacency = new int[size][];
+        for(int i = 0; i < size; i++) {
+            adjacency[i] = new int[degree[i]];
+            degree[i] = 0;
+        }
+        for(int[] edge : edges) {
+            adjacency[edge[0]][degree[edge[0]]++] = edge[1];
+            adjacency[edge[1]][degree[edge[1]]++] = edge[0];
+        }
+
+        return adjacency;
+    }
+
+    //Breadth first spanning tree as parents of each node, -1 for the root
+    public static int[] bfsTree(int[][] graph, int root) {
+        int[] parents = new int[graph.length];
+        int[] order = bfsOrder(graph, root, parents);
+        if(order.length != graph.length) {
+            throw new IllegalArgumentException("Graph is not connected");
+        }
+        return parents;
+    }
+
+    /*
+    Node minimizing the rate weighted distance to all the others, in linear time: it is the node whose removal leaves
+    no component with more than half of the total rate
+     */
+    public static int weightedMedian(int[][] tree, double[] rates) {
+        int[] parents = new int[tree.length];
+        int[] order = bfsOrder(tree, 0, parents);
+        if(order.length != tree.length || edges(tree) != tree.length - 1) {
+            throw new IllegalArgumentException("Not a tree");
+        }
+
+        //Rate of the subtree of each node with the tree rooted in 0, children are visited after their parent
+        double[] subtree = rates.clone();
+        double[] largestChild = new double[tree.length];
+        for(int i = order.length - 1; i > 0; i--) {
+            int node = order[i];
+            subtree[parents[node]] += subtree[node];
+            largestChild[parents[node]] = Math.max(largestChild[parents[node]], subtree[node]);
+        }
+
+        int median = 0;
+        double best = Double.MAX_VALUE;
+        for(int node = 0; node < tree.length; node++) {
+            double largestComponent = Math.max(largestChild[node], subtree[0] - subtree[node]);
+            if(largestComponent < best) {
+                best = largestComponent;
+                median = node;
+            }
+        }
+        return median;
+    }
+
+    //Same as weightedMedian for any graph, with one BFS per node
+    public static int graphMedian(int[][] graph, double[] rates) {
+        int median = 0;
+        double best = Double.MAX_VALUE;
+        for(int node = 0; node < graph.length; node++) {
+            double cost = weightedDistance(graph, rates, node);
+            if(cost < best) {
+                best = cost;
+                median = node;
+            }
+        }
+        return median;
+    }
+
+    //Expected hops of an entry when the tokens are in root, that is of the first entry of each resource
+    public static double firstEntryHops(int[][] tree, double[] rates, int root) {
+        return 2 * weightedDistance(tree, rates, root) / total(rates);
+    }
+
+    /*
+    Expected hops of an entry when the token is with the previous requester and both are drawn from the rates.
+    An edge is crossed when the two are on different sides of it, which happens with probability 2 s (1 - s),
+    s being the normalized rate on one side
+     */
+    public static double steadyStateHops(int[][] tree, double[] rates) {
+        int[] parents = new int[tree.length];
+        int[] order = bfsOrder(tree, 0, parents);
+        double total = total(rates);
+
+        double[] subtree = rates.clone();
+        double distance = 0;
+        for(int i = order.length - 1; i > 0; i--) {
+            int node = order[i];
+            double side = subtree[node] / total;
+            distance += 2 * side * (1 - side);
+            subtree[parents[node]] += subtree[node];
+        }
+        return 2 * distance;
+    }
+
+    //Distance of the farthest node from node
+    public static int eccentricity(int[][] graph, int node) {
+        int[] parents = new int[graph.length];
+        int[] order = bfsOrder(graph, node, parents);
+        int[] depth = new int[graph.length];
+        int max = 0;
+        for(int i = 1; i < order.length; i++) {
+            depth[order[i]] = depth[parents[order[i]]] + 1;
+            max = Math.max(max, depth[order[i]]);
+        }
+        return max;
+    }
+
+    private static double weightedDistance(int[][] graph, double[] rates, int root) {
+        int[] parents = new int[graph.length];
+        int[] order = bfsOrder(graph, root, parents);
+        if(order.length != graph.length) {
+            throw new IllegalArgumentException("Graph is not connected");
+        }
+
+        int[] depth = new int[graph.length];
+        double cost = 0;
+        for(int i = 1; i < order.length; i++) {
+            int node = order[i];
+            depth[node] = depth[parents[node]] + 1;
+            cost += rates[node] * depth[node];
+        }
+        return cost;
+    }
+
+    //Nodes reachable from root in visit order, fills the parent of each of them
+    private static int[] bfsOrder(int[][] graph, int root, int[] parents) {
+        boolean[] visited = new boolean[graph.length];
+        int[] order = new int[graph.length];
+        int head = 0;
+        int tail = 0;
+
+        order[tail++] = root;
+        visited[root] = true;
+        parents[root] = -1;
+        while(head < tail) {
+            int node = order[head++];
+            for(int neighbor : graph[node]) {
+                if(!visited[neighbor]) {
+                    visited[neighbor] = true;
+                    parents[neighbor] = node;
+                    order[tail++] = neighbor;
+                }
+            }
+        }
+
+        return (tail == graph.length) ? order : Arrays.copyOf(order, tail);
+    }
+
+    private static int edges(int[][] graph) {
+        int degrees = 0;
+        for(int[] neighbors : graph) {
+            degrees += neighbors.length;
+        }
+        return degrees / 2;
+    }
+
+    private static double total(double[] rates) {
+        double total = 0;
+        for(double rate : rates) {
+            total += rate;
+        }
+        return total;
+    }
+}
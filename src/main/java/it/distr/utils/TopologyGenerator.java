@@ -0,0 +1,120 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.util.Random;
+
+/*
+Spanning trees for simulations. A tree of n nodes is described by the parent of each node, node 0 being the root
+with parent -1. Every parent has a lower ID than its children, so creating nodes by increasing ID creates parents first.
+All the shapes are built in linear time and memory
+ */
+public class TopologyGenerator {
+
+    public enum Shape {
+        //Each node attached to a uniformly chosen node among the previous ones, expected depth is logarithmic
+        RANDOM,
+        //Balanced tree in which each node has arity children
+        KARY,
+        STAR,
+        LINE,
+        //Line of spine nodes, each one with arity leaves attached
+        CATERPILLAR
+    }
+
+    //Parent of each node. The arity is ignored by shapes that do not use it, the seed by all but RANDOM
+    public static int[] parents(Shape shape, int size, int arity, long seed) {
+        if(size < 1) {
+            throw new IllegalArgumentException("A tree needs at least one node");
+        }
+        if(arity < 1 && (shape == Shape.KARY || shape == Shape.CATERPILLAR)) {
+            throw new IllegalArgumentException("Arity must be positive");
+        }
+
+        int[] parents = new int[size];
+        parents[0] = -1;
+
+        switch(shape) {
+            case RANDOM:
+                Random random = new Random(seed);
+                for(int i = 1; i < size; i++) {
+                    parents[i] = random.nextInt(i);
+                }
+                break;
+            case KARY:
+                for(int i = 1; i < size; i++) {
+                    parents[i] = (i - 1) / arity;
+                }
+                break;
+            case STAR:
+                for(int i = 1; i < size; i++) {
+                    parents[i] = 0;
+                }
+                break;
+            case LINE:
+                for(int i = 1; i < size; i++) {
+                    parents[i] = i - 1;
+                }
+                break;
+            case CATERPILLAR:
+                //The spine takes the lowest IDs, then legs are attached to spine nodes in order
+                int spine = (size + arity) / (arity + 1);
+                for(int i = 1; i < spine; i++) {
+                    parents[i] = i - 1;
+                }
+                for(int i = spine; i < size; i++) {
+                    parents[i] = (i - spine) / arity;
+                }
+                break;
+            default:
+                throw new Error("Unknown shape " + shape);
+        }
+
+        return parents;
+    }
+
+    //Neighbors of each node, computed from the parents in two linear passes
+    public static int[][] neighbors(int[] parents) {
+        int[] degree = new int[parents.length];
+        for(int i = 1; i < parents.length; i++) {
+            degree[i]++;
+            degree[parents[i]]++;
+        }
+
+        int[][] neighbors = new int[parents.length][];
+        for(int i = 0; i < parents.length; i++) {
+            neighbors[i] = new int[degree[i]];
+            degree[i] = 0;
+        }
+        for(int i = 1; i < parents.length; i++) {
+            neighbors[i][degree[i]++] = parents[i];
+            neighbors[parents[i]][degree[parents[i]]++] = i;
+        }
+
+        return neighbors;
+    }
+
+    //Distance of the farthest node from the root
+    public static int depth(int[] parents) {
+        int[] depths = new int[parents.length];
+        int max = 0;
+        for(int i = 1; i < parents.length; i++) {
+            depths[i] = depths[parents[i]] + 1;
+            max = Math.max(max, depths[i]);
+        }
+        return max;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+Virtual threads of Java 21, looked up at runtime so that the sources still compile for Java 8.
+A virtual thread blocked in a sleep or park releases its carrier thread, so they can be created by the hundred thousand
+ */
+public class VirtualThreads {
+    private static final MethodHandle START;
+    private static final MethodHandle NEW_EXECUTOR;
+
+    static {
+        MethodHandle start = null;
+        MethodHandle newExecutor = null;
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            start = lookup.findStatic(Thread.class, "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+            newExecutor = lookup.findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            //Running on a Java version without virtual threads
+        }
+        START = start;
+        NEW_EXECUTOR = newExecutor;
+    }
+
+    public static boolean isAvailable() {
+        return START != null;
+    }
+
+    //Starts a new virtual thread running the task
+    public static Thread start(Runnable task) {
+        checkAvailable();
+        try {
+            return (Thread) START.invokeExact(task);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Executor starting a virtual thread for each task
+    public static ExecutorService newExecutor() {
+        checkAvailable();
+        try {
+            return (ExecutorService) NEW_EXECUTOR.invokeExact();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void checkAvailable() {
+        if(!isAvailable()) {
+            throw new UnsupportedOperationException("Virtual threads require Java 21, running on " + System.getProperty("java.version"));
+        }
+    }
+}
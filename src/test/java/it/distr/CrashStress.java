@@ -0,0 +1,231 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.pattern.PatternsCS;
+import it.distr.utils.Configuration;
+import it.distr.utils.DelayDistribution;
+import it.distr.utils.Histogram;
+import it.distr.utils.Logger;
+import it.distr.utils.TopologyGenerator;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Crash recovery under load. Clients keep acquiring random resources on random nodes of a random tree while up to
+concurrency nodes at a time crash and recover. Two neighbors are never down at the same time: a node whose current
+neighbor has crashed or is still recovering refuses to crash, another victim is picked at the next round.
+
+  CrashStress nodes seconds [concurrency [seed]]
+
+Safety: no two leases of a resource are ever held at the same time. Liveness: every crashed node recovers and every
+acquisition is granted within the timeout, unless the node it waits on crashes. Exits with status 1 if either fails.
+With -Ddmx.heartbeat_interval a crashed node is not revived by CrashEnd but by its neighbors, once they all suspect it,
+and the downtime measures the detection.
+ */
+public class CrashStress {
+
+  private static final String[] RESOURCES = {Node.DEFAULT_RESOURCE, "a", "b"};
+  private static final int CLIENTS = 8;
+  private static final long TIMEOUT_MILLIS = 30000;
+  //Longest time a node stays crashed and longest pause between crashes
+  private static final int MAX_DOWNTIME_MILLIS = 50;
+  private static final int MAX_PAUSE_MILLIS = 20;
+
+  public static void main(String[] args) throws Exception {
+    if(args.length < 2 || args.length > 4) {
+      System.out.println("Usage: CrashStress nodes seconds [concurrency [seed]]");
+      return;
+    }
+    int size = Integer.parseInt(args[0]);
+    long seconds = Long.parseLong(args[1]);
+    int concurrency = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+    long seed = (args.length > 3) ? Long.parseLong(args[3]) : System.nanoTime();
+
+    //Ignored crashes and recoveries are expected, only assertions matter
+    Logger.setLevel(Logger.Level.ERROR);
+
+    ActorSystem system = ActorSystem.create("stress");
+    int[] parents = TopologyGenerator.parents(TopologyGenerator.Shape.RANDOM, size, 0, seed);
+    ActorRef[] nodes = NetworkBuilder.build(system, parents, null);
+    for(ActorRef node : nodes) {
+      node.tell(new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.uniform(5)), ActorRef.noSender());
+    }
+    NetworkBuilder.whenReady(nodes, TIMEOUT_MILLIS).toCompletableFuture().get();
+    DistributedMutex mutex = new DistributedMutex(Arrays.asList(nodes), TIMEOUT_MILLIS);
+
+    System.out.println("Random tree of " + size + " nodes (seed " + seed + "), " + concurrency + " concurrent crashes for " + seconds + " s");
+
+    Stats stats = new Stats();
+    long end = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(seconds);
+
+    List<Thread> clients = new ArrayList<>();
+    for(int i = 0; i < CLIENTS; i++) {
+      Random random = new Random(seed + i + 1);
+      Thread client = new Thread(() -> {
+        while(System.currentTimeMillis() < end) {
+          acquireRelease(mutex, random.nextInt(size), RESOURCES[random.nextInt(RESOURCES.length)], stats);
+        }
+      }, "stress-client-" + i);
+      client.start();
+      clients.add(client);
+    }
+
+    //Nodes crashed or still recovering
+    Set<Integer> down = new HashSet<>();
+    ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    Random random = new Random(seed);
+
+    while(System.currentTimeMillis() < end) {
+      synchronized(down) {
+        int victim = random.nextInt(size);
+        if(down.size() < concurrency && !down.contains(victim) && crash(nodes[victim], down)) {
+          down.add(victim);
+          stats.crashes.incrementAndGet();
+          long crashedAt = System.nanoTime();
+          int downtime = (Configuration.HEARTBEAT_INTERVAL > 0) ? 0 : random.nextInt(MAX_DOWNTIME_MILLIS);
+          timer.schedule(() -> recover(nodes[victim], victim, crashedAt, down, stats), downtime, TimeUnit.MILLISECONDS);
+        }
+      }
+      Thread.sleep(random.nextInt(MAX_PAUSE_MILLIS));
+    }
+
+    for(Thread client : clients) {
+      client.join();
+    }
+    timer.shutdown();
+    timer.awaitTermination(1, TimeUnit.SECONDS);
+    NetworkBuilder.whenReady(nodes, TIMEOUT_MILLIS).toCompletableFuture().exceptionally(e -> null).get();
+
+    //Once everybody recovered every resource must still be reachable from anywhere
+    for(String resource : RESOURCES) {
+      for(int i = 0; i < 10; i++) {
+        acquireRelease(mutex, random.nextInt(size), resource, stats);
+      }
+    }
+
+    System.out.println(stats);
+    Logger.flush();
+    Await.result(system.terminate(), Duration.create(10, TimeUnit.SECONDS));
+    System.exit(stats.failed() ? 1 : 0);
+  }
+
+  //The node checks its neighbors, which reshaping may have changed, and refuses inside a critical section too
+  private static boolean crash(ActorRef node, Set<Integer> down) throws Exception {
+    int[] downNodeIds = down.stream().mapToInt(Integer::intValue).toArray();
+    Object outcome = PatternsCS.ask(node, new Node.CrashBegin(downNodeIds), TIMEOUT_MILLIS).toCompletableFuture().get();
+    return ((Node.CrashOutcome) outcome).crashed;
+  }
+
+  //The node is down until it answers IsReady, which it parks until its recovery is over
+  private static void recover(ActorRef node, int nodeId, long crashedAt, Set<Integer> down, Stats stats) {
+    if(Configuration.HEARTBEAT_INTERVAL == 0) {
+      node.tell(new Node.CrashEnd(), ActorRef.noSender());
+    }
+    PatternsCS.ask(node, Node.IsReady.INSTANCE, TIMEOUT_MILLIS).whenComplete((ready, error) -> {
+      if(error == null) {
+        stats.downtime.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - crashedAt));
+      } else {
+        stats.stuck.incrementAndGet();
+        System.out.println("Node " + nodeId + " did not recover: " + error);
+      }
+      synchronized(down) {
+        down.remove(nodeId);
+      }
+    });
+  }
+
+  private static void acquireRelease(DistributedMutex mutex, int nodeId, String resource, Stats stats) {
+    DistributedMutex.Lease lease;
+    try {
+      lease = mutex.acquire(nodeId, resource).toCompletableFuture().get();
+    } catch (ExecutionException e) {
+      //Clients waiting on a crashing node are failed with it
+      if(e.getCause() instanceof IllegalStateException) {
+        stats.lost.incrementAndGet();
+      } else {
+        stats.timeouts.incrementAndGet();
+        System.out.println("Acquisition of " + resource + " on node " + nodeId + " failed: " + e.getCause());
+      }
+      return;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return;
+    }
+
+    AtomicInteger holders = stats.holders(resource);
+    if(holders.incrementAndGet() != 1) {
+      stats.violations.incrementAndGet();
+      System.out.println("Mutual exclusion violated on " + resource + " by " + lease);
+    }
+    try {
+      Thread.sleep(1);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    holders.decrementAndGet();
+    lease.release();
+    stats.grants.incrementAndGet();
+  }
+
+  private static class Stats {
+    final AtomicLong grants = new AtomicLong();
+    final AtomicLong lost = new AtomicLong();
+    final AtomicLong timeouts = new AtomicLong();
+    final AtomicLong violations = new AtomicLong();
+    final AtomicLong crashes = new AtomicLong();
+    final AtomicLong stuck = new AtomicLong();
+    //Time in ms from the crash of a node to the end of its recovery
+    final Histogram downtime = new Histogram();
+    //Leases currently held for each resource
+    private final AtomicInteger[] holders = new AtomicInteger[RESOURCES.length];
+
+    Stats() {
+      for(int i = 0; i < holders.length; i++) {
+        holders[i] = new AtomicInteger();
+      }
+    }
+
+    AtomicInteger holders(String resource) {
+      return holders[Arrays.asList(RESOURCES).indexOf(resource)];
+    }
+
+    boolean failed() {
+      return violations.get() > 0 || stuck.get() > 0 || timeouts.get() > 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Grants: " + grants + ", lost in crashes: " + lost + ", timed out: " + timeouts + ", violations: " + violations
+              + ", crashes: " + crashes + ", not recovered: " + stuck + "\nDowntime ms: " + downtime;
+    }
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+Runs the main of a class in a new JVM with the class path of the tests. The dmx properties are read once per JVM, so
+tests of another configuration need a JVM of their own
+ */
+class Forked {
+
+  private static final long TIMEOUT_SECONDS = 600;
+
+  final int exitCode;
+  final String output;
+
+  private Forked(int exitCode, String output) {
+    this.exitCode = exitCode;
+    this.output = output;
+  }
+
+  //properties in the form name=value, without the dmx. prefix
+  static Forked run(Class<?> main, List<String> properties, String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+    command.add("-ea");
+    command.add("-Ddmx.debug=false");
+    command.add("-Ddmx.log_level=ERROR");
+    for(String property : properties) {
+      command.add("-Ddmx." + property);
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(main.getName());
+    command.addAll(Arrays.asList(args));
+
+    File output = File.createTempFile("forked", ".txt");
+    try {
+      Process process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(output).start();
+      if(!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+        process.destroyForcibly().waitFor();
+        return new Forked(-1, "Timed out after " + TIMEOUT_SECONDS + " s\n" + read(output));
+      }
+      return new Forked(process.exitValue(), read(output));
+    } finally {
+      output.delete();
+    }
+  }
+
+  private static String read(File file) throws IOException {
+    return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+  }
+}
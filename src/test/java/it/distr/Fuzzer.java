@@ -0,0 +1,480 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import it.distr.utils.Configuration;
+import it.distr.utils.DelayDistribution;
+import it.distr.utils.Logger;
+import it.distr.utils.RequestQueue;
+import it.distr.utils.TopologyGenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.LongStream;
+
+/*
+Randomized search for schedules breaking the protocol, run as deterministic simulations. A schedule is a random tree
+with random link delays followed by random requests, of random priorities, reads, crashes and recoveries separated by
+random pauses, the commands of the console. Safety: two nodes are never inside the critical section of the same resource at the same time,
+unless both read it. Liveness: once every node is back, each request and read is granted within LIVENESS_TIMEOUT of
+virtual time, unless the node lost it in a crash. A node stopped by an exception fails both.
+
+  Fuzzer schedules max_nodes [seed] [unsafe]
+
+Schedules run in parallel on a fork join pool with one worker per core, each reusing its simulation, or one at a time
+with dmx.journal_dir, whose journals are per node id. Crashes respect the assumption of the console (crash refuses a
+node next to one that is down) unless unsafe, which also sends force_crash and force_recovery at any time, as
+scenario_7.txt does. With dmx.heartbeat_interval a crashed node is restarted by its neighbors, not by the next crash
+of it. The first failing schedule is shrunk by removing
+steps and pauses while it keeps failing the same way, and printed as a scenario that Simulation runs again with the
+printed seed. Exits with status 1 if any schedule failed
+ */
+public class Fuzzer {
+
+  private static final String[] RESOURCES = {Node.DEFAULT_RESOURCE, "a", "b"};
+  private static final int MAX_STEPS = 40;
+  private static final int MAX_PAUSE_MILLIS = 20;
+  private static final int MAX_LINK_DELAY_MILLIS = 10;
+  //Priorities of the requests go from NORMAL to this, only used if dmx.request_queue is not fifo
+  private static final int MAX_PRIORITY = 2;
+  private static final long LIVENESS_TIMEOUT = TimeUnit.SECONDS.toNanos(600);
+  //Messages after which a schedule is considered in livelock, far more than any schedule needs
+  private static final long MAX_MESSAGES = 1000000;
+
+  private static final ThreadLocal<Simulation> simulations = ThreadLocal.withInitial(() -> new Simulation(0));
+
+  public static void main(String[] args) throws Exception {
+    boolean unsafe = args.length > 0 && args[args.length - 1].equals("unsafe");
+    int count = unsafe ? args.length - 1 : args.length;
+    if(count < 2 || count > 3) {
+      System.out.println("Usage: Fuzzer schedules max_nodes [seed] [unsafe]");
+      return;
+    }
+    long schedules = Long.parseLong(args[0]);
+    int maxNodes = Math.max(2, Integer.parseInt(args[1]));
+    long seed = (count > 2) ? Long.parseLong(args[2]) : System.nanoTime();
+
+    //Refused crashes and ignored recoveries are expected, only assertions matter
+    Logger.setLevel(Logger.Level.ERROR);
+
+    //The nodes of parallel schedules would share their journals, which are per node id
+    int threads = (Configuration.JOURNAL_DIR != null) ? 1 : Runtime.getRuntime().availableProcessors();
+    System.out.println("Fuzzing " + schedules + " schedules of up to " + maxNodes + " nodes (seed " + seed + (unsafe ? ", unsafe crashes" : "") + ") on " + threads + " threads");
+
+    //By index, so that the first failure is the same whatever the threads
+    ConcurrentSkipListMap<Long, Failure> failures = new ConcurrentSkipListMap<>();
+    AtomicLong steps = new AtomicLong();
+    long start = System.nanoTime();
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    pool.submit(() -> LongStream.range(0, schedules).parallel().forEach(index -> {
+      Schedule schedule = Schedule.generate(seed + index, maxNodes, unsafe);
+      Failure failure = run(schedule);
+      steps.addAndGet(schedule.steps.size());
+      if(failure != null) {
+        failures.put(index, failure);
+      }
+    })).get();
+    pool.shutdown();
+    long elapsed = System.nanoTime() - start;
+
+    System.out.println(schedules + " schedules (" + steps + " steps) in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+            + (long) (schedules / (elapsed / 6e10)) + " per minute, " + failures.size() + " failed");
+    if(failures.isEmpty()) {
+      System.exit(0);
+    }
+
+    Map.Entry<Long, Failure> first = failures.firstEntry();
+    Schedule schedule = Schedule.generate(seed + first.getKey(), maxNodes, unsafe);
+    System.out.println("Schedule " + first.getKey() + " failed: " + first.getValue().message);
+    Schedule shrunk = shrink(schedule, first.getValue());
+    System.out.println("Shrunk from " + schedule.steps.size() + " to " + shrunk.steps.size() + " steps, failing with: " + run(shrunk).message);
+    System.out.println("Run it again with Simulation scenario " + shrunk.seed + ":");
+    System.out.print(shrunk.toScenario(run(shrunk).revived));
+    System.exit(1);
+  }
+
+  private static class Failure {
+    final boolean safety;
+    final String message;
+    //Nodes still crashed after the steps, recovered before checking liveness
+    List<Integer> revived = new ArrayList<>();
+
+    Failure(boolean safety, String message) {
+      this.safety = safety;
+      this.message = message;
+    }
+  }
+
+  private static class Step {
+    final String command;
+    final int nodeId;
+    final String resource;
+    final int priority;
+    final int pauseMillis;
+
+    Step(String command, int nodeId, String resource, int priority, int pauseMillis) {
+      this.command = command;
+      this.nodeId = nodeId;
+      this.resource = resource;
+      this.priority = priority;
+      this.pauseMillis = pauseMillis;
+    }
+
+    Step withPause(int pause) {
+      return new Step(command, nodeId, resource, priority, pause);
+    }
+  }
+
+  private static class Schedule {
+    //Seed of the simulation, drawing the link delays
+    final long seed;
+    final int size;
+    final long treeSeed;
+    final int maxLinkDelay;
+    final boolean unsafe;
+    final List<Step> steps;
+
+    Schedule(long seed, int size, long treeSeed, int maxLinkDelay, boolean unsafe, List<Step> steps) {
+      this.seed = seed;
+      this.size = size;
+      this.treeSeed = treeSeed;
+      this.maxLinkDelay = maxLinkDelay;
+      this.unsafe = unsafe;
+      this.steps = steps;
+    }
+
+    static Schedule generate(long seed, int maxNodes, boolean unsafe) {
+      Random random = new Random(seed);
+      int size = 2 + random.nextInt(maxNodes - 1);
+      long treeSeed = random.nextLong();
+      int maxLinkDelay = 1 + random.nextInt(MAX_LINK_DELAY_MILLIS);
+
+      List<Step> steps = new ArrayList<>();
+      int length = 1 + random.nextInt(MAX_STEPS);
+      for(int i = 0; i < length; i++) {
+        int kind = random.nextInt(unsafe ? 15 : 13);
+        String command = (kind < 6) ? "request" : (kind < 9) ? "read" : (kind < 13) ? "crash" : (kind == 13) ? "force_crash" : "force_recovery";
+        steps.add(new Step(command, random.nextInt(size), RESOURCES[random.nextInt(RESOURCES.length)], random.nextInt(MAX_PRIORITY + 1), random.nextInt(MAX_PAUSE_MILLIS)));
+      }
+      return new Schedule(seed, size, treeSeed, maxLinkDelay, unsafe, steps);
+    }
+
+    Schedule withSteps(List<Step> newSteps) {
+      return new Schedule(seed, size, treeSeed, maxLinkDelay, unsafe, newSteps);
+    }
+
+    //Same commands for the console, followed by what run() does once the steps are over
+    String toScenario(List<Integer> revived) {
+      StringBuilder scenario = new StringBuilder();
+      scenario.append("generate random ").append(size).append(' ').append(treeSeed).append('\n');
+      scenario.append("net_delay uniform:").append(maxLinkDelay).append('\n');
+      for(Step step : steps) {
+        scenario.append(step.command).append(' ').append(step.nodeId);
+        if((step.command.equals("request") || step.command.equals("read")) && !step.resource.equals(Node.DEFAULT_RESOURCE)) {
+          scenario.append(' ').append(step.resource);
+        }
+        if(step.command.equals("request") && step.priority != RequestQueue.NORMAL) {
+          scenario.append(' ').append(step.priority);
+        }
+        scenario.append('\n');
+        if(step.pauseMillis > 0) {
+          scenario.append("delay ").append(step.pauseMillis).append('\n');
+        }
+      }
+      for(int nodeId : revived) {
+        scenario.append(unsafe ? "force_recovery " : "crash ").append(nodeId).append('\n');
+      }
+      scenario.append("delay ").append(TimeUnit.NANOSECONDS.toMillis(LIVENESS_TIMEOUT)).append('\n');
+      return scenario.toString();
+    }
+  }
+
+  /*
+  State of the schedule being run, mirroring the one of the console: crash and recovery follow its rules, so that the
+  printed scenario does the same
+   */
+  private static class Run implements Simulation.Monitor {
+    final Simulation simulation;
+    ActorRef[] nodes;
+    Failure failure;
+    List<Integer> revived = new ArrayList<>();
+    //Crashed nodes and nodes asked to crash that did not answer yet
+    final Set<Integer> crashed = new TreeSet<>();
+    final Set<Integer> crashing = new TreeSet<>();
+    final Set<Integer> recovering = new HashSet<>();
+    //Node inside the critical section of each resource
+    final Map<String, Integer> insideCS = new HashMap<>();
+    //Readers inside each resource, and reads each node is inside
+    final Map<String, Integer> readers = new HashMap<>();
+    final Map<Integer, Integer> reading = new HashMap<>();
+    //Requests not granted yet, as node and resource, followed by read for reads
+    final Set<String> pending = new TreeSet<>();
+
+    Run(Simulation simulation) {
+      this.simulation = simulation;
+    }
+
+    @Override
+    public void entered(int nodeId, String resource, boolean shared) {
+      Integer other = insideCS.get(resource);
+      if(shared) {
+        readers.merge(resource, 1, Integer::sum);
+        reading.merge(nodeId, 1, Integer::sum);
+        pending.remove(nodeId + " " + resource + " read");
+      } else {
+        insideCS.put(resource, nodeId);
+        if(other == null && readers.containsKey(resource) && failure == null) {
+          failure = new Failure(true, "node " + nodeId + " inside the critical section of " + resource + " with " + readers.get(resource)
+                  + " readers at " + TimeUnit.NANOSECONDS.toMillis(simulation.nanoTime()) + " ms");
+        }
+        pending.remove(nodeId + " " + resource);
+      }
+      if(other != null && failure == null) {
+        failure = new Failure(true, "nodes " + other + " and " + nodeId + " inside the critical section of " + resource
+                + " at " + TimeUnit.NANOSECONDS.toMillis(simulation.nanoTime()) + " ms");
+      }
+    }
+
+    @Override
+    public void exited(int nodeId, String resource, boolean shared) {
+      if(shared) {
+        readers.computeIfPresent(resource, (key, count) -> (count == 1) ? null : count - 1);
+        reading.computeIfPresent(nodeId, (key, count) -> (count == 1) ? null : count - 1);
+      } else {
+        insideCS.remove(resource, nodeId);
+      }
+    }
+
+    boolean isDown(int nodeId) {
+      return crashed.contains(nodeId) || crashing.contains(nodeId) || recovering.contains(nodeId);
+    }
+
+    //The node is down until it answers IsReady, which it parks until its recovery is over
+    void awaitRecovery(int nodeId, ActorRef probe) {
+      recovering.add(nodeId);
+      nodes[nodeId].tell(Node.IsReady.INSTANCE, probe);
+    }
+
+    //The node answers whether it crashed: it checks its current neighbors against the nodes down, as the console does
+    void crash(int nodeId, boolean force, ActorRef probe) {
+      Set<Integer> down = new TreeSet<>(crashed);
+      down.addAll(crashing);
+      down.addAll(recovering);
+      int[] downNodeIds = force ? new int[0] : down.stream().mapToInt(Integer::intValue).toArray();
+      crashing.add(nodeId);
+      nodes[nodeId].tell(new Node.CrashBegin(downNodeIds), probe);
+    }
+
+    //Own requests are lost with the state of the node. A journal keeps the exclusive ones, not the reads. With heartbeats
+    //the neighbors restart the node once they all suspect it
+    void crashed(Node.CrashOutcome outcome, ActorRef probe) {
+      int nodeId = outcome.nodeId;
+      //Revived in the meantime otherwise
+      if(crashing.remove(nodeId) && outcome.crashed) {
+        pending.removeIf(request -> request.startsWith(nodeId + " ") && (Configuration.JOURNAL_DIR == null || request.endsWith(" read")));
+        if(Configuration.HEARTBEAT_INTERVAL > 0) {
+          awaitRecovery(nodeId, probe);
+        } else {
+          crashed.add(nodeId);
+        }
+      }
+    }
+  }
+
+  //Answers of IsReady and CrashBegin and stops of failed nodes
+  private static class Probe extends AbstractActor {
+    private final Run run;
+
+    Probe(Run run) {
+      this.run = run;
+    }
+
+    @Override
+    public void preStart() {
+      for(ActorRef node : run.nodes) {
+        getContext().watch(node);
+      }
+    }
+
+    @Override
+    public Receive createReceive() {
+      return receiveBuilder()
+              .match(Node.Ready.class, ready -> run.recovering.remove(ready.nodeId))
+              .match(Node.CrashOutcome.class, outcome -> run.crashed(outcome, getSelf()))
+              .match(Terminated.class, terminated -> {
+                if(run.failure == null) {
+                  run.failure = new Failure(true, "node " + Arrays.asList(run.nodes).indexOf(terminated.getActor()) + " failed with an exception");
+                }
+              })
+              .build();
+    }
+  }
+
+  private static Failure run(Schedule schedule) {
+    Simulation simulation = simulations.get();
+    simulation.restart(schedule.seed);
+    simulation.limit(MAX_MESSAGES);
+    int[] parents = TopologyGenerator.parents(TopologyGenerator.Shape.RANDOM, schedule.size, 0, schedule.treeSeed);
+    Run run = new Run(simulation);
+    simulation.monitor(run);
+
+    //generate, waiting for the nodes to initialize as the console does
+    ActorRef[] nodes = NetworkBuilder.build(simulation, parents);
+    run.nodes = nodes;
+    ActorRef probe = simulation.actorOf(Props.create(Probe.class, () -> new Probe(run)));
+    for(int i = 0; i < nodes.length; i++) {
+      run.awaitRecovery(i, probe);
+    }
+    if(!simulation.runUntil(run.recovering::isEmpty, LIVENESS_TIMEOUT)) {
+      return new Failure(false, "network not initialized");
+    }
+    //net_delay
+    Node.SetLinkDelay setLinkDelay = new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.uniform(schedule.maxLinkDelay));
+    for(ActorRef node : nodes) {
+      node.tell(setLinkDelay, ActorRef.noSender());
+    }
+
+    for(Step step : schedule.steps) {
+      execute(step, run, probe);
+      simulation.run(TimeUnit.MILLISECONDS.toNanos(step.pauseMillis));
+      if(run.failure != null) {
+        return run.failure;
+      } else if(simulation.halted()) {
+        return livelock(simulation);
+      }
+    }
+
+    run.crashed.addAll(run.crashing);
+    run.crashing.clear();
+    for(int nodeId : run.crashed) {
+      nodes[nodeId].tell(new Node.CrashEnd(), ActorRef.noSender());
+      run.awaitRecovery(nodeId, probe);
+      run.revived.add(nodeId);
+    }
+    run.crashed.clear();
+    simulation.runUntil(() -> run.failure != null || (run.pending.isEmpty() && run.recovering.isEmpty()), LIVENESS_TIMEOUT);
+
+    Failure failure = run.failure;
+    if(failure == null && simulation.halted()) {
+      failure = livelock(simulation);
+    } else if(failure == null && !run.recovering.isEmpty()) {
+      failure = new Failure(false, "nodes " + new TreeSet<>(run.recovering) + " not recovered");
+    } else if(failure == null && !run.pending.isEmpty()) {
+      failure = new Failure(false, "requests " + run.pending + " not granted");
+    }
+    if(failure != null) {
+      failure.revived = run.revived;
+    }
+    return failure;
+  }
+
+  private static Failure livelock(Simulation simulation) {
+    return new Failure(false, "more than " + MAX_MESSAGES + " messages by " + TimeUnit.NANOSECONDS.toMillis(simulation.nanoTime()) + " ms");
+  }
+
+  private static void execute(Step step, Run run, ActorRef probe) {
+    int nodeId = step.nodeId;
+    ActorRef node = run.nodes[nodeId];
+    switch(step.command) {
+      case "request":
+        node.tell(Node.Request.of(step.resource, step.priority), node);
+        //Requests reaching a node that is down may be dropped
+        if(!run.isDown(nodeId)) {
+          run.pending.add(nodeId + " " + step.resource);
+        }
+        break;
+      case "read":
+        node.tell(Node.ReadRequest.of(step.resource), node);
+        if(!run.isDown(nodeId)) {
+          run.pending.add(nodeId + " " + step.resource + " read");
+        }
+        break;
+      case "crash":
+        //A node that did not answer yet is revived too, the crash end is ignored if it did not crash
+        if(run.crashed.remove(nodeId) || run.crashing.remove(nodeId)) {
+          node.tell(new Node.CrashEnd(), ActorRef.noSender());
+          run.awaitRecovery(nodeId, probe);
+          break;
+        }
+        if(run.recovering.contains(nodeId)) {
+          break;
+        }
+        run.crash(nodeId, false, probe);
+        break;
+      case "force_crash":
+        run.crash(nodeId, true, probe);
+        break;
+      case "force_recovery":
+        node.tell(new Node.CrashEnd(), ActorRef.noSender());
+        run.crashed.remove(nodeId);
+        run.crashing.remove(nodeId);
+        run.awaitRecovery(nodeId, probe);
+        break;
+      default:
+        throw new Error("Unknown command " + step.command);
+    }
+  }
+
+  /*
+  Removes steps, in chunks halving down to single steps, then pauses, keeping every change after which the schedule still
+  fails in the same way (safety or liveness)
+   */
+  private static Schedule shrink(Schedule schedule, Failure failure) {
+    List<Step> steps = new ArrayList<>(schedule.steps);
+    for(int chunk = Math.max(1, steps.size() / 2); chunk >= 1; chunk /= 2) {
+      int start = 0;
+      while(start < steps.size()) {
+        List<Step> candidate = new ArrayList<>(steps.subList(0, start));
+        candidate.addAll(steps.subList(Math.min(steps.size(), start + chunk), steps.size()));
+        if(failsLike(schedule.withSteps(candidate), failure)) {
+          steps = candidate;
+        } else {
+          start += chunk;
+        }
+      }
+    }
+    for(int i = 0; i < steps.size(); i++) {
+      if(steps.get(i).pauseMillis > 0) {
+        List<Step> candidate = new ArrayList<>(steps);
+        candidate.set(i, steps.get(i).withPause(0));
+        if(failsLike(schedule.withSteps(candidate), failure)) {
+          steps = candidate;
+        }
+      }
+    }
+    return schedule.withSteps(steps);
+  }
+
+  private static boolean failsLike(Schedule schedule, Failure failure) {
+    Failure other = run(schedule);
+    return other != null && other.safety == failure.safety;
+  }
+}
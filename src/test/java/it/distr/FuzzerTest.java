@@ -0,0 +1,88 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/*
+A fixed budget of fuzzed schedules for each configuration of the protocol, a few seconds each. The seed is fixed so that
+a failure shows up on every run, the Fuzzer output has the shrunk scenario to investigate it
+ */
+public class FuzzerTest {
+
+  private static final String SCHEDULES = "1000";
+  private static final String MAX_NODES = "7";
+  private static final String SEED = "42";
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static void fuzz(String... properties) throws Exception {
+    Forked fuzzer = Forked.run(Fuzzer.class, Arrays.asList(properties), SCHEDULES, MAX_NODES, SEED);
+    assertEquals(fuzzer.output, 0, fuzzer.exitCode);
+  }
+
+  @Test
+  public void fullRecovery() throws Exception {
+    fuzz();
+  }
+
+  @Test
+  public void incrementalRecovery() throws Exception {
+    fuzz("incremental_recovery=true");
+  }
+
+  @Test
+  public void privilegeBatch() throws Exception {
+    fuzz("privilege_batch=3");
+  }
+
+  @Test
+  public void priorityQueue() throws Exception {
+    fuzz("request_queue=priority");
+  }
+
+  @Test
+  public void agingQueue() throws Exception {
+    fuzz("request_queue=aging:5");
+  }
+
+  @Test
+  public void bypassQueue() throws Exception {
+    fuzz("request_queue=bypass:1");
+  }
+
+  @Test
+  public void heartbeats() throws Exception {
+    fuzz("heartbeat_interval=50");
+  }
+
+  @Test
+  public void reparenting() throws Exception {
+    fuzz("reparent_after=2");
+  }
+
+  @Test
+  public void journal() throws Exception {
+    fuzz("journal_dir=" + folder.getRoot().getPath());
+  }
+}
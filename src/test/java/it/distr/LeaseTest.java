@@ -0,0 +1,212 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.testkit.javadsl.TestKit;
+import it.distr.utils.DelayDistribution;
+import it.distr.utils.RequestQueue;
+import it.distr.utils.TopologyGenerator;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+/*
+Acquire, Release, Cancel and lease timeouts on a line of three nodes, the token starting in node 0, with clients talking
+to the nodes directly as DistributedMutex does
+ */
+public class LeaseTest {
+
+  private static final String RESOURCE = "printer";
+  private static final FiniteDuration GRANT_TIMEOUT = FiniteDuration.create(5, TimeUnit.SECONDS);
+  //Long enough for a Request and a Privilege to cross the whole line
+  private static final FiniteDuration QUIET = FiniteDuration.create(300, TimeUnit.MILLISECONDS);
+  private static final long LEASE_MILLIS = 200;
+
+  private static ActorSystem system;
+  private ActorRef[] nodes;
+
+  @BeforeClass
+  public static void createSystem() {
+    system = ActorSystem.create("lease-test");
+  }
+
+  @AfterClass
+  public static void terminateSystem() {
+    TestKit.shutdownActorSystem(system);
+  }
+
+  @Before
+  public void buildNetwork() throws Exception {
+    nodes = NetworkBuilder.build(system, TopologyGenerator.parents(TopologyGenerator.Shape.LINE, 3, 0, 0), null);
+    for(ActorRef node : nodes) {
+      node.tell(new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.NONE), ActorRef.noSender());
+    }
+    NetworkBuilder.whenReady(nodes, GRANT_TIMEOUT.toMillis()).toCompletableFuture().get();
+  }
+
+  @After
+  public void stopNetwork() {
+    for(ActorRef node : nodes) {
+      system.stop(node);
+    }
+  }
+
+  private Node.Granted acquire(TestKit client, int nodeId, long leaseMillis, long requestId, boolean shared) {
+    nodes[nodeId].tell(new Node.Acquire(RESOURCE, leaseMillis, requestId, RequestQueue.NORMAL, shared), client.getRef());
+    return client.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+  }
+
+  private void release(int nodeId, Node.Granted granted) {
+    nodes[nodeId].tell(new Node.Release(granted.resource, granted.leaseId), ActorRef.noSender());
+  }
+
+  @Test
+  public void acquisitionWaitsForRelease() {
+    TestKit first = new TestKit(system);
+    TestKit second = new TestKit(system);
+
+    Node.Granted granted = acquire(first, 2, 0, Node.Acquire.NO_REQUEST_ID, false);
+    assertEquals(2, granted.nodeId);
+    assertEquals(RESOURCE, granted.resource);
+
+    nodes[0].tell(new Node.Acquire(RESOURCE), second.getRef());
+    second.expectNoMessage(QUIET);
+    release(2, granted);
+    second.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+  }
+
+  @Test
+  public void cancelledAcquisitionIsNotGranted() {
+    TestKit holder = new TestKit(system);
+    TestKit cancelled = new TestKit(system);
+    TestKit next = new TestKit(system);
+
+    Node.Granted granted = acquire(holder, 0, 0, Node.Acquire.NO_REQUEST_ID, false);
+    nodes[2].tell(new Node.Acquire(RESOURCE, 0, 7), cancelled.getRef());
+    nodes[2].tell(new Node.Cancel(RESOURCE, 7), ActorRef.noSender());
+    release(0, granted);
+
+    //The node does not keep the critical section for the withdrawn client
+    acquire(next, 2, 0, Node.Acquire.NO_REQUEST_ID, false);
+    cancelled.expectNoMessage(QUIET);
+  }
+
+  @Test
+  public void expiredLeaseIsTakenBack() {
+    TestKit expired = new TestKit(system);
+    TestKit waiting = new TestKit(system);
+
+    Node.Granted granted = acquire(expired, 0, LEASE_MILLIS, Node.Acquire.NO_REQUEST_ID, false);
+    nodes[2].tell(new Node.Acquire(RESOURCE), waiting.getRef());
+
+    Node.LeaseExpired lease = expired.expectMsgClass(GRANT_TIMEOUT, Node.LeaseExpired.class);
+    assertEquals(granted.leaseId, lease.leaseId);
+    waiting.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+  }
+
+  @Test
+  public void releaseOfExpiredLeaseIsIgnored() {
+    TestKit expired = new TestKit(system);
+    TestKit holder = new TestKit(system);
+    TestKit waiting = new TestKit(system);
+
+    Node.Granted stale = acquire(expired, 1, LEASE_MILLIS, Node.Acquire.NO_REQUEST_ID, false);
+    nodes[1].tell(new Node.Acquire(RESOURCE), holder.getRef());
+    expired.expectMsgClass(GRANT_TIMEOUT, Node.LeaseExpired.class);
+    Node.Granted granted = holder.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+
+    //The late release of the first client must not end the lease of the second
+    release(1, stale);
+    nodes[2].tell(new Node.Acquire(RESOURCE), waiting.getRef());
+    waiting.expectNoMessage(QUIET);
+    release(1, granted);
+    waiting.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+  }
+
+  @Test
+  public void sharedLeasesAreHeldTogether() {
+    TestKit firstReader = new TestKit(system);
+    TestKit secondReader = new TestKit(system);
+    TestKit writer = new TestKit(system);
+
+    Node.Granted first = acquire(firstReader, 0, 0, Node.Acquire.NO_REQUEST_ID, true);
+    Node.Granted second = acquire(secondReader, 2, 0, Node.Acquire.NO_REQUEST_ID, true);
+
+    nodes[1].tell(new Node.Acquire(RESOURCE), writer.getRef());
+    writer.expectNoMessage(QUIET);
+    release(0, first);
+    writer.expectNoMessage(QUIET);
+    release(2, second);
+    writer.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+  }
+
+  @Test
+  public void expiredSharedLeaseIsTakenBack() {
+    TestKit reader = new TestKit(system);
+    TestKit writer = new TestKit(system);
+
+    Node.Granted granted = acquire(reader, 2, LEASE_MILLIS, Node.Acquire.NO_REQUEST_ID, true);
+    nodes[0].tell(new Node.Acquire(RESOURCE), writer.getRef());
+
+    Node.LeaseExpired lease = reader.expectMsgClass(GRANT_TIMEOUT, Node.LeaseExpired.class);
+    assertEquals(granted.leaseId, lease.leaseId);
+    writer.expectMsgClass(GRANT_TIMEOUT, Node.Granted.class);
+  }
+
+  @Test
+  public void timedOutAcquisitionIsWithdrawn() throws Exception {
+    TestKit holder = new TestKit(system);
+    DistributedMutex mutex = new DistributedMutex(Arrays.asList(nodes), QUIET.toMillis());
+
+    Node.Granted granted = acquire(holder, 0, 0, Node.Acquire.NO_REQUEST_ID, false);
+    try {
+      mutex.acquire(2, RESOURCE).toCompletableFuture().get();
+      fail("Acquired while the lease of node 0 is held");
+    } catch (ExecutionException e) {
+      //Timed out, the facade cancels it on the node
+    }
+    release(0, granted);
+
+    DistributedMutex.Lease lease = mutex.acquire(1, RESOURCE).toCompletableFuture().get(GRANT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    assertEquals(1, lease.nodeId);
+    lease.release();
+  }
+
+  @Test
+  public void expiryReachesTheMutexLease() throws Exception {
+    DistributedMutex mutex = new DistributedMutex(Arrays.asList(nodes), GRANT_TIMEOUT.toMillis());
+
+    DistributedMutex.Lease lease = mutex.acquire(2, RESOURCE, LEASE_MILLIS).toCompletableFuture().get(GRANT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    assertSame(lease, lease.expired().toCompletableFuture().get(GRANT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS));
+
+    //The critical section was taken back, the next acquisition does not wait for the release
+    mutex.acquire(0, RESOURCE).toCompletableFuture().get(GRANT_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS).release();
+    lease.release();
+  }
+}
@@ -0,0 +1,203 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.testkit.javadsl.TestKit;
+import it.distr.utils.DelayDistribution;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/*
+Every message bound to NodeSerializer decoded from what it encodes, through the byte array methods and through the
+ByteBuffer ones used by Artery, which must write the same bytes
+ */
+public class NodeSerializerTest {
+
+  private static ActorSystem system;
+  private static NodeSerializer serializer;
+
+  @BeforeClass
+  public static void createSerializer() {
+    system = ActorSystem.create("serializer-test");
+    serializer = new NodeSerializer((ExtendedActorSystem) system);
+  }
+
+  @AfterClass
+  public static void terminateSystem() {
+    TestKit.shutdownActorSystem(system);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T roundTrip(T message) throws Exception {
+    String manifest = serializer.manifest(message);
+    byte[] bytes = serializer.toBinary(message);
+    Object fromBytes = serializer.fromBinary(bytes, manifest);
+
+    ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+    serializer.toBinary(message, buffer);
+    buffer.flip();
+    byte[] written = new byte[buffer.remaining()];
+    buffer.duplicate().get(written);
+    assertArrayEquals("bytes of " + manifest, bytes, written);
+    Object fromBuffer = serializer.fromBinary(buffer, manifest);
+
+    assertSame(message.getClass(), fromBytes.getClass());
+    assertSame(message.getClass(), fromBuffer.getClass());
+    return (T) fromBuffer;
+  }
+
+  @Test
+  public void requests() throws Exception {
+    assertSame(Node.Request.INSTANCE, roundTrip(Node.Request.INSTANCE));
+    assertEquals(0, serializer.toBinary(Node.Request.INSTANCE).length);
+
+    Node.Request request = roundTrip(Node.Request.of("printer", 3));
+    assertEquals("printer", request.resource);
+    assertEquals(3, request.priority);
+    assertEquals("RQP", serializer.manifest(request));
+  }
+
+  @Test
+  public void privileges() throws Exception {
+    Node.Privilege privilege = roundTrip(Node.Privilege.of(Node.DEFAULT_RESOURCE, false));
+    assertEquals(Node.DEFAULT_RESOURCE, privilege.resource);
+    assertEquals(false, privilege.requiresTokenBack);
+    assertEquals(5, serializer.toBinary(privilege).length);
+
+    privilege = roundTrip(Node.Privilege.of("a", true, 4, 2));
+    assertEquals("a", privilege.resource);
+    assertTrue(privilege.requiresTokenBack);
+    assertEquals(4, privilege.batch);
+    assertEquals(2, privilege.priority);
+  }
+
+  @Test
+  public void readCopies() throws Exception {
+    assertEquals("a", roundTrip(Node.ReadRequest.of("a")).resource);
+    assertEquals("a", roundTrip(Node.ReadPrivilege.of("a")).resource);
+    assertEquals("a", roundTrip(Node.ReadRecall.of("a")).resource);
+    assertEquals(Node.DEFAULT_RESOURCE, roundTrip(Node.ReadReturn.of(Node.DEFAULT_RESOURCE)).resource);
+  }
+
+  @Test
+  public void leases() throws Exception {
+    Node.Acquire acquire = roundTrip(new Node.Acquire("a", 1500, 42, 5, true));
+    assertEquals("a", acquire.resource);
+    assertEquals(1500, acquire.leaseMillis);
+    assertEquals(42, acquire.requestId);
+    assertEquals(5, acquire.priority);
+    assertTrue(acquire.shared);
+
+    Node.Granted granted = roundTrip(new Node.Granted(7, "a", 1L << 40));
+    assertEquals(7, granted.nodeId);
+    assertEquals("a", granted.resource);
+    assertEquals(1L << 40, granted.leaseId);
+
+    Node.Release release = roundTrip(new Node.Release(Node.DEFAULT_RESOURCE, 9));
+    assertEquals(Node.DEFAULT_RESOURCE, release.resource);
+    assertEquals(9, release.leaseId);
+
+    Node.Cancel cancel = roundTrip(new Node.Cancel("b", Node.Acquire.NO_REQUEST_ID));
+    assertEquals("b", cancel.resource);
+    assertEquals(Node.Acquire.NO_REQUEST_ID, cancel.requestId);
+
+    Node.LeaseExpired expired = roundTrip(new Node.LeaseExpired(3, "b", 11));
+    assertEquals(3, expired.nodeId);
+    assertEquals("b", expired.resource);
+    assertEquals(11, expired.leaseId);
+
+    Node.WatchLease watch = roundTrip(new Node.WatchLease("a", 12));
+    assertEquals("a", watch.resource);
+    assertEquals(12, watch.leaseId);
+
+    Node.CSEntered entered = roundTrip(new Node.CSEntered(4, "c"));
+    assertEquals(4, entered.nodeId);
+    assertEquals("c", entered.resource);
+  }
+
+  @Test
+  public void recoveryInfo() throws Exception {
+    assertSame(Node.RecoveryInfoRequest.INSTANCE, roundTrip(Node.RecoveryInfoRequest.INSTANCE));
+
+    Node.RecoveryInfoResponse empty = roundTrip(new Node.RecoveryInfoResponse(2));
+    assertEquals(2, empty.defaultHolderId);
+    assertEquals(0, empty.resources.length);
+
+    Node.RecoveryInfoResponse response = roundTrip(new Node.RecoveryInfoResponse(1, new String[]{Node.DEFAULT_RESOURCE, "a"},
+            new int[]{1, 5}, new boolean[]{true, false}, new byte[]{0, 1 | 4}));
+    assertEquals(1, response.defaultHolderId);
+    assertArrayEquals(new String[]{Node.DEFAULT_RESOURCE, "a"}, response.resources);
+    assertEquals(5, response.holderOf("a"));
+    assertTrue(response.requestListNotEmpty(Node.DEFAULT_RESOURCE));
+    assertEquals(false, response.requestListNotEmpty("a"));
+    assertEquals(1 | 4, response.copyState("a"));
+  }
+
+  @Test
+  public void reshaping() throws Exception {
+    ActorRef child = system.deadLetters();
+    assertEquals("a", roundTrip(new Node.ReparentRequest("a")).resource);
+    assertSame(Node.ReparentRefused.INSTANCE, roundTrip(Node.ReparentRefused.INSTANCE));
+
+    Node.AdoptChild adopt = roundTrip(new Node.AdoptChild(6, child));
+    assertEquals(6, adopt.childId);
+    assertEquals(child, adopt.childRef);
+    assertEquals(8, roundTrip(new Node.Adopted(8)).parentId);
+  }
+
+  @Test
+  public void setup() throws Exception {
+    ActorRef node = system.deadLetters();
+    Node.NeighborInit neighborInit = roundTrip(new Node.NeighborInit(3, node));
+    assertEquals(3, neighborInit.nodeId);
+    assertEquals(node, neighborInit.nodeRef);
+    assertEquals(4, roundTrip(new Node.Init(4)).holderId);
+    roundTrip(new Node.TokenInject());
+
+    ActorRef[] nodes = {node, node, node};
+    assertEquals(Arrays.asList(nodes), Arrays.asList(roundTrip(new Node.Wire(nodes)).nodes));
+    assertSame(Node.IsReady.INSTANCE, roundTrip(Node.IsReady.INSTANCE));
+    assertEquals(2, roundTrip(new Node.Ready(2)).nodeId);
+  }
+
+  @Test
+  public void control() throws Exception {
+    assertEquals(0, roundTrip(new Node.CrashBegin()).downNodeIds.length);
+    assertArrayEquals(new int[]{3, 9}, roundTrip(new Node.CrashBegin(new int[]{3, 9})).downNodeIds);
+    Node.CrashOutcome outcome = roundTrip(new Node.CrashOutcome(4, true));
+    assertEquals(4, outcome.nodeId);
+    assertTrue(outcome.crashed);
+    roundTrip(new Node.CrashEnd());
+    assertSame(Node.Heartbeat.INSTANCE, roundTrip(Node.Heartbeat.INSTANCE));
+    assertSame(Node.Suspected.INSTANCE, roundTrip(Node.Suspected.INSTANCE));
+
+    Node.SetLinkDelay setLinkDelay = roundTrip(new Node.SetLinkDelay(Node.SetLinkDelay.ALL_LINKS, DelayDistribution.uniform(25)));
+    assertEquals(Node.SetLinkDelay.ALL_LINKS, setLinkDelay.neighborId);
+    assertEquals(DelayDistribution.uniform(25).toString(), setLinkDelay.distribution.toString());
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+Crashes of a node that lent a batched token, simulated with dmx.privilege_batch in a JVM of their own
+ */
+public class PrivilegeBatchTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  //Deliveries of the trace, as time, sender, receiver and message
+  private static List<String[]> deliveries(File trace, String message) throws Exception {
+    return Files.readAllLines(trace.toPath(), StandardCharsets.UTF_8).stream()
+            .filter(line -> line.endsWith(" " + message))
+            .map(line -> line.split(" "))
+            .collect(Collectors.toList());
+  }
+
+  /*
+  The two nodes that lent the token on, each owing it back to its own lender, used to pass it to each other forever
+  once it came back from the last borrower, and node 4 never got it
+   */
+  @Test
+  public void tokenComesBackAfterLenderCrash() throws Exception {
+    File scenario = new File(getClass().getResource("/scenarios/batch_lender_crash.txt").toURI());
+    File trace = folder.newFile("trace.txt");
+    Forked simulation = Forked.run(Simulation.class, Arrays.asList("privilege_batch=2"), scenario.getPath(), "1581", trace.getPath());
+    assertEquals(simulation.output, 0, simulation.exitCode);
+
+    List<String[]> privileges = deliveries(trace, "Privilege a");
+    assertTrue("token of a bounced " + privileges.size() + " times", privileges.size() < 20);
+    assertTrue("token of a never reached node 4", privileges.stream().anyMatch(delivery -> delivery[2].equals("4")));
+  }
+}
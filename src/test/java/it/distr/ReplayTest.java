@@ -0,0 +1,54 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+/*
+The scenarios of the repository, recorded with Simulation scenario_N.txt 1 traces/scenario_N.trace, must deliver the
+same messages at the same virtual times. A change of the protocol that alters them on purpose records them again
+ */
+@RunWith(Parameterized.class)
+public class ReplayTest {
+
+  private static final int SCENARIOS = 9;
+
+  @Parameterized.Parameters(name = "scenario_{0}")
+  public static List<Object[]> scenarios() {
+    List<Object[]> scenarios = new ArrayList<>();
+    for(int i = 1; i <= SCENARIOS; i++) {
+      scenarios.add(new Object[]{i});
+    }
+    return scenarios;
+  }
+
+  @Parameterized.Parameter
+  public int scenario;
+
+  @Test
+  public void replaysExactly() throws Exception {
+    File trace = new File(getClass().getResource("/traces/scenario_" + scenario + ".trace").toURI());
+    assertTrue("scenario_" + scenario + " diverged from its trace", Simulation.replay(trace));
+  }
+}
@@ -0,0 +1,185 @@
+/**
+ *
+ *   _|_|_|    _|      _|  _|      _|
+ *   _|    _|  _|_|  _|_|    _|  _|
+ *   _|    _|  _|  _|  _|      _|
+ *   _|    _|  _|      _|    _|  _|
+ *   _|_|_|    _|      _|  _|      _|
+ *
+ *   DMX: A distributed protocol for mutual exclusion
+ *
+ *   Authors: Willi Menapace      <willi.menapace@studenti.unitn.it>
+ *            Daniele Giuliani    <daniele.giuliani@studenti.unitn.it>
+ *
+ **/
+
+package it.distr.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+What a restarted node reads back from the journal written before its crash
+ */
+public class JournalTest {
+
+    private static final int NODE = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static RequestQueue requests(int... requesterIds) {
+        RequestQueue queue = new FifoRequestQueue();
+        for(int requesterId : requesterIds) {
+            queue.add(requesterId, RequestQueue.NORMAL, 0);
+        }
+        return queue;
+    }
+
+    private static boolean appendToken(Journal journal, String resource, int holder, int... requesterIds) {
+        return journal.appendToken(resource, holder, requests(requesterIds), -1, 0, false,
+                false, false, Collections.emptyList(), Collections.emptyList());
+    }
+
+    private static int readInt(RandomAccessFile file, long position) throws Exception {
+        file.seek(position);
+        return file.readInt();
+    }
+
+    private Journal.Replay restart() throws Exception {
+        return Journal.open(folder.getRoot(), NODE).replay();
+    }
+
+    @Test
+    public void lastStateOfEachResourceIsReplayed() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        assertTrue(journal.appendInitialHolder(1));
+        assertTrue(appendToken(journal, "a", 1, 2));
+        assertTrue(appendToken(journal, "b", NODE));
+        assertTrue(appendToken(journal, "a", NODE, 2, NODE));
+        journal.close();
+
+        Journal.Replay replay = restart();
+        assertEquals(1, replay.initialHolder);
+        assertEquals(Arrays.asList("a", "b"), Arrays.asList(replay.entries.keySet().toArray()));
+        Journal.Entry entry = replay.entries.get("a");
+        assertEquals(NODE, entry.holder);
+        assertArrayEquals(new int[]{2, NODE}, entry.requests);
+        assertEquals(-1, entry.returnTo);
+    }
+
+    @Test
+    public void readCopiesAreReplayed() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        journal.appendInitialHolder(NODE);
+        journal.appendToken("a", NODE, requests(), 4, 2, true, true, false, Arrays.asList(4, 5), Collections.singletonList(6));
+        journal.close();
+
+        Journal.Entry entry = restart().entries.get("a");
+        assertEquals(4, entry.returnTo);
+        assertEquals(2, entry.batch);
+        assertTrue(entry.timedRequest);
+        assertTrue(entry.copy);
+        assertFalse(entry.copyAsked);
+        assertArrayEquals(new int[]{4, 5}, entry.copies);
+        assertArrayEquals(new int[]{6}, entry.copyRequests);
+    }
+
+    @Test
+    public void snapshotReplacesLog() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        journal.appendInitialHolder(1);
+        appendToken(journal, "a", 1, 2);
+        journal.snapshot(2, Collections.singletonList(new Journal.Entry("b", 2, new int[]{NODE}, -1, 0, false,
+                false, false, new int[0], new int[0])));
+        appendToken(journal, "c", NODE);
+        journal.close();
+
+        //Records of the log before the snapshot are not in it any more
+        Journal.Replay replay = restart();
+        assertEquals(2, replay.initialHolder);
+        assertEquals(Arrays.asList("b", "c"), Arrays.asList(replay.entries.keySet().toArray()));
+        assertArrayEquals(new int[]{NODE}, replay.entries.get("b").requests);
+    }
+
+    @Test
+    public void tornRecordIsIgnored() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        journal.appendInitialHolder(1);
+        appendToken(journal, "a", 1);
+        appendToken(journal, "a", NODE, 2);
+        journal.close();
+
+        //Flip the last byte of the last record, as if the crash happened while writing it. Records follow the epoch
+        //and each starts with its length, the end marker is a zero length
+        File log = new File(folder.getRoot(), "node-" + NODE + ".log");
+        try(RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            long end = 8;
+            int length;
+            while((length = readInt(file, end)) != 0) {
+                end += 8 + length;
+            }
+            file.seek(end - 1);
+            int last = file.read();
+            file.seek(end - 1);
+            file.write(last ^ 0xff);
+        }
+
+        Journal.Entry entry = restart().entries.get("a");
+        assertEquals(1, entry.holder);
+        assertEquals(0, entry.requests.length);
+    }
+
+    @Test
+    public void appendsAfterReplayFollowTheValidRecords() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        journal.appendInitialHolder(1);
+        appendToken(journal, "a", 1);
+        journal.close();
+
+        Journal restarted = Journal.open(folder.getRoot(), NODE);
+        restarted.replay();
+        appendToken(restarted, "a", NODE);
+        restarted.close();
+
+        assertEquals(NODE, restart().entries.get("a").holder);
+    }
+
+    @Test
+    public void createDiscardsPreviousRun() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        journal.appendInitialHolder(1);
+        appendToken(journal, "a", 1);
+        journal.snapshot(1, Collections.emptyList());
+        journal.close();
+
+        Journal.create(folder.getRoot(), NODE).close();
+        Journal.Replay replay = restart();
+        assertEquals(-1, replay.initialHolder);
+        assertTrue(replay.entries.isEmpty());
+    }
+
+    @Test
+    public void fullLogRefusesAppends() throws Exception {
+        Journal journal = Journal.create(folder.getRoot(), NODE);
+        int written = 0;
+        while(appendToken(journal, "a", NODE, written % 7)) {
+            written++;
+        }
+        journal.close();
+
+        assertTrue(written > 0);
+        assertArrayEquals(new int[]{(written - 1) % 7}, restart().entries.get("a").requests);
+    }
+}